@@ -1,11 +1,13 @@
 package com.atlassian.bamboo.plugins.git;
 
 import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.utils.SystemProperty;
 import com.atlassian.sal.api.message.I18nResolver;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.lib.Constants;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public abstract class AbstractGitOperationHelper implements GitOperationHelper
 {
@@ -13,9 +15,26 @@ public abstract class AbstractGitOperationHelper implements GitOperationHelper
 
     protected static final int DEFAULT_TRANSFER_TIMEOUT = new SystemProperty(false, "atlassian.bamboo.git.timeout", "GIT_TIMEOUT").getValue(10 * 60);
     protected static final int CHANGESET_LIMIT = new SystemProperty(false, "atlassian.bamboo.git.changeset.limit", "GIT_CHANGESET_LIMIT").getValue(100);
+    /**
+     * Whether a renamed file is listed once, by its new path, instead of as a deleted and an added file.
+     */
+    protected static final boolean DETECT_RENAMES = new SystemProperty(false, "atlassian.bamboo.git.detectRenames", "GIT_DETECT_RENAMES").getValue(false);
 
     protected static final String[] FQREF_PREFIXES = {Constants.R_HEADS, Constants.R_REFS};
 
+    static final RemoteCircuitBreaker REMOTE_CIRCUIT_BREAKER = RemoteCircuitBreaker.createDefault();
+
+    static
+    {
+        GitExecutors.addPeriodicTask(new Runnable()
+        {
+            public void run()
+            {
+                REMOTE_CIRCUIT_BREAKER.logOpenCircuits();
+            }
+        }, RemoteCircuitBreaker.COOL_DOWN_SECONDS);
+    }
+
     protected final GitRepositoryAccessData accessData;
     // ------------------------------------------------------------------------------------------------- Type Properties
     // ---------------------------------------------------------------------------------------------------- Dependencies
@@ -30,4 +49,50 @@ public abstract class AbstractGitOperationHelper implements GitOperationHelper
         this.buildLogger = buildLogger;
         this.i18nResolver = i18nResolver;
     }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * Fails fast if the remote described by the access data has been failing recently.
+     */
+    protected void checkRemoteCircuit(@NotNull final GitRepositoryAccessData accessData) throws RepositoryException
+    {
+        final String circuitKey = getCircuitKey(accessData);
+        if (!REMOTE_CIRCUIT_BREAKER.allowRequest(circuitKey, accessData.getRepositoryUrl()))
+        {
+            final RemoteCircuitBreaker.CircuitStats stats = REMOTE_CIRCUIT_BREAKER.getStats(circuitKey);
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.remoteCircuitOpen",
+                    accessData.getRepositoryUrl(),
+                    stats != null ? stats.getConsecutiveFailures() : 0,
+                    stats != null ? stats.getSecondsToRetry() : 0,
+                    stats != null ? stats.getLastError() : null)));
+        }
+    }
+
+    protected void recordRemoteSuccess(@NotNull final GitRepositoryAccessData accessData)
+    {
+        REMOTE_CIRCUIT_BREAKER.recordSuccess(getCircuitKey(accessData));
+    }
+
+    protected void recordRemoteFailure(@NotNull final GitRepositoryAccessData accessData, @Nullable final Throwable cause)
+    {
+        final String circuitKey = getCircuitKey(accessData);
+        REMOTE_CIRCUIT_BREAKER.recordFailure(circuitKey, accessData.getRepositoryUrl(), cause);
+        // open circuits are logged periodically from now on
+        GitExecutors.startPeriodicTasks();
+        if (log.isDebugEnabled())
+        {
+            log.debug(REMOTE_CIRCUIT_BREAKER.getStats(circuitKey));
+        }
+    }
+
+    /**
+     * All credentials are part of the key: a remote failing for wrong credentials is tried again as soon as they are
+     * corrected.
+     */
+    private static String getCircuitKey(@NotNull final GitRepositoryAccessData accessData)
+    {
+        return GitCacheDirectory.calculateAggregateSha(accessData.getRepositoryUrl(), accessData.getUsername(), accessData.getPassword(),
+                                                       accessData.getSshKey(), accessData.getSshPassphrase());
+    }
 }
@@ -0,0 +1,178 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a repository needs to be asked for its latest revision, based on how often it has changed before.
+ * <p/>
+ * Every remote location (repository url and branch) starts at the minimum polling interval. Each poll that does not
+ * see a change doubles the interval, up to a fraction of the observed average time between changes and never beyond
+ * the maximum staleness. Seeing a change drops the interval back to the minimum, so a dormant repository costs next to
+ * nothing while an active one is polled as before.
+ * <p/>
+ * Only polling skips polls, see {@link GitRepository#collectChangesSinceLastPoll(String, String)}: builds run manually
+ * or triggered by the repository always ask the remote, and the revisions they see are recorded like polls.
+ */
+public class AdaptivePollingScheduler
+{
+    private static final Logger log = Logger.getLogger(AdaptivePollingScheduler.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final boolean ENABLED = new SystemProperty(false, "atlassian.bamboo.git.adaptivePolling", "GIT_ADAPTIVE_POLLING").getValue(false);
+    static final int MIN_INTERVAL_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.adaptivePolling.minInterval", "GIT_ADAPTIVE_POLLING_MIN_INTERVAL").getValue(60);
+    static final int MAX_STALENESS_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.adaptivePolling.maxStaleness", "GIT_ADAPTIVE_POLLING_MAX_STALENESS").getValue(60 * 60);
+
+    /**
+     * The polling interval is capped at this fraction of the average time between changes, so that a repository which
+     * changes hourly is still polled several times an hour.
+     */
+    private static final int CHANGE_INTERVAL_DIVISOR = 4;
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final ConcurrentMap<String, PollingState> states = Maps.newConcurrentMap();
+    private final Ticker ticker;
+    private final long minIntervalNanos;
+    private final long maxStalenessNanos;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public AdaptivePollingScheduler(@NotNull final Ticker ticker, final long minInterval, final long maxStaleness, @NotNull final TimeUnit unit)
+    {
+        this.ticker = ticker;
+        this.minIntervalNanos = unit.toNanos(minInterval);
+        this.maxStalenessNanos = Math.max(minIntervalNanos, unit.toNanos(maxStaleness));
+    }
+
+    public static AdaptivePollingScheduler createDefault()
+    {
+        return new AdaptivePollingScheduler(Ticker.systemTicker(), MIN_INTERVAL_SECONDS, MAX_STALENESS_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @param key identifies the remote location being polled
+     * @param lastKnownRevision the revision the caller has already seen
+     * @return false only if the scheduler has seen the same revision as the caller and the polling interval for the
+     * location has not elapsed yet
+     */
+    public boolean isPollDue(@NotNull final String key, @Nullable final String lastKnownRevision)
+    {
+        final PollingState state = states.get(key);
+        if (state == null || lastKnownRevision == null)
+        {
+            return true;
+        }
+        synchronized (state)
+        {
+            if (!lastKnownRevision.equals(state.revision))
+            {
+                // someone else has seen a newer revision (or the caller is behind), don't hide it
+                return true;
+            }
+            final boolean due = ticker.read() - state.lastPollNanos >= state.intervalNanos;
+            if (!due && log.isDebugEnabled())
+            {
+                log.debug("Skipping poll of " + key + ", current interval is " + TimeUnit.NANOSECONDS.toSeconds(state.intervalNanos) + "s");
+            }
+            return due;
+        }
+    }
+
+    /**
+     * Records the result of a poll.
+     */
+    public void recordPoll(@NotNull final String key, @NotNull final String revision)
+    {
+        final long now = ticker.read();
+        PollingState state = states.get(key);
+        if (state == null)
+        {
+            final PollingState newState = new PollingState(revision, now, minIntervalNanos);
+            state = states.putIfAbsent(key, newState);
+            if (state == null)
+            {
+                return;
+            }
+        }
+        synchronized (state)
+        {
+            if (revision.equals(state.revision))
+            {
+                state.intervalNanos = Math.min(getIntervalCap(state), Math.max(minIntervalNanos, state.intervalNanos * 2));
+            }
+            else
+            {
+                final long sinceLastChange = now - state.lastChangeNanos;
+                state.averageChangeIntervalNanos = state.averageChangeIntervalNanos == 0
+                        ? sinceLastChange
+                        : (state.averageChangeIntervalNanos * 3 + sinceLastChange) / 4;
+                state.revision = revision;
+                state.lastChangeNanos = now;
+                state.intervalNanos = minIntervalNanos;
+            }
+            state.lastPollNanos = now;
+        }
+    }
+
+    /**
+     * @return current polling interval for the location, in the unit requested, or 0 if nothing has been recorded yet
+     */
+    public long getPollingInterval(@NotNull final String key, @NotNull final TimeUnit unit)
+    {
+        final PollingState state = states.get(key);
+        if (state == null)
+        {
+            return 0;
+        }
+        synchronized (state)
+        {
+            return unit.convert(state.intervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @NotNull
+    public static String createKey(@NotNull final GitRepositoryAccessData accessData)
+    {
+        return accessData.getRepositoryUrl() + '\0' + accessData.getVcsBranch().getName();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private long getIntervalCap(final PollingState state)
+    {
+        if (state.averageChangeIntervalNanos == 0)
+        {
+            return maxStalenessNanos;
+        }
+        return Math.max(minIntervalNanos, Math.min(maxStalenessNanos, state.averageChangeIntervalNanos / CHANGE_INTERVAL_DIVISOR));
+    }
+
+    private static final class PollingState
+    {
+        private String revision;
+        private long lastChangeNanos;
+        private long lastPollNanos;
+        private long intervalNanos;
+        private long averageChangeIntervalNanos;
+
+        private PollingState(final String revision, final long now, final long intervalNanos)
+        {
+            this.revision = revision;
+            this.lastChangeNanos = now;
+            this.lastPollNanos = now;
+            this.intervalNanos = intervalNanos;
+        }
+    }
+}
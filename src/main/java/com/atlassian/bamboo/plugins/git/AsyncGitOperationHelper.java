@@ -0,0 +1,63 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.commit.CommitContext;
+import com.atlassian.bamboo.plan.branch.VcsBranch;
+import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Non-blocking variant of {@link GitOperationHelper}: every method returns immediately and the returned future
+ * completes with the result of the corresponding {@link GitOperationHelper} method, or fails with the exception it threw.
+ * <p/>
+ * Meant for callers fanning out over several repositories or workspaces, with one async helper each: the wrapped
+ * helper is not thread safe (its ssh proxy and command state are per instance), so the operations of one async helper
+ * must not overlap with each other or with calls on {@link #getGitOperationHelper()}. Operations that depend on each
+ * other (fetch, then checkout) must be chained by the caller. Workspace modifying operations (commit, merge, push) are
+ * deliberately not offered.
+ */
+public interface AsyncGitOperationHelper
+{
+    /**
+     * @return the helper operations are delegated to, for callers that need to block
+     */
+    @NotNull
+    GitOperationHelper getGitOperationHelper();
+
+    @NotNull
+    ListenableFuture<String> obtainLatestRevision();
+
+    @NotNull
+    ListenableFuture<String> getCurrentRevision(@NotNull File sourceDirectory);
+
+    /**
+     * @return future completing with null if the revision doesn't exist
+     */
+    @NotNull
+    ListenableFuture<String> getRevisionIfExists(@NotNull File sourceDirectory, @NotNull String revision);
+
+    @NotNull
+    ListenableFuture<Void> fetch(@NotNull File sourceDirectory, @NotNull String targetRevision, boolean useShallow);
+
+    @NotNull
+    ListenableFuture<Boolean> checkRevisionExistsInCacheRepository(@NotNull File repositoryDirectory, @NotNull String targetRevision);
+
+    @NotNull
+    ListenableFuture<String> checkout(@Nullable File cacheDirectory, @NotNull File sourceDirectory, @NotNull String targetRevision, @Nullable String previousRevision);
+
+    @NotNull
+    ListenableFuture<List<VcsBranch>> getOpenBranches(@NotNull GitRepositoryAccessData repositoryData, File workingDir);
+
+    @NotNull
+    ListenableFuture<CommitContext> getCommit(File directory, String targetRevision);
+
+    @NotNull
+    ListenableFuture<BuildRepositoryChanges> extractCommits(File cacheDirectory, String lastVcsRevisionKey, String targetRevision);
+
+    @NotNull
+    ListenableFuture<String> getBranchForSha(@NotNull File sourceDirectory, String revision, String configuredBranch);
+}
@@ -0,0 +1,188 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.author.Author;
+import com.atlassian.bamboo.commit.CommitContext;
+import com.atlassian.bamboo.commit.CommitFile;
+import com.atlassian.bamboo.commit.CommitImpl;
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of commit metadata (message, author, date and changed files), keyed by repository and commit id,
+ * so that plans building the same commits don't parse them again. The least recently used commits are evicted once the
+ * estimated heap use of the cached commits exceeds the limit. Changed files are held as {@link CompactCommitFileList}s.
+ * <p/>
+ * Callers must not cache commits whose file lists depend on the state of their clone, e.g. shallow commits.
+ */
+class CommitMetadataCache
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int SIZE_MB = new SystemProperty(false, "atlassian.bamboo.git.commitCache.sizeMb", "GIT_COMMIT_CACHE_SIZE_MB").getValue(32);
+
+    static final CommitMetadataCache SHARED = new CommitMetadataCache(SIZE_MB * 1024L * 1024L);
+
+    private static final int OBJECT_OVERHEAD = 48;
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final long maxWeight;
+    private final LinkedHashMap<String, CommitMetadata> commits = new LinkedHashMap<String, CommitMetadata>(16, 0.75f, true);
+    private long weight;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    CommitMetadataCache(final long maxWeight)
+    {
+        this.maxWeight = maxWeight;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @param implementation distinguishes helpers that describe the same commit differently
+     * @param accessData     repository the commits come from, the directory identifies it if there's none
+     */
+    @NotNull
+    static String getRepositoryKey(@NotNull final String implementation, @Nullable final GitRepositoryAccessData accessData, @NotNull final File directory)
+    {
+        final String repository = accessData != null && StringUtils.isNotBlank(accessData.getRepositoryUrl()) ? accessData.getRepositoryUrl() : directory.getAbsolutePath();
+        return implementation + '\0' + repository;
+    }
+
+    /**
+     * @param withFiles whether the changed files are needed; commits cached without them are not returned then
+     * @return a new commit, null if the commit isn't cached
+     */
+    @Nullable
+    synchronized CommitImpl get(@NotNull final String repositoryKey, @NotNull final String sha, final boolean withFiles)
+    {
+        final CommitMetadata metadata = commits.get(repositoryKey + '\0' + sha);
+        if (metadata == null || withFiles && metadata.files == null)
+        {
+            return null;
+        }
+        return metadata.toCommit(withFiles);
+    }
+
+    /**
+     * @param withFiles whether the file list of the commit is complete; a cached file list is never replaced by none
+     */
+    synchronized void put(@NotNull final String repositoryKey, @NotNull final CommitContext commit, final boolean withFiles)
+    {
+        final String key = repositoryKey + '\0' + commit.getChangeSetId();
+        final CommitMetadata existing = commits.get(key);
+        if (existing != null && (existing.files != null || !withFiles))
+        {
+            return;
+        }
+        final CommitMetadata metadata = new CommitMetadata(commit, withFiles);
+        if (metadata.weight > maxWeight)
+        {
+            return;
+        }
+        if (existing != null)
+        {
+            weight -= existing.weight;
+        }
+        commits.put(key, metadata);
+        weight += metadata.weight;
+
+        final Iterator<CommitMetadata> leastRecentlyUsed = commits.values().iterator();
+        while (weight > maxWeight && leastRecentlyUsed.hasNext())
+        {
+            weight -= leastRecentlyUsed.next().weight;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * @return estimated heap use of the cached commits, in bytes
+     */
+    synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    synchronized int size()
+    {
+        return commits.size();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static long weigh(@Nullable final String string)
+    {
+        return string != null ? OBJECT_OVERHEAD + 2L * string.length() : 0;
+    }
+
+    private static final class CommitMetadata
+    {
+        private final String changeSetId;
+        private final String comment;
+        private final Author author;
+        private final Date date;
+        private final CompactCommitFileList files;
+        private final long weight;
+
+        private CommitMetadata(@NotNull final CommitContext commit, final boolean withFiles)
+        {
+            changeSetId = commit.getChangeSetId();
+            comment = commit.getComment();
+            author = commit.getAuthor();
+            date = commit.getDate() != null ? new Date(commit.getDate().getTime()) : null;
+
+            long weight = OBJECT_OVERHEAD + weigh(changeSetId) + weigh(comment);
+            if (author != null)
+            {
+                weight += weigh(author.getName()) + weigh(author.getEmail());
+            }
+            if (withFiles)
+            {
+                if (commit.getFiles() instanceof CompactCommitFileList)
+                {
+                    files = ((CompactCommitFileList) commit.getFiles()).trimmedCopy();
+                }
+                else
+                {
+                    final CompactCommitFileList compactFiles = new CompactCommitFileList(changeSetId);
+                    for (final CommitFile file : commit.getFiles())
+                    {
+                        compactFiles.addPath(file.getName());
+                    }
+                    files = compactFiles.trimmedCopy();
+                }
+                weight += files.getWeight();
+            }
+            else
+            {
+                files = null;
+            }
+            this.weight = weight;
+        }
+
+        @NotNull
+        private CommitImpl toCommit(final boolean withFiles)
+        {
+            final CommitImpl commit = new CommitImpl();
+            commit.setChangeSetId(changeSetId);
+            commit.setComment(comment);
+            commit.setAuthor(author);
+            commit.setDate(date != null ? new Date(date.getTime()) : null);
+            if (withFiles)
+            {
+                // a copy, callers may add files
+                commit.setFiles(files.trimmedCopy());
+            }
+            return commit;
+        }
+    }
+}
@@ -2,12 +2,15 @@ package com.atlassian.bamboo.plugins.git;
 
 import com.atlassian.bamboo.author.AuthorImpl;
 import com.atlassian.bamboo.commit.CommitContext;
-import com.atlassian.bamboo.commit.CommitFileImpl;
 import com.atlassian.bamboo.commit.CommitImpl;
 import com.atlassian.utils.process.LineOutputHandler;
 import com.google.common.collect.Lists;
 import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.util.RawParseUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 
 import javax.annotation.concurrent.NotThreadSafe;
@@ -44,6 +47,7 @@ public class CommitOutputHandler extends LineOutputHandler implements GitCommand
     private List<CommitContext> extractedCommits = Lists.newArrayList();
     private Set<String> shallows;
     private CommitImpl currentCommit = null;
+    private CompactCommitFileList currentFiles = null;
     private String commiterName = null;
     private int skippedCommitCount;
     private int maxCommitNumber;
@@ -88,6 +92,8 @@ public class CommitOutputHandler extends LineOutputHandler implements GitCommand
                     commiterName  = null;
                     currentCommit.setAuthor(new AuthorImpl(AuthorImpl.UNKNOWN_AUTHOR));
                     currentCommit.setChangeSetId(getLineContent(HASH,line));
+                    currentFiles = new CompactCommitFileList(currentCommit.getChangeSetId());
+                    currentCommit.setFiles(currentFiles);
                     extractedCommits.add(currentCommit);
                 }
                 else
@@ -131,7 +137,7 @@ public class CommitOutputHandler extends LineOutputHandler implements GitCommand
             }
             else if (parserState == CommitParserState.FILE_LIST && currentCommit != null && !StringUtils.isBlank(line) && !shallows.contains(currentCommit.getChangeSetId()))
             {
-                currentCommit.addFile(new CommitFileImpl(currentCommit.getChangeSetId(), line.trim()));
+                currentFiles.addPath(line.trim());
             }
             else if (parserState == CommitParserState.INFO)
             {
@@ -178,6 +184,72 @@ public class CommitOutputHandler extends LineOutputHandler implements GitCommand
 
     // -------------------------------------------------------------------------------------------------- Action Methods
     // -------------------------------------------------------------------------------------------------- Public Methods
+    /**
+     * Renders a raw commit object (as read by {@code git cat-file}) the way git log renders it with
+     * {@link #LOG_COMMAND_FORMAT_STRING}, so that it can be fed through this handler.
+     *
+     * @return null if the commit can't be rendered faithfully, e.g. when it declares an encoding git log would convert from
+     */
+    @Nullable
+    static String formatRawCommit(@NotNull final String changeSetId, @NotNull final byte[] rawCommit)
+    {
+        if (RawParseUtils.encoding(rawCommit, 0) != -1)
+        {
+            return null;
+        }
+        final int committerOffset = RawParseUtils.committer(rawCommit, 0);
+        final PersonIdent committer = committerOffset != -1 ? RawParseUtils.parsePersonIdent(rawCommit, committerOffset) : null;
+        if (committer == null)
+        {
+            return null;
+        }
+
+        final int messageOffset = RawParseUtils.commitMessage(rawCommit, 0);
+        final String message = messageOffset != -1 ? new String(rawCommit, messageOffset, rawCommit.length - messageOffset, Constants.CHARSET) : "";
+
+        // %s is the first paragraph joined into one line, %b everything after the blank lines that follow it
+        final String[] lines = message.split("\n", -1);
+        int i = 0;
+        while (i < lines.length && StringUtils.isBlank(lines[i]))
+        {
+            i++;
+        }
+        final StringBuilder subject = new StringBuilder();
+        for (; i < lines.length && !StringUtils.isBlank(lines[i]); i++)
+        {
+            if (subject.length() > 0)
+            {
+                subject.append(' ');
+            }
+            int end = lines[i].length();
+            while (lines[i].charAt(end - 1) <= ' ')
+            {
+                end--;
+            }
+            subject.append(lines[i], 0, end);
+        }
+        while (i < lines.length && StringUtils.isBlank(lines[i]))
+        {
+            i++;
+        }
+        final StringBuilder body = new StringBuilder();
+        for (; i < lines.length; i++)
+        {
+            body.append(lines[i]);
+            if (i < lines.length - 1)
+            {
+                body.append('\n');
+            }
+        }
+
+        return HASH + changeSetId + '\n'
+               + COMMITER_NAME + committer.getName() + '\n'
+               + COMMITER_EMAIL + committer.getEmailAddress() + '\n'
+               + TIMESTAMP + committer.getWhen().getTime() / 1000 + '\n'
+               + COMMIT_MESSAGE + subject + '\n' + body + END_OF_COMMIT_MESSAGE + '\n'
+               + FILE_LIST;
+    }
+
     public List<CommitContext> getExtractedCommits()
     {
         return extractedCommits;
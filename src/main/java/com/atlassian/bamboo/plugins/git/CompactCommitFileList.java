@@ -0,0 +1,213 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.commit.CommitFile;
+import com.atlassian.bamboo.commit.CommitFileImpl;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * The files changed by one commit, stored compactly: paths are UTF-8 encoded and front coded (each path keeps only
+ * what differs from the previous one, paths of a commit tend to share directories), and the changeset id is held once.
+ * {@link CommitFile}s are created when the list is read.
+ * <p/>
+ * Every {@value #RESTART_INTERVAL}th path is stored whole, so reading a path decodes at most that many entries.
+ * Only appending is supported.
+ */
+class CompactCommitFileList extends AbstractList<CommitFile> implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int RESTART_INTERVAL = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final String changeSetId;
+    private byte[] data = new byte[64];
+    private int length;
+    private int[] restarts = new int[1];
+    private int size;
+    private transient byte[] lastPath = new byte[0];
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    CompactCommitFileList(@NotNull final String changeSetId)
+    {
+        this.changeSetId = changeSetId;
+    }
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+
+    @Override
+    public CommitFile get(final int index)
+    {
+        return new CommitFileImpl(changeSetId, getPath(index));
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Appends a file of this list's commit.
+     *
+     * @throws IllegalArgumentException if the file belongs to another commit
+     */
+    @Override
+    public boolean add(final CommitFile commitFile)
+    {
+        if (!changeSetId.equals(commitFile.getRevision()))
+        {
+            throw new IllegalArgumentException("Only files of " + changeSetId + " can be added, not of " + commitFile.getRevision());
+        }
+        addPath(commitFile.getName());
+        return true;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    void addPath(@NotNull final String path)
+    {
+        final byte[] bytes = path.getBytes(UTF_8);
+        final int shared;
+        if (size % RESTART_INTERVAL == 0)
+        {
+            if (size / RESTART_INTERVAL == restarts.length)
+            {
+                restarts = Arrays.copyOf(restarts, Math.max(1, restarts.length * 2));
+            }
+            restarts[size / RESTART_INTERVAL] = length;
+            shared = 0;
+        }
+        else
+        {
+            shared = commonPrefixLength(lastPath, bytes);
+        }
+        ensureCapacity(10 + bytes.length - shared);
+        writeVarInt(shared);
+        writeVarInt(bytes.length - shared);
+        System.arraycopy(bytes, shared, data, length, bytes.length - shared);
+        length += bytes.length - shared;
+        lastPath = bytes;
+        size++;
+        modCount++;
+    }
+
+    @NotNull
+    String getPath(final int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        int position = restarts[index / RESTART_INTERVAL];
+        byte[] path = new byte[0];
+        for (int i = index - index % RESTART_INTERVAL; i <= index; i++)
+        {
+            final int shared = readVarInt(position);
+            position += varIntLength(shared);
+            final int suffixLength = readVarInt(position);
+            position += varIntLength(suffixLength);
+            final byte[] next = Arrays.copyOf(path, shared + suffixLength);
+            System.arraycopy(data, position, next, shared, suffixLength);
+            position += suffixLength;
+            path = next;
+        }
+        return new String(path, UTF_8);
+    }
+
+    /**
+     * @return estimated heap use, in bytes
+     */
+    long getWeight()
+    {
+        return 64 + data.length + 4L * restarts.length;
+    }
+
+    /**
+     * @return a copy without spare capacity
+     */
+    @NotNull
+    CompactCommitFileList trimmedCopy()
+    {
+        final CompactCommitFileList copy = new CompactCommitFileList(changeSetId);
+        copy.data = Arrays.copyOf(data, length);
+        copy.length = length;
+        copy.restarts = Arrays.copyOf(restarts, (size + RESTART_INTERVAL - 1) / RESTART_INTERVAL);
+        copy.size = size;
+        copy.lastPath = lastPath;
+        return copy;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static int commonPrefixLength(@NotNull final byte[] a, @NotNull final byte[] b)
+    {
+        final int max = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < max && a[i] == b[i])
+        {
+            i++;
+        }
+        return i;
+    }
+
+    private void ensureCapacity(final int additional)
+    {
+        if (length + additional > data.length)
+        {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + additional));
+        }
+    }
+
+    private void writeVarInt(int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    private int readVarInt(int position)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = data[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int varIntLength(int value)
+    {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0)
+        {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private Object readResolve()
+    {
+        lastPath = size > 0 ? getPath(size - 1).getBytes(UTF_8) : new byte[0];
+        return this;
+    }
+}
@@ -0,0 +1,172 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.commit.CommitContext;
+import com.atlassian.bamboo.plan.branch.VcsBranch;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * {@link AsyncGitOperationHelper} running the operations of a (native or JGit) {@link GitOperationHelper} on an
+ * executor. By default a pool shared by all repositories is used, so that fanning out doesn't cost a thread per request.
+ */
+class ExecutorGitOperationHelper implements AsyncGitOperationHelper
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int SHARED_POOL_SIZE = new SystemProperty(false, "atlassian.bamboo.git.async.threads", "GIT_ASYNC_THREADS").getValue(8);
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final GitOperationHelper helper;
+    private final ListeningExecutorService executor;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    ExecutorGitOperationHelper(@NotNull final GitOperationHelper helper)
+    {
+        this(helper, GitExecutors.getOperationExecutor());
+    }
+
+    ExecutorGitOperationHelper(@NotNull final GitOperationHelper helper, @NotNull final ListeningExecutorService executor)
+    {
+        this.helper = helper;
+        this.executor = executor;
+    }
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+
+    @NotNull
+    public GitOperationHelper getGitOperationHelper()
+    {
+        return helper;
+    }
+
+    @NotNull
+    public ListenableFuture<String> obtainLatestRevision()
+    {
+        return executor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return helper.obtainLatestRevision();
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<String> getCurrentRevision(@NotNull final File sourceDirectory)
+    {
+        return executor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return helper.getCurrentRevision(sourceDirectory);
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<String> getRevisionIfExists(@NotNull final File sourceDirectory, @NotNull final String revision)
+    {
+        return executor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return helper.getRevisionIfExists(sourceDirectory, revision);
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<Void> fetch(@NotNull final File sourceDirectory, @NotNull final String targetRevision, final boolean useShallow)
+    {
+        return executor.submit(new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                helper.fetch(sourceDirectory, targetRevision, useShallow);
+                return null;
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<Boolean> checkRevisionExistsInCacheRepository(@NotNull final File repositoryDirectory, @NotNull final String targetRevision)
+    {
+        return executor.submit(new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return helper.checkRevisionExistsInCacheRepository(repositoryDirectory, targetRevision);
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<String> checkout(@Nullable final File cacheDirectory, @NotNull final File sourceDirectory, @NotNull final String targetRevision, @Nullable final String previousRevision)
+    {
+        return executor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return helper.checkout(cacheDirectory, sourceDirectory, targetRevision, previousRevision);
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<List<VcsBranch>> getOpenBranches(@NotNull final GitRepositoryAccessData repositoryData, final File workingDir)
+    {
+        return executor.submit(new Callable<List<VcsBranch>>()
+        {
+            public List<VcsBranch> call() throws Exception
+            {
+                return helper.getOpenBranches(repositoryData, workingDir);
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<CommitContext> getCommit(final File directory, final String targetRevision)
+    {
+        return executor.submit(new Callable<CommitContext>()
+        {
+            public CommitContext call() throws Exception
+            {
+                return helper.getCommit(directory, targetRevision);
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<BuildRepositoryChanges> extractCommits(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision)
+    {
+        return executor.submit(new Callable<BuildRepositoryChanges>()
+        {
+            public BuildRepositoryChanges call() throws Exception
+            {
+                return helper.extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision);
+            }
+        });
+    }
+
+    @NotNull
+    public ListenableFuture<String> getBranchForSha(@NotNull final File sourceDirectory, final String revision, final String configuredBranch)
+    {
+        return executor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return helper.getBranchForSha(sourceDirectory, revision, configuredBranch);
+            }
+        });
+    }
+}
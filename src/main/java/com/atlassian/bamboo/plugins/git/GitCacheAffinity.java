@@ -0,0 +1,142 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.buildqueue.PipelineDefinition;
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.v2.build.agent.BuildAgent;
+import com.atlassian.bamboo.v2.build.agent.capability.Capability;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilityImpl;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySetManager;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the git caches a remote agent holds as agent capabilities ({@code system.git.cache.<cache sha>}, valued
+ * with the time of the last fetch in seconds), so that administrators can see which agents have a warm cache.
+ * <p/>
+ * The capabilities are for visibility only: they don't influence which agent builds a plan. Bamboo has no soft
+ * requirements, and a requirement on a cache would pin a plan to the agents holding it, so repositories never require
+ * these capabilities. They live outside the {@code system.git.executable} namespace, whose keys name git executables.
+ * <p/>
+ * The component publishes every inventory recorded in {@link GitCacheHandler#CACHE_INVENTORY} while the plugin is
+ * enabled.
+ */
+public class GitCacheAffinity implements GitCacheInventoryStore.Listener, InitializingBean, DisposableBean
+{
+    private static final Logger log = Logger.getLogger(GitCacheAffinity.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    public static final String CACHE_CAPABILITY_PREFIX = "system.git.cache.";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final GitCacheInventoryStore inventoryStore;
+
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+
+    private AgentManager agentManager;
+    private CapabilitySetManager capabilitySetManager;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public GitCacheAffinity()
+    {
+        inventoryStore = GitCacheHandler.CACHE_INVENTORY;
+    }
+
+    GitCacheAffinity(@NotNull final AgentManager agentManager, @NotNull final CapabilitySetManager capabilitySetManager, @NotNull final GitCacheInventoryStore inventoryStore)
+    {
+        this.agentManager = agentManager;
+        this.capabilitySetManager = capabilitySetManager;
+        this.inventoryStore = inventoryStore;
+    }
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+
+    public void afterPropertiesSet()
+    {
+        inventoryStore.addListener(this);
+    }
+
+    public void destroy()
+    {
+        inventoryStore.removeListener(this);
+    }
+
+    public void inventoryRecorded(final long agentId, @NotNull final GitCacheInventory inventory)
+    {
+        publish(agentId, inventory);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Replaces the cache capabilities of the agent with the caches of the inventory.
+     */
+    public void publish(final long agentId, @NotNull final GitCacheInventory inventory)
+    {
+        final BuildAgent agent = agentManager.getAgent(agentId);
+        final PipelineDefinition definition = agent != null ? agent.getDefinition() : null;
+        final CapabilitySet capabilitySet = definition != null ? definition.getCapabilitySet() : null;
+        if (capabilitySet == null)
+        {
+            return;
+        }
+
+        final Map<String, String> cacheCapabilities = Maps.newHashMap();
+        for (final GitCacheInventory.Entry entry : inventory.getEntries())
+        {
+            cacheCapabilities.put(CACHE_CAPABILITY_PREFIX + entry.getSha(), String.valueOf(TimeUnit.MILLISECONDS.toSeconds(entry.getLastFetch())));
+        }
+
+        boolean changed = false;
+        final List<String> staleKeys = Lists.newArrayList();
+        for (final Capability capability : capabilitySet.getCapabilities())
+        {
+            if (capability.getKey().startsWith(CACHE_CAPABILITY_PREFIX) && !cacheCapabilities.containsKey(capability.getKey()))
+            {
+                staleKeys.add(capability.getKey());
+            }
+        }
+        for (final String staleKey : staleKeys)
+        {
+            capabilitySet.removeCapability(staleKey);
+            changed = true;
+        }
+        for (final Map.Entry<String, String> cacheCapability : cacheCapabilities.entrySet())
+        {
+            final Capability existing = capabilitySet.getCapability(cacheCapability.getKey());
+            if (existing == null || !cacheCapability.getValue().equals(existing.getValue()))
+            {
+                capabilitySet.addCapability(new CapabilityImpl(cacheCapability.getKey(), cacheCapability.getValue()));
+                changed = true;
+            }
+        }
+        if (changed)
+        {
+            log.debug("Updating git cache capabilities of agent " + agent.getName());
+            capabilitySetManager.saveCapabilitySet(capabilitySet);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    public void setAgentManager(final AgentManager agentManager)
+    {
+        this.agentManager = agentManager;
+    }
+
+    public void setCapabilitySetManager(final CapabilitySetManager capabilitySetManager)
+    {
+        this.capabilitySetManager = capabilitySetManager;
+    }
+}
@@ -0,0 +1,66 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.sal.api.scheduling.PluginJob;
+import com.atlassian.sal.api.scheduling.PluginScheduler;
+import com.google.common.collect.ImmutableMap;
+import org.apache.log4j.Logger;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the periodic writing of cache bundles on the server, when a bundle directory is configured.
+ *
+ * @see GitCacheBundles
+ */
+public class GitCacheBundleJob implements LifecycleAware
+{
+    private static final Logger log = Logger.getLogger(GitCacheBundleJob.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final String JOB_KEY = GitCacheBundleJob.class.getName();
+    private static final String CACHE_HANDLER_KEY = "gitCacheHandler";
+
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+
+    private PluginScheduler pluginScheduler;
+    private GitCacheHandler gitCacheHandler;
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+
+    public void onStart()
+    {
+        if (GitCacheBundles.createDefault() == null)
+        {
+            return;
+        }
+        final long interval = TimeUnit.HOURS.toMillis(Math.max(1, GitCacheBundles.REFRESH_HOURS));
+        log.info("Writing git cache bundles to " + GitCacheBundles.BUNDLE_DIRECTORY + " every " + GitCacheBundles.REFRESH_HOURS + " hours");
+        // not right away, the server is busy enough while starting up
+        pluginScheduler.scheduleJob(JOB_KEY, WriteBundles.class, ImmutableMap.<String, Object>of(CACHE_HANDLER_KEY, gitCacheHandler),
+                                   new Date(System.currentTimeMillis() + interval), interval);
+    }
+
+    public static class WriteBundles implements PluginJob
+    {
+        public void execute(final Map<String, Object> jobDataMap)
+        {
+            ((GitCacheHandler) jobDataMap.get(CACHE_HANDLER_KEY)).writeCacheBundles();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    public void setPluginScheduler(final PluginScheduler pluginScheduler)
+    {
+        this.pluginScheduler = pluginScheduler;
+    }
+
+    public void setGitCacheHandler(final GitCacheHandler gitCacheHandler)
+    {
+        this.gitCacheHandler = gitCacheHandler;
+    }
+}
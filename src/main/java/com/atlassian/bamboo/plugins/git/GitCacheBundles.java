@@ -0,0 +1,248 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seeds new cache directories from git bundles instead of cloning the remote from scratch.
+ * <p/>
+ * The server periodically writes a bundle of the heads and tags of its cache directories to a directory shared with
+ * the agents ({@code atlassian.bamboo.git.bundleDirectory}), named after the cache directory. An agent about to create
+ * a cache directory first fetches from the matching bundle, if there is one, so that the subsequent fetch from the
+ * remote only transfers what changed since the bundle was written.
+ */
+public class GitCacheBundles
+{
+    private static final Logger log = Logger.getLogger(GitCacheBundles.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String BUNDLE_DIRECTORY = new SystemProperty(false, "atlassian.bamboo.git.bundleDirectory", "GIT_BUNDLE_DIRECTORY").getValue("");
+    static final int REFRESH_HOURS = new SystemProperty(false, "atlassian.bamboo.git.bundleRefreshHours", "GIT_BUNDLE_REFRESH_HOURS").getValue(24);
+
+    static final String BUNDLE_EXTENSION = ".bundle";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    private static final RefSpec[] SEED_REF_SPECS = {
+            new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"),
+            new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"),
+    };
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final File bundleDirectory;
+    private final long refreshMillis;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    GitCacheBundles(@NotNull final File bundleDirectory, final long refresh, @NotNull final TimeUnit unit)
+    {
+        this.bundleDirectory = bundleDirectory;
+        this.refreshMillis = unit.toMillis(refresh);
+    }
+
+    /**
+     * @return null if no bundle directory is configured
+     */
+    @Nullable
+    public static GitCacheBundles createDefault()
+    {
+        return StringUtils.isBlank(BUNDLE_DIRECTORY) ? null : new GitCacheBundles(new File(BUNDLE_DIRECTORY), REFRESH_HOURS, TimeUnit.HOURS);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    @NotNull
+    public File getBundleFile(@NotNull final File cacheDirectory)
+    {
+        return new File(bundleDirectory, cacheDirectory.getName() + BUNDLE_EXTENSION);
+    }
+
+    /**
+     * Writes the bundle of the cache directory, unless a recent enough one exists. The cache lock is only held while
+     * the refs to bundle are read, builds may fetch into the cache while the bundle is packed.
+     *
+     * @return true if a bundle was written
+     */
+    public boolean writeBundle(@NotNull final File cacheDirectory) throws IOException
+    {
+        final File bundleFile = getBundleFile(cacheDirectory);
+        if (!new File(cacheDirectory, Constants.DOT_GIT).isDirectory()
+            || bundleFile.exists() && System.currentTimeMillis() - bundleFile.lastModified() < refreshMillis)
+        {
+            return false;
+        }
+        final Map<String, ObjectId> refs;
+        try
+        {
+            refs = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Map<String, ObjectId>>()
+            {
+                public Map<String, ObjectId> call() throws Exception
+                {
+                    return readBundledRefs(cacheDirectory);
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Could not write bundle of " + cacheDirectory, e);
+        }
+        return !refs.isEmpty() && writeBundle(cacheDirectory, bundleFile, refs);
+    }
+
+    /**
+     * Seeds a cache directory that does not exist yet from its bundle. The caller is expected to hold the cache lock
+     * and to fetch from the remote afterwards. A failed seeding leaves no cache directory behind.
+     *
+     * @return true if the cache directory was seeded
+     */
+    public boolean seedCache(@NotNull final File cacheDirectory)
+    {
+        final File bundleFile = getBundleFile(cacheDirectory);
+        if (new File(cacheDirectory, Constants.DOT_GIT).exists() || !bundleFile.isFile())
+        {
+            return false;
+        }
+        try
+        {
+            fetchBundle(bundleFile, cacheDirectory);
+            return true;
+        }
+        catch (Exception e)
+        {
+            log.warn("Could not seed " + cacheDirectory + " from " + bundleFile + ", it will be fetched from the remote", e);
+            FileUtils.deleteQuietly(cacheDirectory);
+            return false;
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * @return the heads and tags of the cache, by name
+     */
+    @NotNull
+    private static Map<String, ObjectId> readBundledRefs(@NotNull final File cacheDirectory) throws IOException
+    {
+        final Map<String, ObjectId> refs = Maps.newLinkedHashMap();
+        final FileRepository repository = JGitRepositoryManager.SHARED.open(new File(cacheDirectory, Constants.DOT_GIT));
+        try
+        {
+            for (final String prefix : new String[] {Constants.R_HEADS, Constants.R_TAGS})
+            {
+                for (final Ref ref : repository.getRefDatabase().getRefs(prefix).values())
+                {
+                    if (ref.getObjectId() != null)
+                    {
+                        refs.put(ref.getName(), ref.getObjectId());
+                    }
+                }
+            }
+            return refs;
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * Fetches only add objects to a cache, the objects of the refs read before are still there. A cache deleted or
+     * pruned in the meantime fails the bundle, it is written on the next run.
+     */
+    private boolean writeBundle(@NotNull final File cacheDirectory, @NotNull final File bundleFile, @NotNull final Map<String, ObjectId> refs)
+            throws IOException
+    {
+        final FileRepository repository = JGitRepositoryManager.SHARED.open(new File(cacheDirectory, Constants.DOT_GIT));
+        try
+        {
+            final BundleWriter bundleWriter = new BundleWriter(repository);
+            for (final Map.Entry<String, ObjectId> ref : refs.entrySet())
+            {
+                bundleWriter.include(ref.getKey(), ref.getValue());
+            }
+
+            FileUtils.forceMkdir(bundleDirectory);
+            // write next to the target and rename, agents must never see a partial bundle
+            final File temporaryFile = new File(bundleDirectory, bundleFile.getName() + TEMPORARY_EXTENSION);
+            final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+            try
+            {
+                bundleWriter.writeBundle(NullProgressMonitor.INSTANCE, outputStream);
+                // a bundle that failed to flush must not replace the old one
+                outputStream.close();
+            }
+            finally
+            {
+                IOUtils.closeQuietly(outputStream);
+            }
+            // rename replaces the old bundle atomically where the platform allows it
+            if (!temporaryFile.renameTo(bundleFile) && !(bundleFile.delete() && temporaryFile.renameTo(bundleFile)))
+            {
+                FileUtils.deleteQuietly(temporaryFile);
+                throw new IOException("Could not rename " + temporaryFile + " to " + bundleFile);
+            }
+            log.info("Wrote bundle " + bundleFile + " of " + cacheDirectory);
+            return true;
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    private static void fetchBundle(@NotNull final File bundleFile, @NotNull final File cacheDirectory) throws IOException, URISyntaxException
+    {
+        // the cache is created here, the shared instances are opened once it exists
+        final File gitDirectory = new File(cacheDirectory, Constants.DOT_GIT);
+        final FileRepository repository = new FileRepository(gitDirectory);
+        try
+        {
+            repository.create();
+            final Transport transport = Transport.open(repository, new URIish(bundleFile.getAbsolutePath()));
+            try
+            {
+                transport.fetch(NullProgressMonitor.INSTANCE, Arrays.asList(SEED_REF_SPECS));
+            }
+            finally
+            {
+                transport.close();
+            }
+        }
+        finally
+        {
+            repository.close();
+            JGitRepositoryManager.SHARED.invalidate(gitDirectory);
+        }
+    }
+}
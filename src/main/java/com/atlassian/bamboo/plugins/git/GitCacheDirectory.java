@@ -21,6 +21,12 @@ public class GitCacheDirectory
 
     static final String GIT_REPOSITORY_CACHE_DIRECTORY = "_git-repositories-cache";
 
+    /**
+     * Under the cache root. Submodule caches are shared by the plans of all superprojects using the submodule, none of
+     * them owns the cache, so the deletion of unused caches leaves them alone.
+     */
+    static final String SUBMODULE_CACHE_DIRECTORY = "_submodules";
+
     static final Function<File, ManagedLock> cacheLockFactory = ManagedLocks.weakManagedLockFactory();
 
     private static final Logger log = Logger.getLogger(GitCacheDirectory.class);
@@ -45,6 +51,15 @@ public class GitCacheDirectory
         return new File(getCacheDirectoryRoot(workingDirectory), calculateRepositorySha(repositoryData));
     }
 
+    /**
+     * @param submoduleUrl the url of the submodule, as configured in the superproject
+     */
+    @NotNull
+    static File getSubmoduleCacheDirectory(@NotNull final File cacheRoot, @NotNull final String submoduleUrl)
+    {
+        return new File(new File(cacheRoot, SUBMODULE_CACHE_DIRECTORY), calculateAggregateSha(submoduleUrl, null));
+    }
+
     @VisibleForTesting
     static String calculateRepositorySha(@NotNull final GitRepositoryAccessData repositoryData)
     {
@@ -73,6 +88,15 @@ public class GitCacheDirectory
         return DigestUtils.shaHex(baos.toByteArray());
     }
 
+    /**
+     * @return true for names of directories under the cache root which are not cache directories themselves (shared
+     * object stores etc.)
+     */
+    static boolean isReservedName(@NotNull final String name)
+    {
+        return name.startsWith("_");
+    }
+
     public static ManagedLock getCacheLock(@NotNull File cache)
     {
         return cacheLockFactory.get(cache);
@@ -1,6 +1,5 @@
 package com.atlassian.bamboo.plugins.git;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
 
@@ -25,7 +24,7 @@ public class GitCacheDirectoryUtils
         {
             public boolean accept(File pathName)
             {
-                return (!dirs.contains(pathName.getName())) && pathName.isDirectory();
+                return (!dirs.contains(pathName.getName())) && pathName.isDirectory() && !GitCacheDirectory.isReservedName(pathName.getName());
             }
         });
     }
@@ -36,7 +35,7 @@ public class GitCacheDirectoryUtils
         {
             public boolean accept(File pathName)
             {
-                return dirs.contains(pathName.getName()) && pathName.isDirectory();
+                return dirs.contains(pathName.getName()) && pathName.isDirectory() && !GitCacheDirectory.isReservedName(pathName.getName());
             }
         });
     }
@@ -54,14 +53,14 @@ public class GitCacheDirectoryUtils
             {
                 try
                 {
-                    FileUtils.deleteDirectory(dir);
-                    log.info("Successfully deleted cache directory: " + dir);
+                    GitCacheTrash.DEFAULT.moveToTrash(dir);
                 }
                 catch (IOException e)
                 {
                     log.error("Failed to delete cache directory: " + dir, e);
                 }
             }
+            GitSharedObjectStore.deleteUnreferencedStores(GitCacheDirectory.getCacheDirectoryRoot(baseCacheDirectory));
         }
     }
 
@@ -8,16 +8,19 @@ import com.atlassian.bamboo.plan.cache.ImmutableChain;
 import com.atlassian.bamboo.plan.cache.ImmutablePlan;
 import com.atlassian.bamboo.plugins.git.messages.DeleteSpecifiedGitCacheDirectoriesOnAgentMessage;
 import com.atlassian.bamboo.plugins.git.messages.DeleteUnusedGitCacheDirectoriesOnAgentMessage;
+import com.atlassian.bamboo.plugins.git.messages.ReportGitCacheInventoryOnAgentMessage;
 import com.atlassian.bamboo.repository.CacheDescription;
 import com.atlassian.bamboo.repository.Repository;
 import com.atlassian.bamboo.repository.RepositoryDefinition;
 import com.atlassian.bamboo.utils.BambooPredicates;
+import com.atlassian.bamboo.utils.SystemProperty;
 import com.atlassian.bamboo.v2.build.agent.AgentCommandSender;
 import com.atlassian.bamboo.v2.build.agent.BuildAgent;
 import com.atlassian.bamboo.v2.build.agent.LocalBuildAgent;
 import com.atlassian.bamboo.v2.build.agent.messages.RemoteBambooMessage;
 import com.atlassian.sal.api.message.I18nResolver;
 import com.google.common.base.Function;
+import com.google.common.base.Ticker;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Collections2;
@@ -30,9 +33,10 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.opensymphony.xwork.ValidationAware;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -44,6 +48,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of a cache handler for git. This caters for data displayed on the Repository Settings admin page for
@@ -55,6 +60,15 @@ import java.util.Set;
 @SuppressWarnings ({ "JavaDoc" })
 public class GitCacheHandler
 {
+    private static final Logger log = Logger.getLogger(GitCacheHandler.class);
+
+    static final int INVENTORY_INTERVAL_MINUTES = new SystemProperty(false, "atlassian.bamboo.git.inventoryIntervalMinutes", "GIT_INVENTORY_INTERVAL_MINUTES").getValue(30);
+
+    /**
+     * Caches reported by remote agents. Reports expire after a few missed intervals.
+     */
+    public static final GitCacheInventoryStore CACHE_INVENTORY = new GitCacheInventoryStore(Ticker.systemTicker(), 3L * Math.max(1, INVENTORY_INTERVAL_MINUTES), TimeUnit.MINUTES);
+
     private CachedPlanManager cachedPlanManager;
     private BuildDirectoryManager buildDirectoryManager;
     private GitCacheDirectoryUtils gitCacheDirectoryUtils;
@@ -137,7 +151,7 @@ public class GitCacheHandler
         final Set<File> unusedDirs = findUnusedCaches(plans.keySet());
         for (File unusedDir : unusedDirs)
         {
-            final String description = "Descriptions for unused caches is unsupported";
+            final String description = "Descriptions for unused caches is unsupported" + describeAgentUsage(unusedDir);
             final CacheDescription cacheDescription = new CacheDescription.FileBased(unusedDir, description, Collections.<ImmutablePlan>emptyList());
             cacheDescriptions.add(cacheDescription);
         }
@@ -168,18 +182,39 @@ public class GitCacheHandler
             sb.append(" (").append(StringUtils.join(features, ", ")).append(")");
         }
 
+        sb.append(describeAgentUsage(cacheDir));
         final String description = sb.toString();
 
         return new CacheDescription.FileBased(cacheDir, description, usingPlans);
     }
 
+    /**
+     * @return where remote agents hold copies of the cache, according to their last inventory reports
+     */
+    @NotNull
+    private static String describeAgentUsage(@NotNull final File cacheDir)
+    {
+        final Map<String, GitCacheInventory.Entry> holders = CACHE_INVENTORY.getHolders(cacheDir.getName());
+        if (holders.isEmpty())
+        {
+            return "";
+        }
+        long totalSize = 0;
+        for (final GitCacheInventory.Entry entry : holders.values())
+        {
+            totalSize += entry.getSizeInBytes();
+        }
+        return "; on " + holders.size() + " remote agent(s): " + StringUtils.join(holders.keySet(), ", ")
+               + " (" + FileUtils.byteCountToDisplaySize(totalSize) + " in total)";
+    }
+
     /**
      * Handles both Git and GitHub repositories.
      *
      * @see com.atlassian.bamboo.repository.CacheHandler#deleteCaches(java.util.Collection,
      *      com.opensymphony.xwork.ValidationAware)
      */
-    public void deleteCaches(@NotNull Collection<String> keys, @NotNull ValidationAware feedback)
+    public void deleteCaches(@NotNull final Collection<String> keys, @NotNull ValidationAware feedback)
     {
         if (keys.isEmpty())
         {
@@ -197,7 +232,7 @@ public class GitCacheHandler
             {
                 try
                 {
-                    FileUtils.deleteDirectory(cacheCandidate);
+                    GitCacheTrash.DEFAULT.moveToTrash(cacheCandidate);
                     feedback.addActionMessage(i18nResolver.getText("manageCaches.delete.git.success", key));
                 }
                 catch (IOException e)
@@ -210,7 +245,10 @@ public class GitCacheHandler
                 feedback.addActionMessage(i18nResolver.getText("manageCaches.delete.git.skipped", key));
             }
         }
+        GitSharedObjectStore.deleteUnreferencedStores(cacheRootDir);
+
         final RemoteBambooMessage message = new DeleteSpecifiedGitCacheDirectoriesOnAgentMessage(keys, gitCacheDirectoryUtils);
+        // an agent may have fetched into the caches since its last inventory report, every agent is asked
         final Collection<String> agentNames = sendMessageToRemoteAgents(message);
         if (!agentNames.isEmpty())
         {
@@ -247,7 +285,7 @@ public class GitCacheHandler
             final String sha = unusedCacheDir.getName();
             try
             {
-                FileUtils.deleteDirectory(unusedCacheDir);
+                GitCacheTrash.DEFAULT.moveToTrash(unusedCacheDir);
                 feedback.addActionMessage(i18nResolver.getText("manageCaches.delete.git.unused.success", sha));
             }
             catch (IOException e)
@@ -256,6 +294,8 @@ public class GitCacheHandler
             }
         }
 
+        GitSharedObjectStore.deleteUnreferencedStores(getCacheRootDir());
+
         final Collection<String> usedSHAs = Collections2.transform(usedCaches, new Function<File, String>()
         {
             public String apply(File from)
@@ -273,10 +313,113 @@ public class GitCacheHandler
         }
     }
 
+    /**
+     * Writes bundles of the caches of repositories that use remote agent caching, so that agents can seed their caches
+     * from them.
+     *
+     * @see GitCacheBundles
+     */
+    public void writeCacheBundles()
+    {
+        final GitCacheBundles cacheBundles = GitCacheBundles.createDefault();
+        if (cacheBundles == null)
+        {
+            return;
+        }
+        final Set<File> cacheDirectories = Sets.newHashSet();
+        for (final GitRepository gitRepository : Iterables.concat(Iterables.transform(cachedPlanManager.getPlans(ImmutableChain.class), GIT_REPOSITORIES_OF_PLAN)))
+        {
+            if (gitRepository.getSubstitutedAccessData().isUseRemoteAgentCache())
+            {
+                cacheDirectories.add(gitRepository.getCacheDirectory());
+            }
+        }
+        for (final File cacheDirectory : cacheDirectories)
+        {
+            try
+            {
+                cacheBundles.writeBundle(cacheDirectory);
+            }
+            catch (IOException e)
+            {
+                log.warn("Could not write bundle of git cache " + cacheDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * Describes the progress of background cache deletions for the cache admin page.
+     *
+     * @return empty if no cache directories are being deleted
+     */
+    @NotNull
+    public String describePendingDeletions()
+    {
+        final Map<String, Integer> pendingDeletions = getPendingDeletions();
+        if (pendingDeletions.isEmpty())
+        {
+            return "";
+        }
+        final Collection<String> agents = Lists.newArrayList();
+        for (final Map.Entry<String, Integer> agent : pendingDeletions.entrySet())
+        {
+            agents.add(StringEscapeUtils.escapeHtml(agent.getKey()) + ": " + agent.getValue());
+        }
+        return "<br />" + i18nResolver.getText("manageCaches.git.pendingDeletions", StringUtils.join(agents, ", "));
+    }
+
+    /**
+     * Reports the progress of background cache deletions. Remote agents are as of their last inventory report.
+     *
+     * @return number of cache directories still being deleted, by agent name, the server first
+     */
+    @NotNull
+    public Map<String, Integer> getPendingDeletions()
+    {
+        final Map<String, Integer> pendingDeletions = Maps.newLinkedHashMap();
+        final int serverPendingDeletions = GitCacheTrash.DEFAULT.getPendingDeletions(getCacheRootDir());
+        if (serverPendingDeletions > 0)
+        {
+            pendingDeletions.put(i18nResolver.getText("manageCaches.delete.git.server"), serverPendingDeletions);
+        }
+        pendingDeletions.putAll(CACHE_INVENTORY.getPendingDeletions());
+        return pendingDeletions;
+    }
+
+    /**
+     * Asks every active remote agent to report the caches it holds.
+     *
+     * @see GitCacheInventoryStore
+     */
+    public void requestCacheInventories()
+    {
+        // agents do the same before reporting
+        GitCacheTrash.DEFAULT.emptyTrash(getCacheRootDir());
+        for (final BuildAgent buildAgent : getActiveRemoteAgents())
+        {
+            agentCommandSender.send(new ReportGitCacheInventoryOnAgentMessage(buildAgent.getId(), buildAgent.getName()), buildAgent.getId());
+        }
+    }
+
+    /**
+     * @return names of the agents the message was sent to
+     */
     @NotNull
     private Collection<String> sendMessageToRemoteAgents(final RemoteBambooMessage message)
     {
         final Collection<String> agentNames = Lists.newArrayList();
+        for (final BuildAgent buildAgent : getActiveRemoteAgents())
+        {
+            agentNames.add(buildAgent.getName());
+            agentCommandSender.send(message, buildAgent.getId());
+        }
+        return agentNames;
+    }
+
+    @NotNull
+    private Collection<BuildAgent> getActiveRemoteAgents()
+    {
+        final Collection<BuildAgent> remoteAgents = Lists.newArrayList();
         for (final BuildAgent buildAgent : Iterables.filter(agentManager.getAllAgents(), BambooPredicates.buildAgentIsActive()))
         {
             buildAgent.accept(new BuildAgent.BuildAgentVisitor()
@@ -287,19 +430,24 @@ public class GitCacheHandler
 
                 public void visitRemote(final BuildAgent remoteBuildAgent)
                 {
-                    agentNames.add(buildAgent.getName());
-                    agentCommandSender.send(message, buildAgent.getId());
+                    remoteAgents.add(buildAgent);
                 }
             });
         }
-        return agentNames;
+        return remoteAgents;
     }
 
 
     @NotNull
     private Set<File> findUnusedCaches(@NotNull Set<File> usedCaches)
     {
-        final File[] cacheDirs = getCacheRootDir().listFiles((FileFilter) DirectoryFileFilter.DIRECTORY); // will be null if cacheRootDir does not exist
+        final File[] cacheDirs = getCacheRootDir().listFiles(new FileFilter()
+        {
+            public boolean accept(final File pathname)
+            {
+                return pathname.isDirectory() && !GitCacheDirectory.isReservedName(pathname.getName());
+            }
+        }); // will be null if cacheRootDir does not exist
         return ArrayUtils.isEmpty(cacheDirs) ? Collections.<File>emptySet() : Sets.difference(ImmutableSet.copyOf(cacheDirs), usedCaches);
     }
 
@@ -0,0 +1,231 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The git cache directories held by an agent, as reported to the server.
+ */
+public class GitCacheInventory implements Serializable
+{
+    private static final Logger log = Logger.getLogger(GitCacheInventory.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Keeps reports small for repositories with lots of branches.
+     */
+    static final int MAX_REPORTED_HEADS = 100;
+
+    /**
+     * Sizes of the cache directories as last measured, keyed by the cache directory. Walking a cache is costly, so it
+     * is only measured again once it was fetched into or its packs changed.
+     */
+    private static final ConcurrentMap<File, MeasuredSize> MEASURED_SIZES = Maps.newConcurrentMap();
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final List<Entry> entries;
+    private final long collectedAt;
+    private final int pendingDeletions;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public GitCacheInventory(@NotNull final List<Entry> entries, final long collectedAt)
+    {
+        this(entries, collectedAt, 0);
+    }
+
+    public GitCacheInventory(@NotNull final List<Entry> entries, final long collectedAt, final int pendingDeletions)
+    {
+        this.entries = ImmutableList.copyOf(entries);
+        this.collectedAt = collectedAt;
+        this.pendingDeletions = pendingDeletions;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Describes the cache directories under the cache root. Cache locks are not taken: sizes and refs of caches being
+     * fetched into may be slightly off. A cache is only measured again once it was fetched into or its packs changed.
+     */
+    @NotNull
+    public static GitCacheInventory collect(@NotNull final File cacheRoot)
+    {
+        final List<Entry> entries = Lists.newArrayList();
+        final File[] cacheDirectories = cacheRoot.listFiles(new FileFilter()
+        {
+            public boolean accept(final File pathname)
+            {
+                return pathname.isDirectory() && !GitCacheDirectory.isReservedName(pathname.getName());
+            }
+        });
+        final Set<File> existingDirectories = Sets.newHashSet();
+        if (!ArrayUtils.isEmpty(cacheDirectories))
+        {
+            for (final File cacheDirectory : cacheDirectories)
+            {
+                existingDirectories.add(cacheDirectory);
+                try
+                {
+                    entries.add(describe(cacheDirectory));
+                }
+                catch (Exception e)
+                {
+                    log.info("Could not describe git cache " + cacheDirectory, e);
+                }
+            }
+        }
+        MEASURED_SIZES.keySet().retainAll(existingDirectories);
+        return new GitCacheInventory(entries, System.currentTimeMillis(), GitCacheTrash.DEFAULT.getPendingDeletions(cacheRoot));
+    }
+
+    @NotNull
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    public long getCollectedAt()
+    {
+        return collectedAt;
+    }
+
+    /**
+     * @return number of deleted cache directories whose files are still being removed
+     * @see GitCacheTrash#getPendingDeletions(File)
+     */
+    public int getPendingDeletions()
+    {
+        return pendingDeletions;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static Entry describe(@NotNull final File cacheDirectory) throws IOException
+    {
+        final File gitDirectory = new File(cacheDirectory, Constants.DOT_GIT);
+        final File fetchHead = new File(gitDirectory, Constants.FETCH_HEAD);
+        final long lastFetch = fetchHead.exists() ? fetchHead.lastModified() : gitDirectory.lastModified();
+
+        final ImmutableMap.Builder<String, String> heads = ImmutableMap.builder();
+        if (gitDirectory.isDirectory())
+        {
+            final FileRepository repository = JGitRepositoryManager.SHARED.open(gitDirectory);
+            try
+            {
+                int count = 0;
+                for (final Map.Entry<String, Ref> head : repository.getRefDatabase().getRefs(Constants.R_HEADS).entrySet())
+                {
+                    if (head.getValue().getObjectId() != null && count++ < MAX_REPORTED_HEADS)
+                    {
+                        heads.put(head.getKey(), head.getValue().getObjectId().getName());
+                    }
+                }
+            }
+            finally
+            {
+                repository.close();
+            }
+        }
+        return new Entry(cacheDirectory.getName(), getSize(cacheDirectory, gitDirectory, lastFetch), lastFetch, heads.build());
+    }
+
+    private static long getSize(@NotNull final File cacheDirectory, @NotNull final File gitDirectory, final long lastFetch)
+    {
+        final long packsModified = new File(gitDirectory, "objects/pack").lastModified();
+        final MeasuredSize measured = MEASURED_SIZES.get(cacheDirectory);
+        if (measured != null && measured.lastFetch == lastFetch && measured.packsModified == packsModified)
+        {
+            return measured.sizeInBytes;
+        }
+        final long sizeInBytes = FileUtils.sizeOfDirectory(cacheDirectory);
+        MEASURED_SIZES.put(cacheDirectory, new MeasuredSize(lastFetch, packsModified, sizeInBytes));
+        return sizeInBytes;
+    }
+
+    private static final class MeasuredSize
+    {
+        private final long lastFetch;
+        private final long packsModified;
+        private final long sizeInBytes;
+
+        private MeasuredSize(final long lastFetch, final long packsModified, final long sizeInBytes)
+        {
+            this.lastFetch = lastFetch;
+            this.packsModified = packsModified;
+            this.sizeInBytes = sizeInBytes;
+        }
+    }
+
+    public static class Entry implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String sha;
+        private final long sizeInBytes;
+        private final long lastFetch;
+        private final Map<String, String> heads;
+
+        public Entry(@NotNull final String sha, final long sizeInBytes, final long lastFetch, @NotNull final Map<String, String> heads)
+        {
+            this.sha = sha;
+            this.sizeInBytes = sizeInBytes;
+            this.lastFetch = lastFetch;
+            this.heads = ImmutableMap.copyOf(heads);
+        }
+
+        /**
+         * @return the name of the cache directory
+         */
+        @NotNull
+        public String getSha()
+        {
+            return sha;
+        }
+
+        /**
+         * @return size of the cache directory as of the last fetch into it or change of its packs
+         */
+        public long getSizeInBytes()
+        {
+            return sizeInBytes;
+        }
+
+        public long getLastFetch()
+        {
+            return lastFetch;
+        }
+
+        /**
+         * @return branch name to commit id, at most {@link #MAX_REPORTED_HEADS} of them
+         */
+        @NotNull
+        public Map<String, String> getHeads()
+        {
+            return heads;
+        }
+    }
+}
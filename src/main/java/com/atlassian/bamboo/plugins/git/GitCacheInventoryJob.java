@@ -0,0 +1,60 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.sal.api.scheduling.PluginJob;
+import com.atlassian.sal.api.scheduling.PluginScheduler;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically asks remote agents to report their git cache inventory.
+ *
+ * @see GitCacheInventoryStore
+ */
+public class GitCacheInventoryJob implements LifecycleAware
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final String JOB_KEY = GitCacheInventoryJob.class.getName();
+    private static final String CACHE_HANDLER_KEY = "gitCacheHandler";
+
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+
+    private PluginScheduler pluginScheduler;
+    private GitCacheHandler gitCacheHandler;
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+
+    public void onStart()
+    {
+        if (GitCacheHandler.INVENTORY_INTERVAL_MINUTES <= 0)
+        {
+            return;
+        }
+        final long interval = TimeUnit.MINUTES.toMillis(GitCacheHandler.INVENTORY_INTERVAL_MINUTES);
+        pluginScheduler.scheduleJob(JOB_KEY, RequestInventories.class, ImmutableMap.<String, Object>of(CACHE_HANDLER_KEY, gitCacheHandler), new Date(), interval);
+    }
+
+    public static class RequestInventories implements PluginJob
+    {
+        public void execute(final Map<String, Object> jobDataMap)
+        {
+            ((GitCacheHandler) jobDataMap.get(CACHE_HANDLER_KEY)).requestCacheInventories();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    public void setPluginScheduler(final PluginScheduler pluginScheduler)
+    {
+        this.pluginScheduler = pluginScheduler;
+    }
+
+    public void setGitCacheHandler(final GitCacheHandler gitCacheHandler)
+    {
+        this.gitCacheHandler = gitCacheHandler;
+    }
+}
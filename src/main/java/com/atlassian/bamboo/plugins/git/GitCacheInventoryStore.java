@@ -0,0 +1,140 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side record of the git caches each remote agent reported holding. Reports older than the expiry are ignored:
+ * an agent that stopped reporting is treated as one whose inventory is unknown.
+ */
+public class GitCacheInventoryStore
+{
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final ConcurrentMap<Long, AgentReport> reports = Maps.newConcurrentMap();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Ticker ticker;
+    private final long expiryNanos;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public GitCacheInventoryStore(@NotNull final Ticker ticker, final long expiry, @NotNull final TimeUnit unit)
+    {
+        this.ticker = ticker;
+        this.expiryNanos = unit.toNanos(expiry);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    public void record(final long agentId, @NotNull final String agentName, @NotNull final GitCacheInventory inventory)
+    {
+        reports.put(agentId, new AgentReport(agentName, inventory, ticker.read()));
+        for (final Listener listener : listeners)
+        {
+            listener.inventoryRecorded(agentId, inventory);
+        }
+    }
+
+    public void addListener(@NotNull final Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull final Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    public void forget(final long agentId)
+    {
+        reports.remove(agentId);
+    }
+
+    /**
+     * @return the latest inventory of the agent, null if it is unknown or expired
+     */
+    @Nullable
+    public GitCacheInventory getInventory(final long agentId)
+    {
+        final AgentReport report = reports.get(agentId);
+        return report != null && !isExpired(report) ? report.inventory : null;
+    }
+
+    /**
+     * @return the cache as reported by each agent holding it, by agent name
+     */
+    @NotNull
+    public Map<String, GitCacheInventory.Entry> getHolders(@NotNull final String cacheSha)
+    {
+        final Map<String, GitCacheInventory.Entry> holders = Maps.newTreeMap();
+        for (final AgentReport report : reports.values())
+        {
+            if (isExpired(report))
+            {
+                continue;
+            }
+            for (final GitCacheInventory.Entry entry : report.inventory.getEntries())
+            {
+                if (entry.getSha().equals(cacheSha))
+                {
+                    holders.put(report.agentName, entry);
+                }
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * @return number of cache directories still being deleted, by name of the agents having any
+     */
+    @NotNull
+    public Map<String, Integer> getPendingDeletions()
+    {
+        final Map<String, Integer> pendingDeletions = Maps.newTreeMap();
+        for (final AgentReport report : reports.values())
+        {
+            if (!isExpired(report) && report.inventory.getPendingDeletions() > 0)
+            {
+                pendingDeletions.put(report.agentName, report.inventory.getPendingDeletions());
+            }
+        }
+        return pendingDeletions;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * Notified, on the thread recording it, of every inventory reported by an agent.
+     */
+    public interface Listener
+    {
+        void inventoryRecorded(long agentId, @NotNull GitCacheInventory inventory);
+    }
+
+    private boolean isExpired(@NotNull final AgentReport report)
+    {
+        return ticker.read() - report.receivedAtNanos > expiryNanos;
+    }
+
+    private static final class AgentReport
+    {
+        private final String agentName;
+        private final GitCacheInventory inventory;
+        private final long receivedAtNanos;
+
+        private AgentReport(final String agentName, final GitCacheInventory inventory, final long receivedAtNanos)
+        {
+            this.agentName = agentName;
+            this.inventory = inventory;
+            this.receivedAtNanos = receivedAtNanos;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes git cache directories in the background.
+ * <p/>
+ * A cache directory is first renamed out of the cache root into a sibling trash directory, so that the cache is
+ * immediately free to be recreated, and its files are then deleted by a pool shared by all callers. Directories left
+ * in the trash by a restart are deleted together with the next trashed directory.
+ */
+public class GitCacheTrash
+{
+    private static final Logger log = Logger.getLogger(GitCacheTrash.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int DELETE_THREADS = new SystemProperty(false, "atlassian.bamboo.git.delete.threads", "GIT_DELETE_THREADS").getValue(2);
+
+    static final String TRASH_DIRECTORY_SUFFIX = "-deleted";
+
+    public static final GitCacheTrash DEFAULT = new GitCacheTrash(new Supplier<ListeningExecutorService>()
+    {
+        public ListeningExecutorService get()
+        {
+            return GitExecutors.getCacheDeleteExecutor();
+        }
+    });
+
+    private static final AtomicLong trashCounter = new AtomicLong();
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final Supplier<ListeningExecutorService> executor;
+    private final Set<File> pending = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    GitCacheTrash(@NotNull final ListeningExecutorService executor)
+    {
+        this(Suppliers.ofInstance(executor));
+    }
+
+    private GitCacheTrash(@NotNull final Supplier<ListeningExecutorService> executor)
+    {
+        this.executor = executor;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Moves the cache directory to the trash and schedules its deletion. The caller is expected to hold the cache lock.
+     *
+     * @return future completing when the directory is deleted
+     * @throws IOException if the directory could not be moved, it is left in place then
+     */
+    @NotNull
+    public ListenableFuture<?> moveToTrash(@NotNull final File cacheDirectory) throws IOException
+    {
+        final File trashRoot = getTrashRoot(cacheDirectory.getParentFile());
+        FileUtils.forceMkdir(trashRoot);
+        final File trashed = new File(trashRoot, cacheDirectory.getName() + "-" + System.currentTimeMillis() + "-" + trashCounter.incrementAndGet());
+        if (!cacheDirectory.renameTo(trashed))
+        {
+            throw new IOException("Could not move " + cacheDirectory + " to " + trashed);
+        }
+        log.info("Moved cache directory " + cacheDirectory + " to " + trashed + ", deleting it in the background");
+        final ListenableFuture<?> deletion = schedule(trashed);
+        emptyTrash(cacheDirectory.getParentFile());
+        return deletion;
+    }
+
+    /**
+     * Schedules the deletion of directories left in the trash of the cache root, e.g. by a restart.
+     */
+    public void emptyTrash(@NotNull final File cacheRoot)
+    {
+        final File[] trashed = getTrashRoot(cacheRoot).listFiles();
+        if (!ArrayUtils.isEmpty(trashed))
+        {
+            for (final File directory : trashed)
+            {
+                schedule(directory);
+            }
+        }
+    }
+
+    /**
+     * Directories left in the trash by a restart are only counted once {@link #emptyTrash(File)} scheduled them.
+     *
+     * @return number of directories in the trash of the cache root whose deletion is scheduled or running
+     */
+    public int getPendingDeletions(@NotNull final File cacheRoot)
+    {
+        final File trashRoot = getTrashRoot(cacheRoot);
+        int pendingDeletions = 0;
+        for (final File trashed : pending)
+        {
+            if (trashRoot.equals(trashed.getParentFile()))
+            {
+                pendingDeletions++;
+            }
+        }
+        return pendingDeletions;
+    }
+
+    /**
+     * Forgets the deletions scheduled so far, to be called once the pool deleting them stopped: deletions it dropped
+     * are scheduled again by the next {@link #emptyTrash(File)}.
+     */
+    void clearPending()
+    {
+        pending.clear();
+    }
+
+    @NotNull
+    static File getTrashRoot(@NotNull final File cacheRoot)
+    {
+        return new File(cacheRoot.getParentFile(), cacheRoot.getName() + TRASH_DIRECTORY_SUFFIX);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private ListenableFuture<?> schedule(@NotNull final File trashed)
+    {
+        if (!pending.add(trashed))
+        {
+            // already being deleted by an earlier call
+            return Futures.immediateFuture(null);
+        }
+        try
+        {
+            return submitDeletion(trashed);
+        }
+        catch (RejectedExecutionException e)
+        {
+            pending.remove(trashed);
+            log.warn("Could not schedule the deletion of " + trashed + ", it will be retried with the next deletion");
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @NotNull
+    private ListenableFuture<?> submitDeletion(@NotNull final File trashed)
+    {
+        return executor.get().submit(new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                try
+                {
+                    final long start = System.currentTimeMillis();
+                    FileUtils.deleteDirectory(trashed);
+                    log.info("Deleted " + trashed + " in " + (System.currentTimeMillis() - start) + " ms");
+                }
+                catch (IOException e)
+                {
+                    log.error("Failed to delete cache directory " + trashed + ", it will be retried with the next deletion", e);
+                    throw e;
+                }
+                finally
+                {
+                    pending.remove(trashed);
+                }
+                return null;
+            }
+        });
+    }
+}
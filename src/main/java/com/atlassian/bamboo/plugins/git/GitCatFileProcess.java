@@ -0,0 +1,363 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A long lived {@code git cat-file --batch} process per repository, so that object queries don't fork a git process
+ * each. Processes are shut down after being idle for a while.
+ * <p/>
+ * Only positive answers are authoritative: a missing object, a dead process, a process not answering within the command
+ * timeout or an I/O error should make the caller fall back to running a regular git command.
+ */
+class GitCatFileProcess
+{
+    private static final Logger log = Logger.getLogger(GitCatFileProcess.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int IDLE_TIMEOUT_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.catFile.idleTimeout", "GIT_CAT_FILE_IDLE_TIMEOUT").getValue(60);
+    static final int MAX_PROCESSES = new SystemProperty(false, "atlassian.bamboo.git.catFile.maxProcesses", "GIT_CAT_FILE_MAX_PROCESSES").getValue(32);
+
+    private static final ConcurrentMap<String, GitCatFileProcess> PROCESSES = Maps.newConcurrentMap();
+
+    static
+    {
+        GitExecutors.addPeriodicTask(new Runnable()
+        {
+            public void run()
+            {
+                shutdownIdle(TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS));
+            }
+        }, IDLE_TIMEOUT_SECONDS / 2);
+    }
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final String key;
+    private final File headFile;
+    private final long headLastModified;
+    private final Process process;
+    private final OutputStream stdin;
+    private final DataInputStream stdout;
+    private final boolean mailmapConfigured;
+    private final long timeoutMillis;
+    private volatile long lastUsed;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private GitCatFileProcess(@NotNull final String key, @NotNull final String gitExecutable, @NotNull final File workingDirectory,
+                              final long timeoutMillis) throws IOException
+    {
+        this.key = key;
+        this.headFile = new File(new File(workingDirectory, Constants.DOT_GIT), Constants.HEAD);
+        this.headLastModified = headFile.lastModified();
+        this.timeoutMillis = timeoutMillis;
+        this.mailmapConfigured = isMailmapConfigured(gitExecutable, workingDirectory, timeoutMillis);
+        this.process = new ProcessBuilder(gitExecutable, "cat-file", "--batch").directory(workingDirectory).start();
+        this.stdin = new BufferedOutputStream(process.getOutputStream());
+        this.stdout = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        this.lastUsed = System.currentTimeMillis();
+        drain(process.getErrorStream(), workingDirectory);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @param timeoutMillis how long to wait for git to answer before killing the process
+     * @return the object the revision resolves to, or null if the object could not be read through a coprocess
+     */
+    @Nullable
+    static ObjectData query(@NotNull final String gitExecutable, @NotNull final File workingDirectory, @NotNull final String revision,
+                            final long timeoutMillis)
+    {
+        if (IDLE_TIMEOUT_SECONDS <= 0 || !new File(workingDirectory, Constants.DOT_GIT).isDirectory())
+        {
+            return null;
+        }
+
+        final String key = gitExecutable + '\0' + workingDirectory.getAbsolutePath();
+        GitCatFileProcess catFile = PROCESSES.get(key);
+        try
+        {
+            if (catFile != null && catFile.isStale())
+            {
+                // the repository was recreated since the process started
+                catFile.close();
+                catFile = null;
+            }
+            if (catFile == null)
+            {
+                if (PROCESSES.size() >= MAX_PROCESSES)
+                {
+                    return null;
+                }
+                final GitCatFileProcess newCatFile = new GitCatFileProcess(key, gitExecutable, workingDirectory, timeoutMillis);
+                catFile = PROCESSES.putIfAbsent(key, newCatFile);
+                if (catFile == null)
+                {
+                    catFile = newCatFile;
+                }
+                else
+                {
+                    newCatFile.close();
+                }
+            }
+            return catFile.read(revision);
+        }
+        catch (IOException e)
+        {
+            log.debug("git cat-file failed for " + revision + " in " + workingDirectory + ", falling back to git commands", e);
+            if (catFile != null)
+            {
+                catFile.close();
+            }
+            return null;
+        }
+    }
+
+    static void shutdownIdle(final long idleMillis)
+    {
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Map.Entry<String, GitCatFileProcess>> it = PROCESSES.entrySet().iterator(); it.hasNext(); )
+        {
+            final GitCatFileProcess catFile = it.next().getValue();
+            if (now - catFile.lastUsed >= idleMillis)
+            {
+                catFile.close();
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private boolean isStale()
+    {
+        return headFile.lastModified() != headLastModified;
+    }
+
+    @Nullable
+    private synchronized ObjectData read(@NotNull final String revision) throws IOException
+    {
+        if (closed.get())
+        {
+            throw new IOException("Process already closed");
+        }
+        lastUsed = System.currentTimeMillis();
+
+        // killing the process ends the blocked reads below
+        final ScheduledFuture<?> watchdog = GitExecutors.getScheduler().schedule(new Runnable()
+        {
+            public void run()
+            {
+                log.warn("git cat-file in " + headFile.getParentFile() + " did not answer within " + timeoutMillis + " ms, killing it");
+                close();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try
+        {
+            stdin.write(Constants.encode(revision + "\n"));
+            stdin.flush();
+
+            final String header = readLine();
+            if (header.endsWith(" missing") || header.endsWith(" ambiguous"))
+            {
+                return null;
+            }
+            final String[] parts = header.split(" ");
+            if (parts.length != 3)
+            {
+                throw new IOException("Unexpected git cat-file output: " + header);
+            }
+            final byte[] content = new byte[Integer.parseInt(parts[2])];
+            stdout.readFully(content);
+            if (stdout.read() != '\n')
+            {
+                throw new IOException("Unexpected end of git cat-file output");
+            }
+            return new ObjectData(parts[0], parts[1], content, mailmapConfigured);
+        }
+        finally
+        {
+            watchdog.cancel(false);
+        }
+    }
+
+    private String readLine() throws IOException
+    {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = stdout.read()) != '\n')
+        {
+            if (b == -1)
+            {
+                throw new IOException("git cat-file has exited");
+            }
+            line.write(b);
+        }
+        return line.toString(GitCommandProcessor.GIT_OUTPUT_ENCODING);
+    }
+
+    /**
+     * Not synchronized: it must be able to stop a process a reader is blocked on.
+     */
+    private void close()
+    {
+        PROCESSES.remove(key, this);
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        process.destroy();
+        IOUtils.closeQuietly(stdin);
+        IOUtils.closeQuietly(stdout);
+        reap(process);
+    }
+
+    private static void reap(@NotNull final Process process)
+    {
+        try
+        {
+            process.waitFor();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asks git, so that the system, global and XDG configs are all taken into account. Repositories whose config
+     * changes get a new process, as their HEAD changes too.
+     *
+     * @return true unless git confirmed that no mailmap is configured
+     */
+    private static boolean isMailmapConfigured(@NotNull final String gitExecutable, @NotNull final File workingDirectory, final long timeoutMillis)
+    {
+        try
+        {
+            final Process config = new ProcessBuilder(gitExecutable, "config", "--get-regexp", "^mailmap\\.")
+                    .directory(workingDirectory)
+                    .redirectErrorStream(true)
+                    .start();
+            final ScheduledFuture<?> watchdog = GitExecutors.getScheduler().schedule(new Runnable()
+            {
+                public void run()
+                {
+                    config.destroy();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            try
+            {
+                IOUtils.closeQuietly(config.getOutputStream());
+                final String output = IOUtils.toString(config.getInputStream(), GitCommandProcessor.GIT_OUTPUT_ENCODING);
+                // git config exits with 1 when nothing matches
+                return config.waitFor() != 1 || output.trim().length() > 0;
+            }
+            finally
+            {
+                watchdog.cancel(false);
+                IOUtils.closeQuietly(config.getInputStream());
+            }
+        }
+        catch (IOException e)
+        {
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    private static void drain(final InputStream stderr, final File workingDirectory)
+    {
+        final Thread drainer = new Thread("git-cat-file-stderr")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    final String errors = IOUtils.toString(stderr, GitCommandProcessor.GIT_OUTPUT_ENCODING);
+                    if (errors.length() > 0 && log.isDebugEnabled())
+                    {
+                        log.debug("git cat-file in " + workingDirectory + ": " + errors);
+                    }
+                }
+                catch (IOException e)
+                {
+                    // process went away
+                }
+                finally
+                {
+                    IOUtils.closeQuietly(stderr);
+                }
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    static final class ObjectData
+    {
+        private final String id;
+        private final String type;
+        private final byte[] content;
+        private final boolean mailmapConfigured;
+
+        ObjectData(final String id, final String type, final byte[] content, final boolean mailmapConfigured)
+        {
+            this.id = id;
+            this.type = type;
+            this.content = content;
+            this.mailmapConfigured = mailmapConfigured;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        public byte[] getContent()
+        {
+            return content;
+        }
+
+        /**
+         * @return true if a mailmap was configured for the repository when the process started: names and emails in
+         * the raw object may then differ from the ones git log shows
+         */
+        public boolean isMailmapConfigured()
+        {
+            return mailmapConfigured;
+        }
+    }
+}
@@ -23,6 +23,7 @@ public class GitCommandBuilder
 
     private final List<String> commands = new ArrayList<String>();
     private final Map<String, String> env = Maps.newHashMap();
+    private final Map<String, String> configOverrides = Maps.newLinkedHashMap();
     private static final Supplier<String> COMMAND_WITH_EMPTY_OUTPUT = Lazy.supplier(new Supplier<String>()
     {
         @Nullable
@@ -142,6 +143,18 @@ public class GitCommandBuilder
         return this;
     }
 
+    /**
+     * Config passed with {@code -c name=value}, overriding the config files for this command only.
+     */
+    public GitCommandBuilder config(@Nullable Map<String, String> configOverrides)
+    {
+        if (configOverrides != null)
+        {
+            this.configOverrides.putAll(configOverrides);
+        }
+        return this;
+    }
+
     public List<String> build()
     {
         List<String> commandArgs = new ArrayList<String>();
@@ -155,6 +168,13 @@ public class GitCommandBuilder
             commandArgs.add("git");
         }
 
+        // -c is an option of git itself, it has to come before the command
+        for (Map.Entry<String, String> configOverride : configOverrides.entrySet())
+        {
+            commandArgs.add("-c");
+            commandArgs.add(configOverride.getKey() + "=" + configOverride.getValue());
+        }
+
         commandArgs.addAll(commands);
 
         if (verbose || maxVerboseOutput)
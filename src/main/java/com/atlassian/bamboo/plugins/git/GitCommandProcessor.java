@@ -24,19 +24,23 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.SystemUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -52,6 +56,8 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     private static final String ENCODING_OPTION = "--encoding=" + GIT_OUTPUT_ENCODING;
     private static final Pattern GIT_VERSION_PATTERN = Pattern.compile("^git version (.*)");
     private static final Pattern LS_REMOTE_LINE_PATTERN = Pattern.compile("^([0-9a-f]{40})\\s+(.*)");
+    // git push --porcelain: <flag> TAB <from>:<to> TAB <summary>
+    private static final Pattern PUSH_PORCELAIN_LINE_PATTERN = Pattern.compile("^([ +\\-*!=])\t([^:\t]*):([^\t]+)\t(.*)$");
 
     private static final String SSH_OPTIONS = "-o StrictHostKeyChecking=no -o BatchMode=yes -o UserKnownHostsFile=/dev/null";
     private static final String SSH_WIN =
@@ -62,6 +68,7 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
                     "exec ssh " + SSH_OPTIONS + " $@\n";
 
     private static final String REMOTE_ORIGIN = Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + '/';
+    private static final String SUBMODULES_FILE = ".gitmodules";
 
     // ------------------------------------------------------------------------------------------------- Type Properties
 
@@ -73,6 +80,7 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     private String proxyErrorMessage;
     private Throwable proxyException;
     private String sshCommand;
+    private Map<String, String> configOverrides = Collections.emptyMap();
 
     // ---------------------------------------------------------------------------------------------------- Dependencies
     // ---------------------------------------------------------------------------------------------------- Constructors
@@ -292,10 +300,11 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
 
     public void runLocalCloneCommand(@NotNull final File workingDirectory, final File cacheDirectory) throws RepositoryException
     {
-        GitCommandBuilder commandBuilder = createCommandBuilder("clone", "file://" + cacheDirectory.getAbsolutePath());
+        // a local clone (no file:// url) skips the pack protocol: no upload-pack process and no ref negotiation,
+        // refs are written to a single packed-refs file
+        GitCommandBuilder commandBuilder = createCommandBuilder("clone", cacheDirectory.getAbsolutePath());
         commandBuilder.append("-n"); //no checkout
-        commandBuilder.append("--reference");
-        commandBuilder.append(cacheDirectory.getAbsolutePath()); //instruct git to create .git/objects/info/alternates
+        commandBuilder.append("--shared"); //instruct git to create .git/objects/info/alternates instead of copying objects
         commandBuilder.destination(workingDirectory.getAbsolutePath());
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
@@ -329,9 +338,63 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
 
+    public void runSubmoduleInitCommand(@NotNull final File workingDirectory) throws RepositoryException
+    {
+        runCommand(createCommandBuilder("submodule", "init"), workingDirectory, new LoggingOutputHandler(buildLogger));
+    }
+
+    /**
+     * Updates (non recursively) a single, initialised submodule.
+     *
+     * @param referenceRepository repository to borrow objects from, see git clone --reference
+     */
+    public void runSubmoduleUpdateCommand(@NotNull final File workingDirectory, @NotNull final String path, @Nullable final File referenceRepository) throws RepositoryException
+    {
+        final GitCommandBuilder commandBuilder = createCommandBuilder("submodule", "update", "--init");
+        if (referenceRepository != null)
+        {
+            commandBuilder.append("--reference").append(referenceRepository.getAbsolutePath());
+        }
+        commandBuilder.append("--").append(path);
+        runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
+    }
+
+    /**
+     * @return url of each initialised submodule, by submodule path
+     */
+    @NotNull
+    public Map<String, String> getSubmoduleUrls(@NotNull final File workingDirectory) throws RepositoryException
+    {
+        if (!new File(workingDirectory, SUBMODULES_FILE).isFile())
+        {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> pathsByName = getSubmoduleConfig(workingDirectory, createCommandBuilder("config", "-f", SUBMODULES_FILE, "--get-regexp", "^submodule\\..*\\.path$"), ".path");
+        final Map<String, String> urlsByName = getSubmoduleConfig(workingDirectory, createCommandBuilder("config", "--get-regexp", "^submodule\\..*\\.url$"), ".url");
+
+        final Map<String, String> urlsByPath = Maps.newLinkedHashMap();
+        for (final Map.Entry<String, String> entry : pathsByName.entrySet())
+        {
+            final String url = urlsByName.get(entry.getKey());
+            if (url != null)
+            {
+                urlsByPath.put(entry.getValue(), url);
+            }
+        }
+        return urlsByPath;
+    }
+
     @NotNull
     public String getRevisionHash(@NotNull final File workingDirectory, @NotNull String revision) throws RepositoryException
     {
+        if (ObjectId.isId(revision))
+        {
+            final GitCatFileProcess.ObjectData commit = GitCatFileProcess.query(gitExecutable, workingDirectory, revision + "^{commit}", getCommandTimeoutMillis());
+            if (commit != null)
+            {
+                return commit.getId();
+            }
+        }
         GitCommandBuilder commandBuilder = createCommandBuilder("log", "-1", ENCODING_OPTION, "--format=%H");
         commandBuilder.append(revision);
         final GitStringOutputHandler outputHandler = new GitStringOutputHandler(GIT_OUTPUT_ENCODING);
@@ -340,6 +403,77 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     }
 
     // -------------------------------------------------------------------------------------------------- Helper Methods
+    /**
+     * Parses "submodule.&lt;name&gt;&lt;suffix&gt; value" lines of git config --get-regexp.
+     */
+    @NotNull
+    private Map<String, String> getSubmoduleConfig(@NotNull final File workingDirectory, @NotNull final GitCommandBuilder commandBuilder, @NotNull final String suffix) throws RepositoryException
+    {
+        final LineOutputHandlerImpl outputHandler = new LineOutputHandlerImpl();
+        try
+        {
+            runCommand(commandBuilder, workingDirectory, outputHandler);
+        }
+        catch (GitCommandException e)
+        {
+            // git config exits with 1 when nothing matches
+            return Collections.emptyMap();
+        }
+        final Map<String, String> values = Maps.newLinkedHashMap();
+        for (final String line : outputHandler.getLines())
+        {
+            final int separator = line.indexOf(' ');
+            if (separator > 0)
+            {
+                final String key = line.substring(0, separator);
+                values.put(StringUtils.removeEnd(StringUtils.removeStart(key, "submodule."), suffix), line.substring(separator + 1).trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads the commit through a long lived git cat-file process instead of running git log.
+     *
+     * @return null if the commit could not be read that way and git log should be used
+     */
+    @Nullable
+    private CommitContext extractCommitWithCatFile(final File directory, final String targetRevision)
+    {
+        // only full ids: refs may move under a running process, and %cN would apply a mailmap the raw object doesn't
+        if (!ObjectId.isId(targetRevision) || new File(directory, ".mailmap").exists())
+        {
+            return null;
+        }
+        final GitCatFileProcess.ObjectData commit = GitCatFileProcess.query(gitExecutable, directory, targetRevision + "^{commit}", getCommandTimeoutMillis());
+        if (commit == null || commit.isMailmapConfigured())
+        {
+            return null;
+        }
+        final String logOutput = CommitOutputHandler.formatRawCommit(commit.getId(), commit.getContent());
+        if (logOutput == null)
+        {
+            return null;
+        }
+        final CommitOutputHandler coh = new CommitOutputHandler(Collections.<String>emptySet());
+        try
+        {
+            coh.process(new ByteArrayInputStream(logOutput.getBytes(GIT_OUTPUT_ENCODING)));
+        }
+        catch (Exception e)
+        {
+            log.debug("Could not parse commit " + commit.getId() + " read by git cat-file", e);
+            return null;
+        }
+        final List<CommitContext> commits = coh.getExtractedCommits();
+        return commits.isEmpty() ? null : commits.get(0);
+    }
+
+    private long getCommandTimeoutMillis()
+    {
+        return TimeUnit.MINUTES.toMillis(commandTimeoutInMinutes);
+    }
+
     private boolean isMatchingLocalRef(String refString, String branchName)
     {
         return refString.startsWith(Constants.R_HEADS) && StringUtils.removeStart(refString, Constants.R_HEADS).equals(branchName);
@@ -438,6 +572,57 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         return anyBranch;
     }
 
+    /**
+     * Pushes all the refspecs with one {@code git push}. git fails the command when a ref is rejected, the rejection is
+     * reported in the results instead; the command only fails if no ref could be pushed at all.
+     */
+    @NotNull
+    public List<GitPushResult> runPushCommand(@NotNull final File workingDirectory, @NotNull final GitRepositoryAccessData accessData, @NotNull final List<String> refSpecs) throws RepositoryException
+    {
+        final GitCommandBuilder commandBuilder = createCommandBuilder("push", "--porcelain", accessData.getRepositoryUrl());
+        for (final String refSpec : refSpecs)
+        {
+            commandBuilder.append(refSpec);
+        }
+        if (accessData.isVerboseLogs())
+        {
+            commandBuilder.verbose(true);
+        }
+        final LineOutputHandlerImpl outputHandler = new LineOutputHandlerImpl();
+        try
+        {
+            runCommand(commandBuilder, workingDirectory, outputHandler);
+        }
+        catch (GitCommandException e)
+        {
+            final List<GitPushResult> results = parsePushOutput(outputHandler.getLines());
+            if (results.isEmpty())
+            {
+                throw e;
+            }
+            return results;
+        }
+        return parsePushOutput(outputHandler.getLines());
+    }
+
+    @NotNull
+    static List<GitPushResult> parsePushOutput(@NotNull final List<String> lines)
+    {
+        final List<GitPushResult> results = Lists.newArrayList();
+        for (final String line : lines)
+        {
+            final Matcher matcher = PUSH_PORCELAIN_LINE_PATTERN.matcher(line);
+            if (!matcher.matches())
+            {
+                continue;
+            }
+            final char flag = matcher.group(1).charAt(0);
+            final GitPushResult.Status status = flag == '!' ? GitPushResult.Status.REJECTED : flag == '=' ? GitPushResult.Status.UP_TO_DATE : GitPushResult.Status.OK;
+            results.add(new GitPushResult(matcher.group(2), matcher.group(3), status, matcher.group(4)));
+        }
+        return results;
+    }
+
     @NotNull
     static ImmutableMap<String, String> parseLsRemoteOutput(final LineOutputHandlerImpl goh)
     {
@@ -462,7 +647,8 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     {
         return new GitCommandBuilder(commands)
                 .executable(gitExecutable)
-                .sshCommand(getSshScriptToRun());
+                .sshCommand(getSshScriptToRun())
+                .config(configOverrides);
     }
 
     @Override
@@ -537,6 +723,12 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     @NotNull
     public CommitContext extractCommit(final File directory, final String targetRevision) throws  RepositoryException
     {
+        final CommitContext catFileCommit = extractCommitWithCatFile(directory, targetRevision);
+        if (catFileCommit != null)
+        {
+            return catFileCommit;
+        }
+
         final CommitOutputHandler coh = new CommitOutputHandler(Collections.<String>emptySet());
         GitCommandBuilder commandBuilder = createCommandBuilder("log", "-1", ENCODING_OPTION, "--format=" + CommitOutputHandler.LOG_COMMAND_FORMAT_STRING, targetRevision);
         runCommand(commandBuilder, directory, coh);
@@ -551,19 +743,68 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
 
     public Pair<List<CommitContext>, Integer> runLogCommand(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision, @NotNull final Set<String> shallows, final int maxCommits) throws RepositoryException
     {
-        GitCommandBuilder commandBuilder = createCommandBuilder("log", "-p", "--name-only", ENCODING_OPTION, "--format=" + CommitOutputHandler.LOG_COMMAND_FORMAT_STRING);
-        if (lastVcsRevisionKey.equals(targetRevision))
+        return runLogCommand(cacheDirectory, lastVcsRevisionKey, targetRevision, shallows, maxCommits, true);
+    }
+
+    /**
+     * @param countSkipped whether commits past maxCommits are counted, the count is 0 otherwise
+     */
+    @NotNull
+    Pair<List<CommitContext>, Integer> runLogCommand(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision, @NotNull final Set<String> shallows, final int maxCommits,
+                                                     final boolean countSkipped) throws RepositoryException
+    {
+        // --name-only only lists paths, no patches are generated
+        GitCommandBuilder commandBuilder = createCommandBuilder("log", "--name-only", AbstractGitOperationHelper.DETECT_RENAMES ? "-M" : "--no-renames",
+                                                               ENCODING_OPTION, "--format=" + CommitOutputHandler.LOG_COMMAND_FORMAT_STRING);
+        final String range = lastVcsRevisionKey + ".." + targetRevision;
+        final boolean singleCommit = lastVcsRevisionKey.equals(targetRevision);
+        if (singleCommit)
         {
             commandBuilder.append(targetRevision).append("-1");
         }
         else
         {
-            commandBuilder.append(lastVcsRevisionKey + ".." + targetRevision);
+            if (maxCommits < Integer.MAX_VALUE)
+            {
+                // commits past the limit are only counted, see below
+                commandBuilder.append("--max-count=" + maxCommits);
+            }
+            commandBuilder.append(range);
         }
         log.info("from revision: [" + lastVcsRevisionKey + "]; to revision: [" + targetRevision + "]");
         final CommitOutputHandler coh = new CommitOutputHandler(shallows, maxCommits);
         runCommand(commandBuilder, cacheDirectory, coh);
-        return Pair.make(coh.getExtractedCommits(), coh.getSkippedCommitCount());
+
+        int skippedCommits = coh.getSkippedCommitCount();
+        if (countSkipped && !singleCommit && coh.getExtractedCommits().size() >= maxCommits)
+        {
+            final RevisionCountingOutputHandler countingOutputHandler = new RevisionCountingOutputHandler();
+            runCommand(createCommandBuilder("rev-list", range), cacheDirectory, countingOutputHandler);
+            skippedCommits = Math.max(0, countingOutputHandler.getRevisionCount() - coh.getExtractedCommits().size());
+        }
+        return Pair.make(coh.getExtractedCommits(), skippedCommits);
+    }
+
+    /**
+     * Lists the commits a {@link #runLogCommand} with the same arguments would return, without reading them.
+     *
+     * @return ids of the first maxCommits commits, newest first, and the number of commits in the range
+     */
+    @NotNull
+    public Pair<List<String>, Integer> getRevisions(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision, final int maxCommits) throws RepositoryException
+    {
+        final GitCommandBuilder commandBuilder = createCommandBuilder("rev-list");
+        if (lastVcsRevisionKey.equals(targetRevision))
+        {
+            commandBuilder.append("--max-count=1").append(targetRevision);
+        }
+        else
+        {
+            commandBuilder.append(lastVcsRevisionKey + ".." + targetRevision);
+        }
+        final RevisionCountingOutputHandler outputHandler = new RevisionCountingOutputHandler(maxCommits);
+        runCommand(commandBuilder, cacheDirectory, outputHandler);
+        return Pair.make(outputHandler.getRevisions(), outputHandler.getRevisionCount());
     }
 
     interface GitOutputHandler extends OutputHandler
@@ -616,6 +857,56 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         }
     }
 
+    /**
+     * Counts the revisions listed (e.g. by rev-list), keeping only the first ones. Error output is not counted.
+     */
+    static class RevisionCountingOutputHandler extends LineOutputHandler implements GitOutputHandler
+    {
+        private final int maxKept;
+        private final List<String> revisions = Lists.newArrayList();
+        private int revisionCount;
+
+        RevisionCountingOutputHandler()
+        {
+            this(0);
+        }
+
+        RevisionCountingOutputHandler(final int maxKept)
+        {
+            this.maxKept = maxKept;
+        }
+
+        @Override
+        protected void processLine(int i, String s)
+        {
+            final String revision = s.trim();
+            if (ObjectId.isId(revision))
+            {
+                if (revisionCount++ < maxKept)
+                {
+                    revisions.add(revision);
+                }
+            }
+        }
+
+        @NotNull
+        public List<String> getRevisions()
+        {
+            return revisions;
+        }
+
+        public int getRevisionCount()
+        {
+            return revisionCount;
+        }
+
+        @Override
+        public String getStdout()
+        {
+            return String.valueOf(revisionCount);
+        }
+    }
+
     static class LoggingOutputHandler extends LineOutputHandler implements GitCommandProcessor.GitOutputHandler
     {
         final BuildLogger buildLogger;
@@ -652,4 +943,9 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     {
         this.sshCommand = sshCommand;
     }
+
+    public void setConfigOverrides(@NotNull Map<String, String> configOverrides)
+    {
+        this.configOverrides = configOverrides;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the thread pools shared by the git operations of the plugin.
+ * <p/>
+ * The pools are used from code that is not wired by the plugin container (operation helpers are created per
+ * repository, on agents too), so they are created on first use. This component shuts them down, together with the git
+ * processes and repositories they keep open, when the plugin is disabled. Pools used again afterwards are created
+ * anew, and the periodic tasks registered so far are scheduled on the new scheduler.
+ */
+public class GitExecutors implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(GitExecutors.class);
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static ExecutorService diffExecutor;
+    private static ListeningExecutorService operationExecutor;
+    private static ListeningExecutorService cacheDeleteExecutor;
+    private static ExecutorService submoduleExecutor;
+    private static ScheduledExecutorService scheduler;
+
+    /** period in seconds by task */
+    private static final Map<Runnable, Long> periodicTasks = Maps.newLinkedHashMap();
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+
+    public void destroy()
+    {
+        shutdown();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Computes the changed files of commits.
+     */
+    @NotNull
+    static synchronized ExecutorService getDiffExecutor()
+    {
+        if (diffExecutor == null)
+        {
+            diffExecutor = Executors.newFixedThreadPool(Math.max(1, JGitOperationHelper.DIFF_THREADS), createThreadFactory("git-diff-%d"));
+        }
+        return diffExecutor;
+    }
+
+    /**
+     * Runs the operations of {@link ExecutorGitOperationHelper}s.
+     */
+    @NotNull
+    static synchronized ListeningExecutorService getOperationExecutor()
+    {
+        if (operationExecutor == null)
+        {
+            operationExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                    Math.max(1, ExecutorGitOperationHelper.SHARED_POOL_SIZE), createThreadFactory("git-operation-%d")));
+        }
+        return operationExecutor;
+    }
+
+    /**
+     * Deletes the directories in the trash of {@link GitCacheTrash#DEFAULT}.
+     */
+    @NotNull
+    static synchronized ListeningExecutorService getCacheDeleteExecutor()
+    {
+        if (cacheDeleteExecutor == null)
+        {
+            cacheDeleteExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                    Math.max(1, GitCacheTrash.DELETE_THREADS), createThreadFactory("git-cache-delete-%d")));
+        }
+        return cacheDeleteExecutor;
+    }
+
+    /**
+     * Brings submodule caches up to date for the checkouts of {@link NativeGitOperationHelper}.
+     */
+    @NotNull
+    static synchronized ExecutorService getSubmoduleExecutor()
+    {
+        if (submoduleExecutor == null)
+        {
+            submoduleExecutor = Executors.newFixedThreadPool(Math.max(1, NativeGitOperationHelper.SUBMODULE_JOBS), createThreadFactory("git-submodule-%d"));
+        }
+        return submoduleExecutor;
+    }
+
+    /**
+     * Runs short housekeeping tasks: timeouts and idle checks. Tasks must not block for long, they share one thread.
+     */
+    @NotNull
+    static synchronized ScheduledExecutorService getScheduler()
+    {
+        if (scheduler == null)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(createThreadFactory("git-scheduler"));
+            for (final Map.Entry<Runnable, Long> periodicTask : periodicTasks.entrySet())
+            {
+                schedulePeriodically(periodicTask.getKey(), periodicTask.getValue());
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Starts the scheduler, and with it the periodic tasks, unless it is running already.
+     */
+    static void startPeriodicTasks()
+    {
+        getScheduler();
+    }
+
+    /**
+     * Runs the task on the scheduler, from the time the scheduler is started, also after the pools were created anew.
+     * Owners of periodic tasks call {@link #startPeriodicTasks()} when they have something for the task to do.
+     */
+    static synchronized void addPeriodicTask(@NotNull final Runnable task, final long periodSeconds)
+    {
+        periodicTasks.put(task, periodSeconds);
+        if (scheduler != null)
+        {
+            schedulePeriodically(task, periodSeconds);
+        }
+    }
+
+    /**
+     * Stops the pools, interrupting running tasks, and closes the git processes and repositories kept open.
+     * Interrupted cache deletions are resumed with the next deletion.
+     */
+    static void shutdown()
+    {
+        synchronized (GitExecutors.class)
+        {
+            for (final ExecutorService executor : new ExecutorService[] {diffExecutor, operationExecutor, cacheDeleteExecutor, submoduleExecutor, scheduler})
+            {
+                if (executor != null)
+                {
+                    executor.shutdownNow();
+                }
+            }
+            diffExecutor = null;
+            operationExecutor = null;
+            cacheDeleteExecutor = null;
+            submoduleExecutor = null;
+            scheduler = null;
+        }
+        // deletions queued in the stopped pool are dropped, they are scheduled again with the next deletion
+        GitCacheTrash.DEFAULT.clearPending();
+        GitCatFileProcess.shutdownIdle(0);
+        JGitRepositoryManager.SHARED.closeIdle(0);
+        log.info("Shut down the git thread pools");
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static void schedulePeriodically(@NotNull final Runnable task, final long periodSeconds)
+    {
+        final long period = Math.max(1, periodSeconds);
+        scheduler.scheduleWithFixedDelay(task, period, period, TimeUnit.SECONDS);
+    }
+
+    @NotNull
+    private static ThreadFactory createThreadFactory(@NotNull final String nameFormat)
+    {
+        return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build();
+    }
+}
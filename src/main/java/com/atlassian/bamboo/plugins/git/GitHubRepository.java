@@ -249,6 +249,15 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
         return getGitRepository().collectChangesSinceLastBuild(planKey, lastVcsRevisionKey);
     }
 
+    /**
+     * @see GitRepository#collectChangesSinceLastPoll(String, String)
+     */
+    @NotNull
+    public BuildRepositoryChanges collectChangesSinceLastPoll(@NotNull String planKey, @Nullable String lastVcsRevisionKey) throws RepositoryException
+    {
+        return getGitRepository().collectChangesSinceLastPoll(planKey, lastVcsRevisionKey);
+    }
+
     @NotNull
     public String retrieveSourceCode(@NotNull BuildContext buildContext, @Nullable final String vcsRevision) throws RepositoryException
     {
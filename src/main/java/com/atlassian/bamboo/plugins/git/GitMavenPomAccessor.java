@@ -5,13 +5,26 @@ import com.atlassian.bamboo.repository.MavenPomAccessorAbstract;
 import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.ssh.SshProxyService;
 import com.atlassian.sal.api.message.I18nResolver;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
 
 public class GitMavenPomAccessor extends MavenPomAccessorAbstract<GitRepository>
 {
@@ -69,29 +82,129 @@ public class GitMavenPomAccessor extends MavenPomAccessorAbstract<GitRepository>
         repository.setAccessData(GitRepositoryAccessData.builder(repository.getAccessData()).repositoryUrl(mavenScmUrl).build());
     }
 
+    /**
+     * Writes the pom, and only the pom, of the latest revision to the destination. The pom is read from the object
+     * database: from the cache directory if the repository already has one (so that only what changed since its last
+     * fetch is transferred), from a shallow fetch into the destination otherwise.
+     */
     @NotNull
-    public File checkoutMavenPom(@NotNull File destinationPath) throws RepositoryException
+    public File checkoutMavenPom(@NotNull final File destinationPath) throws RepositoryException
     {
         log.info("checkoutMavenPom to: " + destinationPath);
-        GitOperationHelper helper = new JGitOperationHelper(repository.getSubstitutedAccessData(), new NullBuildLogger(), i18nResolver);
-        String targetRevision = helper.obtainLatestRevision();
-        helper.fetch(destinationPath, targetRevision, true);
-        helper.checkout(null, destinationPath, targetRevision, helper.getRevisionIfExists(destinationPath, Constants.HEAD));
-        final File pomLocation = new File(destinationPath, pathToPom);
-        if (pomLocation.isFile())
+        final GitOperationHelper helper = new JGitOperationHelper(repository.getSubstitutedAccessData(), new NullBuildLogger(), i18nResolver);
+        final String targetRevision = helper.obtainLatestRevision();
+
+        final File cacheDirectory = repository.getCacheDirectory();
+        if (!new File(cacheDirectory, Constants.DOT_GIT).isDirectory())
         {
-            return pomLocation;
+            helper.fetch(destinationPath, targetRevision, true);
+            return writePom(destinationPath, targetRevision, destinationPath);
         }
 
-        if (pomLocation.isDirectory())
+        try
+        {
+            return GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<File>()
+            {
+                public File call() throws Exception
+                {
+                    helper.fetch(cacheDirectory, targetRevision, false);
+                    return writePom(cacheDirectory, targetRevision, destinationPath);
+                }
+            });
+        }
+        catch (RepositoryException e)
         {
-            File candidate = new File(pomLocation, POM_XML);
-            if (candidate.isFile())
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private File writePom(@NotNull final File repositoryDirectory, @NotNull final String targetRevision, @NotNull final File destinationPath) throws RepositoryException
+    {
+        final String pomPath = StringUtils.strip(pathToPom, "/");
+        final FileRepository localRepository;
+        try
+        {
+            final File gitDirectory = new File(repositoryDirectory, Constants.DOT_GIT);
+            // a one-off clone into the destination is not worth keeping open, the cache is
+            localRepository = repositoryDirectory.equals(destinationPath) ? new FileRepository(gitDirectory) : JGitRepositoryManager.SHARED.open(gitDirectory);
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+        final RevWalk revWalk = new RevWalk(localRepository);
+        try
+        {
+            final ObjectId commitId = localRepository.resolve(targetRevision);
+            if (commitId == null)
+            {
+                throw new RepositoryException(i18nResolver.getText("repository.git.messages.cannotFindPom", pathToPom));
+            }
+            final RevTree tree = revWalk.parseCommit(commitId).getTree();
+
+            String resolvedPath = StringUtils.isEmpty(pomPath) ? POM_XML : pomPath;
+            ObjectId blobId = findFile(localRepository, tree, resolvedPath);
+            if (blobId == null)
             {
-                return candidate;
+                resolvedPath = resolvedPath + "/" + POM_XML;
+                blobId = findFile(localRepository, tree, resolvedPath);
             }
+            if (blobId == null)
+            {
+                throw new RepositoryException(i18nResolver.getText("repository.git.messages.cannotFindPom", pathToPom));
+            }
+
+            final File pomLocation = new File(destinationPath, resolvedPath);
+            FileUtils.forceMkdir(pomLocation.getParentFile());
+            final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(pomLocation));
+            try
+            {
+                localRepository.open(blobId, Constants.OBJ_BLOB).copyTo(outputStream);
+                // a pom that failed to flush is incomplete
+                outputStream.close();
+            }
+            finally
+            {
+                IOUtils.closeQuietly(outputStream);
+            }
+            return pomLocation;
         }
+        catch (IOException e)
+        {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+        finally
+        {
+            revWalk.release();
+            localRepository.close();
+        }
+    }
 
-        throw new RepositoryException(i18nResolver.getText("repository.git.messages.cannotFindPom", pathToPom));
+    /**
+     * @return id of the file (not directory) at the path, null if there is none
+     */
+    @Nullable
+    private static ObjectId findFile(@NotNull final FileRepository localRepository, @NotNull final RevTree tree, @NotNull final String path) throws IOException
+    {
+        final TreeWalk treeWalk = TreeWalk.forPath(localRepository, path, tree);
+        if (treeWalk == null)
+        {
+            return null;
+        }
+        try
+        {
+            return (treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE ? treeWalk.getObjectId(0) : null;
+        }
+        finally
+        {
+            treeWalk.release();
+        }
     }
 }
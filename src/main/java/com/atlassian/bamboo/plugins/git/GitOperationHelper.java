@@ -15,6 +15,16 @@ public interface GitOperationHelper
 {
     void pushRevision(@NotNull File sourceDirectory, @NotNull String revision) throws RepositoryException;
 
+    /**
+     * Pushes several refspecs (e.g. {@code refs/heads/a:refs/heads/a}, {@code +refs/tags/*:refs/tags/*}) to the remote
+     * in one session. Refs the remote rejects don't fail the push, check the results.
+     *
+     * @return one result per remote ref updated
+     * @throws RepositoryException if nothing could be pushed, e.g. the remote is not reachable
+     */
+    @NotNull
+    List<GitPushResult> pushRefs(@NotNull File sourceDirectory, @NotNull List<String> refSpecs) throws RepositoryException;
+
     String commit(@NotNull File sourceDirectory, @NotNull String message, @NotNull String comitterName, @NotNull String comitterEmail) throws RepositoryException;
 
     /*
@@ -30,6 +30,18 @@ public class GitOperationHelperFactory
         }
     }
 
+    /**
+     * @return helper running the operations of {@link #createGitOperationHelper} on a shared, bounded pool
+     */
+    public static AsyncGitOperationHelper createAsyncGitOperationHelper(final @NotNull GitRepository repository,
+                                                                        final @NotNull GitRepositoryAccessData accessData,
+                                                                        final @NotNull SshProxyService sshProxyService,
+                                                                        final @NotNull BuildLogger buildLogger,
+                                                                        final @NotNull I18nResolver i18nResolver) throws RepositoryException
+    {
+        return new ExecutorGitOperationHelper(createGitOperationHelper(repository, accessData, sshProxyService, buildLogger, i18nResolver));
+    }
+
     public static boolean isNativeGitEnabled(final GitRepository repository)
     {
         return StringUtils.isNotBlank(repository.getGitCapability());
@@ -0,0 +1,80 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Outcome of pushing one ref, see {@link GitOperationHelper#pushRefs(java.io.File, java.util.List)}.
+ */
+public class GitPushResult
+{
+    public enum Status
+    {
+        /** the remote ref was created, updated or deleted */
+        OK,
+        /** the remote ref already pointed at the pushed commit */
+        UP_TO_DATE,
+        /** the remote refused the update, e.g. because it is not a fast forward */
+        REJECTED
+    }
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final String localRef;
+    private final String remoteRef;
+    private final Status status;
+    private final String message;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public GitPushResult(@NotNull final String localRef, @NotNull final String remoteRef, @NotNull final Status status, @Nullable final String message)
+    {
+        this.localRef = localRef;
+        this.remoteRef = remoteRef;
+        this.status = status;
+        this.message = message;
+    }
+
+    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    /**
+     * @return source of the refspec, empty when the remote ref was deleted
+     */
+    @NotNull
+    public String getLocalRef()
+    {
+        return localRef;
+    }
+
+    @NotNull
+    public String getRemoteRef()
+    {
+        return remoteRef;
+    }
+
+    @NotNull
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return why the update was rejected, or a summary of the update as reported by the remote
+     */
+    @Nullable
+    public String getMessage()
+    {
+        return message;
+    }
+
+    public boolean isSuccessful()
+    {
+        return status != Status.REJECTED;
+    }
+
+    @Override
+    public String toString()
+    {
+        return localRef + ":" + remoteRef + " " + status + (message != null ? " (" + message + ")" : "");
+    }
+}
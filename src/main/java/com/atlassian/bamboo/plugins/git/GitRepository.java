@@ -56,11 +56,14 @@ import com.atlassian.sal.api.message.I18nResolver;
 import com.atlassian.util.concurrent.Supplier;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.opensymphony.webwork.ServletActionContext;
 import com.opensymphony.xwork.ValidationAware;
 import org.apache.commons.configuration.AbstractConfiguration;
@@ -87,6 +90,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 
 public class GitRepository
@@ -127,6 +131,7 @@ public class GitRepository
     public static final String REPOSITORY_GIT_COMMAND_TIMEOUT = "repository.git.commandTimeout";
     public static final String REPOSITORY_GIT_VERBOSE_LOGS = "repository.git.verbose.logs";
     public static final String REPOSITORY_GIT_FETCH_WHOLE_REPOSITORY = "repository.git.fetch.whole.repository";
+    public static final String REPOSITORY_GIT_TUNING = "repository.git.tuning";
     private static final String REPOSITORY_GIT_SHAREDCREDENTIALS_ID = "repository.git.sharedCrendentials";
     private static final String REPOSITORY_GIT_SHAREDCREDENTIALS_DELETED = "repository.git.sharedCredentials.deleted";
     private static final String TEMPORARY_GIT_PASSWORD = "temporary.git.password";
@@ -141,6 +146,14 @@ public class GitRepository
 
     static final int DEFAULT_COMMAND_TIMEOUT_IN_MINUTES = 180;
 
+    private static final AdaptivePollingScheduler POLLING_SCHEDULER = AdaptivePollingScheduler.createDefault();
+
+    /**
+     * Last commits by cache directory and revision. Concurrent lookups of the same revision share one load.
+     */
+    private static final CallableResultCache<CommitContext> LAST_COMMITS = CallableResultCache.build(
+            CacheBuilder.newBuilder().maximumSize(500).expireAfterAccess(1, TimeUnit.HOURS));
+
     // ------------------------------------------------------------------------------------------------- Type Properties
 
     private static final Logger log = Logger.getLogger(GitRepository.class);
@@ -209,8 +222,27 @@ public class GitRepository
         return collectChangesSinceLastBuild(planKey, lastVcsRevisionKey, null);
     }
 
+    /**
+     * Change detection for polling triggers. Unlike {@link #collectChangesSinceLastBuild(String, String)}, which also
+     * serves builds run manually or triggered by the repository and always asks the remote, this may skip asking the
+     * remote of a rarely changing repository and report the last revision as unchanged.
+     *
+     * @see AdaptivePollingScheduler
+     */
+    @NotNull
+    public BuildRepositoryChanges collectChangesSinceLastPoll(@NotNull String planKey, @Nullable final String lastVcsRevisionKey) throws RepositoryException
+    {
+        return collectChanges(planKey, lastVcsRevisionKey, null, true);
+    }
+
     @NotNull
     public BuildRepositoryChanges collectChangesSinceLastBuild(@NotNull String planKey, @Nullable final String lastVcsRevisionKey, @Nullable final String customRevision) throws RepositoryException
+    {
+        return collectChanges(planKey, lastVcsRevisionKey, customRevision, false);
+    }
+
+    @NotNull
+    private BuildRepositoryChanges collectChanges(@NotNull String planKey, @Nullable final String lastVcsRevisionKey, @Nullable final String customRevision, final boolean polling) throws RepositoryException
     {
         try
         {
@@ -218,7 +250,19 @@ public class GitRepository
             final GitRepositoryAccessData substitutedAccessData = getSubstitutedAccessData();
             final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, buildLogger, i18nResolver);
 
+            final String pollingKey = AdaptivePollingScheduler.createKey(substitutedAccessData);
+            if (AdaptivePollingScheduler.ENABLED && polling && customRevision == null && !POLLING_SCHEDULER.isPollDue(pollingKey, lastVcsRevisionKey))
+            {
+                // the scheduler last observed this very revision, it is what the skipped poll reports
+                return new BuildRepositoryChangesImpl(lastVcsRevisionKey);
+            }
+
             final String latestRevision = helper.obtainLatestRevision();
+            if (AdaptivePollingScheduler.ENABLED)
+            {
+                // also when not polling: a change seen by a manual or pushed build resets the polling interval
+                POLLING_SCHEDULER.recordPoll(pollingKey, latestRevision);
+            }
             final String fetchRevision = customRevision != null ? customRevision : substitutedAccessData.getVcsBranch().getName();
 
             final String targetRevision = customRevision != null ? customRevision : latestRevision;
@@ -376,6 +420,7 @@ public class GitRepository
                 {
                     public String call() throws Exception
                     {
+                        seedCacheFromBundle(cacheDirectory, buildLogger);
                         try
                         {
                             helper.fetch(cacheDirectory, refToFetch, false);
@@ -434,6 +479,15 @@ public class GitRepository
         }
     }
 
+    private void seedCacheFromBundle(@NotNull final File cacheDirectory, @NotNull final BuildLogger buildLogger)
+    {
+        final GitCacheBundles cacheBundles = isOnLocalAgent() ? null : GitCacheBundles.createDefault();
+        if (cacheBundles != null && cacheBundles.seedCache(cacheDirectory))
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.seededCacheFromBundle", cacheDirectory, cacheBundles.getBundleFile(cacheDirectory)));
+        }
+    }
+
     @VisibleForTesting
     @TestOnly
     protected boolean isOnLocalAgent()
@@ -464,6 +518,17 @@ public class GitRepository
         final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, new NullBuildLogger(), i18nResolver);
         helper.pushRevision(sourceDirectory, vcsRevisionKey);
     }
+
+    /**
+     * Pushes several refspecs in one session, see {@link GitOperationHelper#pushRefs(File, List)}.
+     */
+    @NotNull
+    public List<GitPushResult> pushRefs(@NotNull File sourceDirectory, @NotNull List<String> refSpecs) throws RepositoryException
+    {
+        final GitRepositoryAccessData substitutedAccessData = getSubstitutedAccessData();
+        final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, new NullBuildLogger(), i18nResolver);
+        return helper.pushRefs(sourceDirectory, refSpecs);
+    }
     
     @NotNull
     @Override
@@ -566,7 +631,8 @@ public class GitRepository
     @Override
     public boolean isMergingSupported()
     {
-        return GitOperationHelperFactory.isNativeGitEnabled(this);
+        // both native git and JGit can merge
+        return true;
     }
 
     @Override
@@ -586,25 +652,57 @@ public class GitRepository
         final String targetRevision = helper.obtainLatestRevision();
 
         final File cacheDirectory = getCacheDirectory();
-        Result<RepositoryException, CommitContext> result = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<Result<RepositoryException, CommitContext>>()
+        try
         {
-            public Result<RepositoryException, CommitContext> get()
+            return LAST_COMMITS.call(new Callable<CommitContext>()
+            {
+                public CommitContext call() throws RepositoryException
+                {
+                    return readCommitFromCache(helper, cacheDirectory, targetRevision);
+                }
+            }, cacheDirectory.getAbsolutePath(), targetRevision);
+        }
+        catch (UncheckedExecutionException e)
+        {
+            Throwables.propagateIfInstanceOf(e.getCause(), RepositoryException.class);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the commit from the cache, fetching it first if it isn't there. Only the fetch takes the cache lock, and it
+     * is skipped if a concurrent caller fetched the revision while this one waited for the lock. A read that fails for
+     * any reason, e.g. while a concurrent fetch repacks the cache, falls back to the locked fetch.
+     */
+    @NotNull
+    CommitContext readCommitFromCache(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @NotNull final String targetRevision)
+            throws RepositoryException
+    {
+        try
+        {
+            final CommitContext commit = helper.getCommit(cacheDirectory, targetRevision);
+            log.info("Found " + commit.getChangeSetId() + " as the last commit for " + this);
+            return commit;
+        }
+        catch (RepositoryException e)
+        {
+            log.debug("Revision " + targetRevision + " is not in " + cacheDirectory + " yet");
+        }
+
+        final Result<RepositoryException, Boolean> fetchResult = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<Result<RepositoryException, Boolean>>()
+        {
+            public Result<RepositoryException, Boolean> get()
             {
                 try
                 {
-                    try
-                    {
-                        final CommitContext commit = helper.getCommit(cacheDirectory, targetRevision);
-                        log.info("Found " + commit.getChangeSetId() + " as the last commit for " + this);
-                        return Result.result(commit);
-                    }
-                    catch (RepositoryException e)
+                    // the revision may have been fetched while waiting for the lock
+                    if (isRevisionInCache(helper, cacheDirectory, targetRevision))
                     {
-                        // Commit might not exist locally yet, but a fetch is expensive, so let's try getting it first
-                        log.debug("Fetching remote repository");
-                        helper.fetch(cacheDirectory, targetRevision, false);
-                        return Result.result(helper.getCommit(cacheDirectory, targetRevision));
+                        return Result.result(false);
                     }
+                    log.debug("Fetching remote repository");
+                    helper.fetch(cacheDirectory, targetRevision, false);
+                    return Result.result(true);
                 }
                 catch (RepositoryException e)
                 {
@@ -612,7 +710,20 @@ public class GitRepository
                 }
             }
         });
-        return result.getResultThrowException();
+        fetchResult.getResultThrowException();
+        return helper.getCommit(cacheDirectory, targetRevision);
+    }
+
+    private static boolean isRevisionInCache(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @NotNull final String revision)
+    {
+        try
+        {
+            return new File(cacheDirectory, Constants.DOT_GIT).isDirectory() && helper.checkRevisionExistsInCacheRepository(cacheDirectory, revision);
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
     }
 
     @Override
@@ -621,6 +732,7 @@ public class GitRepository
         buildConfiguration.setProperty(REPOSITORY_GIT_COMMAND_TIMEOUT, Integer.valueOf(DEFAULT_COMMAND_TIMEOUT_IN_MINUTES));
         buildConfiguration.clearTree(REPOSITORY_GIT_VERBOSE_LOGS);
         buildConfiguration.clearTree(REPOSITORY_GIT_FETCH_WHOLE_REPOSITORY);
+        buildConfiguration.clearTree(REPOSITORY_GIT_TUNING);
         buildConfiguration.setProperty(REPOSITORY_GIT_USE_SHALLOW_CLONES, true);
         buildConfiguration.setProperty(REPOSITORY_GIT_USE_REMOTE_AGENT_CACHE, false);
         buildConfiguration.clearTree(REPOSITORY_GIT_USE_SUBMODULES);
@@ -719,6 +831,7 @@ public class GitRepository
                 .verboseLogs(config.getBoolean(REPOSITORY_GIT_VERBOSE_LOGS, false))
                 .refSpecOverride(config.getBoolean(REPOSITORY_GIT_FETCH_WHOLE_REPOSITORY, false) ? Constants.R_HEADS + "*" : null)
                 .sharedCredentialsId(sharedCredentialsId)
+                .tuningProfile(parseTuningProfile(config.getString(REPOSITORY_GIT_TUNING, "")))
                 .build();
 
         pathToPom = config.getString(REPOSITORY_GIT_MAVEN_PATH);
@@ -745,6 +858,10 @@ public class GitRepository
         configuration.setProperty(REPOSITORY_GIT_COMMAND_TIMEOUT, accessData.getCommandTimeout());
         configuration.setProperty(REPOSITORY_GIT_VERBOSE_LOGS, accessData.isVerboseLogs());
         configuration.setProperty(REPOSITORY_GIT_FETCH_WHOLE_REPOSITORY, accessData.getRefSpecOverride() != null);
+        if (!accessData.getTuningProfile().isEmpty())
+        {
+            configuration.setProperty(REPOSITORY_GIT_TUNING, accessData.getTuningProfile().toString());
+        }
 
         final Long sharedCredentialsId = accessData.getSharedCredentialsId();
         if (sharedCredentialsId!=null)
@@ -849,9 +966,36 @@ public class GitRepository
             errorCollection.addError(REPOSITORY_GIT_MAVEN_PATH, i18nResolver.getText("repository.git.messages.invalidPomPath"));
         }
 
+        try
+        {
+            GitTuningProfile.parse(buildConfiguration.getString(REPOSITORY_GIT_TUNING));
+        }
+        catch (IllegalArgumentException e)
+        {
+            errorCollection.addError(REPOSITORY_GIT_TUNING, TextProviderUtils.getText(i18nResolver, "repository.git.messages.invalidTuning", e.getMessage()));
+        }
+
         return errorCollection;
     }
 
+    /**
+     * Configurations are validated when saved, an invalid profile can only come from an older plugin or hand edited
+     * config: it is ignored rather than failing the build.
+     */
+    @NotNull
+    private static GitTuningProfile parseTuningProfile(@Nullable final String text)
+    {
+        try
+        {
+            return GitTuningProfile.parse(text);
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.warn("Ignoring invalid git tuning profile: " + e.getMessage());
+            return GitTuningProfile.EMPTY;
+        }
+    }
+
     private GitAuthenticationType getGitAuthenticationType(final BuildConfiguration buildConfiguration)
     {
         final String chosenAuthentication = buildConfiguration.getString(REPOSITORY_GIT_AUTHENTICATION_TYPE);
@@ -1019,6 +1163,12 @@ public class GitRepository
         return accessData.isVerboseLogs();
     }
 
+    @Nullable
+    public String getTuningProfile()
+    {
+        return accessData.getTuningProfile().isEmpty() ? null : accessData.getTuningProfile().toString();
+    }
+
     public String getAuthTypeName()
     {
         return getAuthTypeName(getAuthType());
@@ -1107,7 +1257,7 @@ public class GitRepository
     @Override
     public String getHandlerDescription()
     {
-        return i18nResolver.getText("manageCaches.git.description");
+        return i18nResolver.getText("manageCaches.git.description") + gitCacheHandler.describePendingDeletions();
     }
 
     /**
@@ -24,6 +24,7 @@ public final class GitRepositoryAccessData implements Serializable
     private boolean verboseLogs;
     private Long sharedCredentialsId;
     private String refSpecOverride;
+    private GitTuningProfile tuningProfile;
 
     private transient ProxyRegistrationInfo proxyRegistrationInfo;
 
@@ -43,6 +44,7 @@ public final class GitRepositoryAccessData implements Serializable
         private boolean verboseLogs;
         private Long sharedCredentialsId;
         private String refSpecOverride;
+        private GitTuningProfile tuningProfile;
 
         public Builder clone(final GitRepositoryAccessData gitRepositoryAccessData)
         {
@@ -60,6 +62,7 @@ public final class GitRepositoryAccessData implements Serializable
             this.verboseLogs = gitRepositoryAccessData.verboseLogs;
             this.sharedCredentialsId = gitRepositoryAccessData.sharedCredentialsId;
             this.refSpecOverride = gitRepositoryAccessData.refSpecOverride;
+            this.tuningProfile = gitRepositoryAccessData.tuningProfile;
             return this;
         }
 
@@ -153,6 +156,12 @@ public final class GitRepositoryAccessData implements Serializable
             return this;
         }
 
+        public Builder tuningProfile(@Nullable final GitTuningProfile tuningProfile)
+        {
+            this.tuningProfile = tuningProfile;
+            return this;
+        }
+
         public GitRepositoryAccessData build()
         {
             GitRepositoryAccessData data = new GitRepositoryAccessData();
@@ -170,6 +179,7 @@ public final class GitRepositoryAccessData implements Serializable
             data.verboseLogs = this.verboseLogs;
             data.sharedCredentialsId = this.sharedCredentialsId;
             data.refSpecOverride = this.refSpecOverride;
+            data.tuningProfile = this.tuningProfile;
             return data;
         }
       
@@ -287,4 +297,10 @@ public final class GitRepositoryAccessData implements Serializable
     {
         return refSpecOverride;
     }
+
+    @NotNull
+    public GitTuningProfile getTuningProfile()
+    {
+        return tuningProfile != null ? tuningProfile : GitTuningProfile.EMPTY;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,363 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.IndexDiff;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Answers read-only queries about a local repository from its refs and object database, without forking a git
+ * process. Used by {@link NativeGitOperationHelper}, which keeps native git for network and work tree operations.
+ * <p/>
+ * Results match the output of the git commands they replace. An {@link IOException} means the query could not be
+ * answered in-process (no .git directory, repository format JGit does not understand...) and the caller should fall
+ * back to native git.
+ */
+class GitRepositoryReader
+{
+    enum MergeAnalysis
+    {
+        /** the target is already merged into HEAD, merging would do nothing */
+        UP_TO_DATE,
+        /** HEAD is an ancestor of the target, merging moves HEAD to the target */
+        FAST_FORWARD,
+        /** HEAD and the target diverged, a merge is needed */
+        MERGE
+    }
+
+    private static final Logger log = Logger.getLogger(GitRepositoryReader.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final String REMOTE_ORIGIN = Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + '/';
+    private static final String REMOTES_PREFIX = "remotes/";
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Equivalent of {@code git log -1 --format=%H <revision>}.
+     *
+     * @return id of the commit the revision resolves to, tags are peeled; null if the revision does not exist or does not
+     * point to a commit
+     */
+    @Nullable
+    public String resolveCommit(@NotNull final File workingDirectory, @NotNull final String revision) throws IOException
+    {
+        final FileRepository repository = open(workingDirectory);
+        try
+        {
+            final ObjectId objectId;
+            try
+            {
+                objectId = repository.resolve(revision);
+            }
+            catch (RevisionSyntaxException e)
+            {
+                return null;
+            }
+            if (objectId == null)
+            {
+                return null;
+            }
+
+            final RevWalk revWalk = new RevWalk(repository);
+            try
+            {
+                return revWalk.parseCommit(objectId).getName();
+            }
+            catch (MissingObjectException e)
+            {
+                return null;
+            }
+            catch (IncorrectObjectTypeException e)
+            {
+                return null;
+            }
+            finally
+            {
+                revWalk.release();
+            }
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * Equivalent of {@link GitCommandProcessor#getPossibleBranchNameForCheckout(File, String, String)}: the branch name
+     * if the local branch, or the origin branch when there is no local one, points at the revision.
+     */
+    @NotNull
+    public String getPossibleBranchNameForCheckout(@NotNull final File workingDirectory, @NotNull final String revision, @Nullable final String configuredBranchName) throws IOException
+    {
+        final String branchName = StringUtils.isBlank(configuredBranchName) ? Constants.MASTER : configuredBranchName;
+        final FileRepository repository = open(workingDirectory);
+        try
+        {
+            final Ref localRef = getExactRef(repository, Constants.R_HEADS + branchName);
+            if (localRef != null)
+            {
+                return revision.equals(localRef.getObjectId().getName()) ? branchName : "";
+            }
+            final Ref remoteRef = getExactRef(repository, REMOTE_ORIGIN + branchName);
+            return remoteRef != null && revision.equals(remoteRef.getObjectId().getName()) ? branchName : "";
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * Equivalent of {@link GitCommandProcessor#getBranchForSha(File, String, String)}, which parses
+     * {@code git branch -a --contains}: the configured branch if it contains the revision, otherwise the last branch
+     * (local branches first, then remote ones, each sorted by name) that does.
+     *
+     * @return empty string if no branch contains the revision
+     */
+    @NotNull
+    public String getBranchForSha(@NotNull final File workingDirectory, @NotNull final String revision, @Nullable final String configuredBranch) throws IOException
+    {
+        final FileRepository repository = open(workingDirectory);
+        try
+        {
+            final ObjectId revisionId;
+            try
+            {
+                revisionId = repository.resolve(revision);
+            }
+            catch (RevisionSyntaxException e)
+            {
+                return "";
+            }
+            if (revisionId == null)
+            {
+                return "";
+            }
+            final RevWalk revWalk = new RevWalk(repository);
+            try
+            {
+                final RevCommit revisionCommit = revWalk.parseCommit(revisionId);
+                String anyBranch = "";
+                for (final String prefix : new String[] {Constants.R_HEADS, Constants.R_REMOTES})
+                {
+                    for (final Map.Entry<String, Ref> entry : repository.getRefDatabase().getRefs(prefix).entrySet())
+                    {
+                        final Ref ref = entry.getValue();
+                        if (ref.getObjectId() == null || !isMergedInto(revWalk, revisionCommit, ref.getObjectId()))
+                        {
+                            continue;
+                        }
+                        final String branch;
+                        if (ref.isSymbolic())
+                        {
+                            // "remotes/origin/HEAD -> origin/master"
+                            branch = Repository.shortenRefName(ref.getTarget().getName());
+                        }
+                        else
+                        {
+                            branch = prefix.equals(Constants.R_HEADS) ? entry.getKey() : REMOTES_PREFIX + entry.getKey();
+                        }
+                        if (StringUtils.equals(branch, configuredBranch))
+                        {
+                            return branch;
+                        }
+                        anyBranch = branch;
+                    }
+                }
+                return anyBranch;
+            }
+            finally
+            {
+                revWalk.release();
+            }
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * @return commit recorded in the index for the submodule at the path, null if there is no submodule there
+     */
+    @Nullable
+    public String getSubmoduleCommit(@NotNull final File workingDirectory, @NotNull final String path) throws IOException
+    {
+        final FileRepository repository = open(workingDirectory);
+        try
+        {
+            final DirCacheEntry entry = repository.readDirCache().getEntry(path);
+            return entry != null && entry.getFileMode() == FileMode.GITLINK ? entry.getObjectId().getName() : null;
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * Decides what {@code git merge <targetRevision>} would do to the HEAD of the working directory.
+     *
+     * @return null if the target or HEAD doesn't resolve to a commit
+     */
+    @Nullable
+    public MergeAnalysis analyseMerge(@NotNull final File workingDirectory, @NotNull final String targetRevision) throws IOException
+    {
+        final FileRepository repository = open(workingDirectory);
+        try
+        {
+            final ObjectId headId = repository.resolve(Constants.HEAD);
+            final ObjectId targetId;
+            try
+            {
+                targetId = repository.resolve(targetRevision);
+            }
+            catch (RevisionSyntaxException e)
+            {
+                return null;
+            }
+            if (headId == null || targetId == null)
+            {
+                return null;
+            }
+            final RevWalk revWalk = new RevWalk(repository);
+            try
+            {
+                final RevCommit head = revWalk.parseCommit(headId);
+                final RevCommit target = revWalk.parseCommit(targetId);
+                if (revWalk.isMergedInto(target, head))
+                {
+                    return MergeAnalysis.UP_TO_DATE;
+                }
+                revWalk.reset();
+                return revWalk.isMergedInto(head, target) ? MergeAnalysis.FAST_FORWARD : MergeAnalysis.MERGE;
+            }
+            catch (MissingObjectException e)
+            {
+                return null;
+            }
+            catch (IncorrectObjectTypeException e)
+            {
+                return null;
+            }
+            finally
+            {
+                revWalk.release();
+            }
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * @return true if a merge has been started but not committed yet (MERGE_HEAD exists)
+     */
+    public boolean isMerging(@NotNull final File workingDirectory) throws IOException
+    {
+        final FileRepository repository = open(workingDirectory);
+        try
+        {
+            return new File(repository.getDirectory(), Constants.MERGE_HEAD).isFile();
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * In-process counterpart of {@code git status --porcelain --untracked-files=no}. Line ending and filter settings
+     * aren't applied the way native git applies them, so a true result may be a false alarm: callers should confirm it
+     * with native git, a false result can be trusted.
+     *
+     * @return true if the index or a tracked file differs from HEAD
+     */
+    public boolean hasTrackedChanges(@NotNull final File workingDirectory) throws IOException
+    {
+        final FileRepository repository = open(workingDirectory);
+        try
+        {
+            final IndexDiff indexDiff = new IndexDiff(repository, Constants.HEAD, new FileTreeIterator(repository));
+            indexDiff.diff();
+            return !indexDiff.getAdded().isEmpty()
+                   || !indexDiff.getChanged().isEmpty()
+                   || !indexDiff.getRemoved().isEmpty()
+                   || !indexDiff.getMissing().isEmpty()
+                   || !indexDiff.getModified().isEmpty();
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    FileRepository open(@NotNull final File workingDirectory) throws IOException
+    {
+        final File gitDirectory = new File(workingDirectory, Constants.DOT_GIT);
+        if (!gitDirectory.isDirectory())
+        {
+            throw new IOException("No git directory in " + workingDirectory);
+        }
+        final FileRepository repository = JGitRepositoryManager.SHARED.open(gitDirectory);
+        final int formatVersion = repository.getConfig().getInt(ConfigConstants.CONFIG_CORE_SECTION, ConfigConstants.CONFIG_KEY_REPO_FORMAT_VERSION, 0);
+        if (formatVersion != 0)
+        {
+            repository.close();
+            throw new IOException("Unsupported repository format version " + formatVersion + " in " + gitDirectory);
+        }
+        return repository;
+    }
+
+    /**
+     * {@link FileRepository#getRef(String)} searches several prefixes, make sure the ref found is the one asked for.
+     */
+    @Nullable
+    private static Ref getExactRef(@NotNull final FileRepository repository, @NotNull final String name) throws IOException
+    {
+        final Ref ref = repository.getRef(name);
+        return ref != null && ref.getName().equals(name) && ref.getObjectId() != null ? ref : null;
+    }
+
+    private static boolean isMergedInto(@NotNull final RevWalk revWalk, @NotNull final RevCommit base, @NotNull final ObjectId tipId) throws IOException
+    {
+        try
+        {
+            return revWalk.isMergedInto(base, revWalk.parseCommit(tipId));
+        }
+        catch (IncorrectObjectTypeException e)
+        {
+            return false;
+        }
+        catch (MissingObjectException e)
+        {
+            log.debug("Skipping ref pointing at missing object " + tipId.getName());
+            return false;
+        }
+    }
+}
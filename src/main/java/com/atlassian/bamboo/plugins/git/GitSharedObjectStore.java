@@ -0,0 +1,425 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Object store shared by all cache directories of the same remote repository.
+ * <p/>
+ * Cache directories are keyed by url and username, so the same repository reached with different credentials, urls or
+ * repository types is cached several times. With the shared store enabled each cache directory keeps its own refs but
+ * borrows objects from {@code _git-repositories-cache/_shared-objects/<sha of normalised url>} through
+ * {@code objects/info/alternates}. Packs and loose objects fetched into a cache directory are moved to the store
+ * afterwards, and the refs of every cache are mirrored in the store (under {@code refs/caches/<cache sha>/}) so that
+ * native fetches can advertise them and skip downloading objects another cache already has.
+ * <p/>
+ * Mis-grouping two remotes only costs disk space, objects are content addressed, so the url normalisation is lenient:
+ * scheme, credentials, port, trailing slash and {@code .git} suffix are ignored.
+ */
+public class GitSharedObjectStore
+{
+    private static final Logger log = Logger.getLogger(GitSharedObjectStore.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final boolean ENABLED = new SystemProperty(false, "atlassian.bamboo.git.sharedObjects", "GIT_SHARED_OBJECTS").getValue(false);
+
+    static final String SHARED_OBJECTS_DIRECTORY = "_shared-objects";
+    private static final String CACHE_REFS_PREFIX = Constants.R_REFS + "caches/";
+
+    private static final String ALTERNATES = "info/alternates";
+    private static final String PACK_EXTENSION = ".pack";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final String KEEP_EXTENSION = ".keep";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final File storeDirectory;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    GitSharedObjectStore(@NotNull final File storeDirectory)
+    {
+        this.storeDirectory = storeDirectory;
+    }
+
+    /**
+     * @return the shared store to be used for the directory or null if the directory is not a cache directory or the
+     * shared store is disabled
+     */
+    @Nullable
+    public static GitSharedObjectStore forDirectory(@NotNull final File directory, @NotNull final GitRepositoryAccessData accessData)
+    {
+        final File cacheRoot = directory.getAbsoluteFile().getParentFile();
+        if (!ENABLED || cacheRoot == null || !GitCacheDirectory.GIT_REPOSITORY_CACHE_DIRECTORY.equals(cacheRoot.getName()))
+        {
+            return null;
+        }
+        return new GitSharedObjectStore(getStoreDirectory(cacheRoot, accessData.getRepositoryUrl()));
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Makes sure the cache directory is a git repository that borrows objects from the store. Has to be called with the
+     * cache directory lock held, before the cache is fetched into. Objects the cache already has are kept.
+     */
+    public void attach(@NotNull final File cacheDirectory) throws IOException
+    {
+        final File gitDirectory = new File(cacheDirectory, Constants.DOT_GIT);
+        final File objectsDirectory = new File(gitDirectory, Constants.OBJECTS);
+        final File alternates = new File(objectsDirectory, ALTERNATES);
+        final String storeObjectsPath = getObjectsDirectory().getAbsolutePath();
+
+        withStoreLock(new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                if (!storeDirectory.exists())
+                {
+                    final FileRepository store = new FileRepository(storeDirectory);
+                    try
+                    {
+                        store.create(true);
+                    }
+                    finally
+                    {
+                        store.close();
+                    }
+                }
+
+                final List<String> alternatePaths = alternates.exists() ? FileUtils.readLines(alternates) : Lists.<String>newArrayList();
+                if (alternatePaths.contains(storeObjectsPath))
+                {
+                    return null;
+                }
+
+                // an existing cache is never reset: workspaces borrow its objects through their own alternates, its
+                // objects move over to the store with the next absorb instead
+                if (!gitDirectory.exists())
+                {
+                    final FileRepository cache = new FileRepository(gitDirectory);
+                    try
+                    {
+                        cache.create();
+                    }
+                    finally
+                    {
+                        cache.close();
+                    }
+                }
+
+                alternatePaths.add(storeObjectsPath);
+                FileUtils.writeLines(alternates, alternatePaths, "\n");
+                JGitRepositoryManager.SHARED.invalidate(gitDirectory);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Moves objects fetched into the cache directory to the store and mirrors the refs of the cache in the store. Has
+     * to be called with the cache directory lock held. Failures are logged only, the cache stays usable either way.
+     */
+    public void absorb(@NotNull final File cacheDirectory)
+    {
+        final File gitDirectory = new File(cacheDirectory, Constants.DOT_GIT);
+        try
+        {
+            withStoreLock(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    final File objectsDirectory = new File(gitDirectory, Constants.OBJECTS);
+                    final int moved = moveLooseObjects(objectsDirectory, getObjectsDirectory()) + movePacks(objectsDirectory, getObjectsDirectory());
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug("Moved " + moved + " files from " + cacheDirectory + " to " + storeDirectory);
+                    }
+                    mirrorRefs(gitDirectory, cacheDirectory.getName());
+                    // the packs JGit has open in the cache directory have moved
+                    JGitRepositoryManager.SHARED.invalidate(gitDirectory);
+                    return null;
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            log.warn("Failed to move objects of " + cacheDirectory + " to shared store " + storeDirectory, e);
+        }
+    }
+
+    /**
+     * Removes stores no longer used by any cache directory, and the refs mirrored for cache directories which are gone.
+     */
+    public static void deleteUnreferencedStores(@NotNull final File cacheRoot)
+    {
+        final File[] stores = new File(cacheRoot, SHARED_OBJECTS_DIRECTORY).listFiles();
+        if (ArrayUtils.isEmpty(stores))
+        {
+            return;
+        }
+
+        for (final File storeDirectory : stores)
+        {
+            final GitSharedObjectStore store = new GitSharedObjectStore(storeDirectory);
+            try
+            {
+                store.withStoreLock(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        // listed under the store lock: caches are attached under it, a cache attached after the
+                        // listing would otherwise lose its store
+                        final File[] caches = cacheRoot.listFiles(new FileFilter()
+                        {
+                            public boolean accept(final File pathname)
+                            {
+                                return pathname.isDirectory() && !GitCacheDirectory.isReservedName(pathname.getName());
+                            }
+                        });
+                        store.deleteIfUnreferenced(caches != null ? caches : new File[0]);
+                        return null;
+                    }
+                });
+            }
+            catch (Exception e)
+            {
+                log.warn("Failed to clean up shared store " + storeDirectory, e);
+            }
+        }
+    }
+
+    @NotNull
+    static File getStoreDirectory(@NotNull final File cacheRoot, @NotNull final String url)
+    {
+        return new File(new File(cacheRoot, SHARED_OBJECTS_DIRECTORY), GitCacheDirectory.calculateAggregateSha(normaliseUrl(url)));
+    }
+
+    @NotNull
+    static String normaliseUrl(@NotNull final String url)
+    {
+        String normalised;
+        try
+        {
+            final URIish uri = new URIish(url.trim());
+            final String path = StringUtils.defaultString(uri.getPath());
+            normalised = uri.getHost() != null
+                    ? uri.getHost().toLowerCase(Locale.ENGLISH) + "/" + StringUtils.stripStart(path, "/~")
+                    : path;
+        }
+        catch (URISyntaxException e)
+        {
+            normalised = url.trim();
+        }
+        normalised = StringUtils.stripEnd(normalised, "/");
+        normalised = StringUtils.removeEnd(normalised, Constants.DOT_GIT_EXT);
+        return StringUtils.stripEnd(normalised, "/");
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private File getObjectsDirectory()
+    {
+        return new File(storeDirectory, Constants.OBJECTS);
+    }
+
+    private void withStoreLock(final Callable<Void> callable) throws IOException
+    {
+        try
+        {
+            GitCacheDirectory.getCacheLock(storeDirectory).withLock(callable);
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    private void deleteIfUnreferenced(@NotNull final File[] caches) throws IOException
+    {
+        final String storeObjectsPath = getObjectsDirectory().getAbsolutePath();
+        boolean referenced = false;
+        for (final File cache : caches)
+        {
+            final File alternates = new File(new File(new File(cache, Constants.DOT_GIT), Constants.OBJECTS), ALTERNATES);
+            if (alternates.exists() && FileUtils.readLines(alternates).contains(storeObjectsPath))
+            {
+                referenced = true;
+                break;
+            }
+        }
+
+        if (!referenced)
+        {
+            log.info("Deleting unused shared store " + storeDirectory);
+            FileUtils.deleteDirectory(storeDirectory);
+            return;
+        }
+
+        final File[] mirroredCaches = new File(storeDirectory, CACHE_REFS_PREFIX).listFiles();
+        if (mirroredCaches != null)
+        {
+            for (final File mirroredCache : mirroredCaches)
+            {
+                if (!new File(storeDirectory.getParentFile().getParentFile(), mirroredCache.getName()).isDirectory())
+                {
+                    FileUtils.deleteDirectory(mirroredCache);
+                }
+            }
+        }
+    }
+
+    private void mirrorRefs(@NotNull final File cacheGitDirectory, @NotNull final String cacheName) throws IOException
+    {
+        final FileRepository cache = new FileRepository(cacheGitDirectory);
+        final FileRepository store = new FileRepository(storeDirectory);
+        try
+        {
+            final String prefix = CACHE_REFS_PREFIX + cacheName + "/";
+            final Map<String, Ref> mirrored = store.getRefDatabase().getRefs(prefix);
+            for (final Ref ref : cache.getRefDatabase().getRefs(Constants.R_REFS).values())
+            {
+                if (ref.isSymbolic() || ref.getObjectId() == null)
+                {
+                    continue;
+                }
+                final String name = ref.getName().substring(Constants.R_REFS.length());
+                final Ref existing = mirrored.get(name);
+                if (existing == null || !ref.getObjectId().equals(existing.getObjectId()))
+                {
+                    updateRef(store, prefix + name, ref.getObjectId());
+                }
+            }
+        }
+        finally
+        {
+            store.close();
+            cache.close();
+        }
+    }
+
+    private static void updateRef(@NotNull final FileRepository repository, @NotNull final String name, @NotNull final ObjectId objectId) throws IOException
+    {
+        final RefUpdate refUpdate = repository.updateRef(name);
+        refUpdate.setNewObjectId(objectId);
+        final RefUpdate.Result result = refUpdate.forceUpdate();
+        if (result == RefUpdate.Result.LOCK_FAILURE || result == RefUpdate.Result.IO_FAILURE)
+        {
+            log.warn("Failed to update " + name + " in " + repository.getDirectory() + ": " + result);
+        }
+    }
+
+    private static int movePacks(@NotNull final File from, @NotNull final File to) throws IOException
+    {
+        final File fromPacks = new File(from, "pack");
+        final File toPacks = new File(to, "pack");
+        final File[] indexes = fromPacks.listFiles();
+        if (indexes == null)
+        {
+            return 0;
+        }
+
+        int moved = 0;
+        for (final File index : indexes)
+        {
+            final String name = index.getName();
+            if (!name.endsWith(INDEX_EXTENSION))
+            {
+                continue;
+            }
+            final String baseName = StringUtils.removeEnd(name, INDEX_EXTENSION);
+            final File pack = new File(fromPacks, baseName + PACK_EXTENSION);
+            if (!pack.exists() || new File(fromPacks, baseName + KEEP_EXTENSION).exists())
+            {
+                // incomplete or still being written
+                continue;
+            }
+            FileUtils.forceMkdir(toPacks);
+            // the pack has to be in place before its index, readers discover packs through index files
+            moved += move(pack, new File(toPacks, pack.getName()));
+            moved += move(index, new File(toPacks, name));
+        }
+        return moved;
+    }
+
+    private static int moveLooseObjects(@NotNull final File from, @NotNull final File to) throws IOException
+    {
+        final File[] fanOutDirectories = from.listFiles(new FileFilter()
+        {
+            public boolean accept(final File pathname)
+            {
+                return pathname.isDirectory() && pathname.getName().length() == 2;
+            }
+        });
+        if (fanOutDirectories == null)
+        {
+            return 0;
+        }
+
+        int moved = 0;
+        for (final File fanOutDirectory : fanOutDirectories)
+        {
+            final File[] objects = fanOutDirectory.listFiles();
+            if (objects == null)
+            {
+                continue;
+            }
+            final File target = new File(to, fanOutDirectory.getName());
+            for (final File object : objects)
+            {
+                if (object.getName().length() != Constants.OBJECT_ID_STRING_LENGTH - 2)
+                {
+                    continue;
+                }
+                FileUtils.forceMkdir(target);
+                moved += move(object, new File(target, object.getName()));
+            }
+        }
+        return moved;
+    }
+
+    private static int move(@NotNull final File source, @NotNull final File target) throws IOException
+    {
+        if (target.exists())
+        {
+            // same name means same content
+            FileUtils.forceDelete(source);
+            return 0;
+        }
+        if (!source.renameTo(target))
+        {
+            throw new IOException("Cannot move " + source + " to " + target);
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,295 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pack and transfer settings of a repository, applied by both helpers: native git gets them as {@code -c} config
+ * overrides, JGit as the pack config of its transports and the settings of its process wide window cache. Settings
+ * that are not set are left to git's and JGit's defaults.
+ * <p/>
+ * Settings are written as git config, one {@code name=value} per line (sizes take the k, m and g suffixes). Agents may
+ * set their own defaults with the {@code atlassian.bamboo.git.tuning} system property (settings separated by
+ * semicolons), e.g. pack threads matching their number of cores; the settings of the repository win.
+ */
+public final class GitTuningProfile implements Serializable
+{
+    private static final Logger log = Logger.getLogger(GitTuningProfile.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String CORE_COMPRESSION = "core.compression";
+    static final String PACK_THREADS = "pack.threads";
+    static final String PACK_WINDOW_MEMORY = "pack.windowMemory";
+    static final String CORE_DELTA_BASE_CACHE_LIMIT = "core.deltaBaseCacheLimit";
+    static final String HTTP_POST_BUFFER = "http.postBuffer";
+    static final String CORE_PACKED_GIT_LIMIT = "core.packedGitLimit";
+    /** JGit only, native git always maps pack files */
+    static final String CORE_PACKED_GIT_MMAP = "core.packedGitMMAP";
+
+    private static final String[] SETTINGS = {
+            CORE_COMPRESSION, PACK_THREADS, PACK_WINDOW_MEMORY, CORE_DELTA_BASE_CACHE_LIMIT, HTTP_POST_BUFFER,
+            CORE_PACKED_GIT_LIMIT, CORE_PACKED_GIT_MMAP
+    };
+
+    public static final GitTuningProfile EMPTY = new GitTuningProfile(Collections.<String, String>emptyMap());
+
+    private static final GitTuningProfile AGENT_DEFAULTS = parseAgentDefaults(
+            new SystemProperty(false, "atlassian.bamboo.git.tuning", "GIT_TUNING").getValue(""));
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final Map<String, String> settings;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private GitTuningProfile(@NotNull final Map<String, String> settings)
+    {
+        this.settings = ImmutableMap.copyOf(settings);
+    }
+
+    /**
+     * @param text settings separated by new lines or semicolons, may be blank
+     * @throws IllegalArgumentException if a setting is unknown or its value invalid
+     */
+    @NotNull
+    public static GitTuningProfile parse(@Nullable final String text)
+    {
+        final Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (final String line : StringUtils.split(StringUtils.defaultString(text), "\r\n;"))
+        {
+            if (StringUtils.isBlank(line))
+            {
+                continue;
+            }
+            final String name = getSettingName(StringUtils.substringBefore(line, "=").trim());
+            if (name == null || !line.contains("="))
+            {
+                throw new IllegalArgumentException("Unknown setting '" + line.trim() + "', supported are " + StringUtils.join(SETTINGS, ", "));
+            }
+            final String value = StringUtils.substringAfter(line, "=").trim();
+            checkValue(name, value);
+            settings.put(name, value);
+        }
+        return settings.isEmpty() ? EMPTY : new GitTuningProfile(settings);
+    }
+
+    /**
+     * @return the profile, completed with the defaults of this agent
+     */
+    @NotNull
+    public static GitTuningProfile withAgentDefaults(@Nullable final GitTuningProfile profile)
+    {
+        if (profile == null || profile.settings.isEmpty())
+        {
+            return AGENT_DEFAULTS;
+        }
+        final Map<String, String> settings = new LinkedHashMap<String, String>(AGENT_DEFAULTS.settings);
+        settings.putAll(profile.settings);
+        return new GitTuningProfile(settings);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    public boolean isEmpty()
+    {
+        return settings.isEmpty();
+    }
+
+    /**
+     * @return settings to pass to native git with {@code -c name=value}
+     */
+    @NotNull
+    public Map<String, String> getGitConfigOverrides()
+    {
+        final Map<String, String> overrides = new LinkedHashMap<String, String>(settings);
+        overrides.remove(CORE_PACKED_GIT_MMAP);
+        return overrides;
+    }
+
+    /**
+     * Applies the settings used when JGit writes packs (pushing, uploading).
+     */
+    public void applyTo(@NotNull final PackConfig packConfig)
+    {
+        if (getCompressionLevel() != null)
+        {
+            packConfig.setCompressionLevel(getCompressionLevel());
+        }
+        if (getPackThreads() != null)
+        {
+            packConfig.setThreads(getPackThreads());
+        }
+        if (getPackWindowMemory() != null)
+        {
+            packConfig.setDeltaSearchMemoryLimit(getPackWindowMemory());
+        }
+    }
+
+    @Nullable
+    public Integer getCompressionLevel()
+    {
+        return settings.containsKey(CORE_COMPRESSION) ? Integer.valueOf(settings.get(CORE_COMPRESSION)) : null;
+    }
+
+    @Nullable
+    public Integer getPackThreads()
+    {
+        return settings.containsKey(PACK_THREADS) ? Integer.valueOf(settings.get(PACK_THREADS)) : null;
+    }
+
+    @Nullable
+    public Long getPackWindowMemory()
+    {
+        return getSize(PACK_WINDOW_MEMORY);
+    }
+
+    @Nullable
+    public Long getDeltaBaseCacheLimit()
+    {
+        return getSize(CORE_DELTA_BASE_CACHE_LIMIT);
+    }
+
+    @Nullable
+    public Long getHttpPostBuffer()
+    {
+        return getSize(HTTP_POST_BUFFER);
+    }
+
+    @Nullable
+    public Long getPackedGitLimit()
+    {
+        return getSize(CORE_PACKED_GIT_LIMIT);
+    }
+
+    @Nullable
+    public Boolean getPackedGitMMAP()
+    {
+        return settings.containsKey(CORE_PACKED_GIT_MMAP) ? Boolean.valueOf(settings.get(CORE_PACKED_GIT_MMAP)) : null;
+    }
+
+    /**
+     * @return the settings in the format {@link #parse(String)} reads
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder text = new StringBuilder();
+        for (final Map.Entry<String, String> setting : settings.entrySet())
+        {
+            if (text.length() > 0)
+            {
+                text.append('\n');
+            }
+            text.append(setting.getKey()).append('=').append(setting.getValue());
+        }
+        return text.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        return o instanceof GitTuningProfile && settings.equals(((GitTuningProfile) o).settings);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return settings.hashCode();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @Nullable
+    private static String getSettingName(@NotNull final String name)
+    {
+        // git config names are case insensitive
+        for (final String setting : SETTINGS)
+        {
+            if (setting.equalsIgnoreCase(name))
+            {
+                return setting;
+            }
+        }
+        return null;
+    }
+
+    private static void checkValue(@NotNull final String name, @NotNull final String value)
+    {
+        try
+        {
+            if (CORE_COMPRESSION.equals(name))
+            {
+                final int level = Integer.parseInt(value);
+                if (level < -1 || level > 9)
+                {
+                    throw new IllegalArgumentException(name + " must be between -1 and 9");
+                }
+            }
+            else if (PACK_THREADS.equals(name))
+            {
+                if (Integer.parseInt(value) < 0)
+                {
+                    throw new IllegalArgumentException(name + " must not be negative");
+                }
+            }
+            else if (CORE_PACKED_GIT_MMAP.equals(name))
+            {
+                if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value))
+                {
+                    throw new IllegalArgumentException(name + " must be true or false");
+                }
+            }
+            else if (parseSize(value) <= 0)
+            {
+                throw new IllegalArgumentException(name + " must be positive");
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid value '" + value + "' of " + name, e);
+        }
+    }
+
+    @Nullable
+    private Long getSize(@NotNull final String name)
+    {
+        return settings.containsKey(name) ? parseSize(settings.get(name)) : null;
+    }
+
+    /**
+     * Sizes as git reads them: a number, optionally followed by k, m or g.
+     */
+    static long parseSize(@NotNull final String value)
+    {
+        final String lowerCase = value.toLowerCase();
+        final char unit = lowerCase.isEmpty() ? ' ' : lowerCase.charAt(lowerCase.length() - 1);
+        final long multiplier = unit == 'k' ? 1024L : unit == 'm' ? 1024L * 1024 : unit == 'g' ? 1024L * 1024 * 1024 : 1;
+        final String number = multiplier == 1 ? lowerCase : lowerCase.substring(0, lowerCase.length() - 1);
+        return Long.parseLong(number.trim()) * multiplier;
+    }
+
+    @NotNull
+    private static GitTuningProfile parseAgentDefaults(@NotNull final String text)
+    {
+        try
+        {
+            return parse(text);
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.warn("Ignoring invalid git tuning defaults of this agent: " + e.getMessage());
+            return EMPTY;
+        }
+    }
+}
@@ -6,7 +6,6 @@ import com.atlassian.bamboo.build.CommandLogEntry;
 import com.atlassian.bamboo.build.logger.BuildLogger;
 import com.atlassian.bamboo.commit.Commit;
 import com.atlassian.bamboo.commit.CommitContext;
-import com.atlassian.bamboo.commit.CommitFileImpl;
 import com.atlassian.bamboo.commit.CommitImpl;
 import com.atlassian.bamboo.plan.branch.VcsBranch;
 import com.atlassian.bamboo.plan.branch.VcsBranchImpl;
@@ -17,32 +16,47 @@ import com.atlassian.bamboo.util.TextProviderUtils;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChangesImpl;
 import com.atlassian.sal.api.message.I18nResolver;
+import com.atlassian.bamboo.utils.SystemProperty;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.CharEncoding;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.dircache.DirCacheCheckout;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.IndexDiff;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RepositoryState;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.storage.file.RefDirectory;
+import org.eclipse.jgit.storage.pack.PackConfig;
 import org.eclipse.jgit.transport.FetchConnection;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.transport.SshSessionFactory;
 import org.eclipse.jgit.transport.SshTransport;
 import org.eclipse.jgit.transport.TagOpt;
@@ -50,6 +64,7 @@ import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.TransportHttp;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -62,6 +77,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class JGitOperationHelper extends AbstractGitOperationHelper
@@ -69,6 +90,16 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
     @SuppressWarnings("UnusedDeclaration")
     private static final Logger log = Logger.getLogger(JGitOperationHelper.class);
     // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int DIFF_THREADS = new SystemProperty(false, "atlassian.bamboo.git.diff.threads", "GIT_DIFF_THREADS").getValue(Runtime.getRuntime().availableProcessors());
+
+    private static final String COMMIT_CACHE_KEY = "jgit";
+
+    private static final String HTTP_SECTION = "http";
+    private static final String POST_BUFFER_KEY = "postBuffer";
+
+    private static FileRepository remoteOnlyRepository;
+
     // ------------------------------------------------------------------------------------------------- Type Properties
     // ---------------------------------------------------------------------------------------------------- Dependencies
     // ---------------------------------------------------------------------------------------------------- Constructors
@@ -77,31 +108,56 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
                                final @NotNull I18nResolver i18nResolver)
     {
         super(accessData, buildLogger, i18nResolver);
+        JGitWindowCache.ensure(GitTuningProfile.withAgentDefaults(accessData != null ? accessData.getTuningProfile() : null));
     }
 
     // ----------------------------------------------------------------------------------------------- Interface Methods
 
+    /**
+     * In-process equivalent of {@code git commit --all}: commits modified tracked files and a merge left uncommitted by
+     * {@link #merge(File, String, String, String)}. Committing without changes is a no-op.
+     *
+     * @return the revision of HEAD after the commit
+     */
     @Override
     public String commit(@NotNull File sourceDirectory, @NotNull String message, @NotNull String comitterName, @NotNull String comitterEmail) throws RepositoryException
     {
-        throw new UnsupportedOperationException("JGit implementation does not support commit, please use native Git");
-        //has to be modified to make empty commit a no-op
-        //try
-        //{
-        //    File gitDir = new File(sourceDirectory, Constants.DOT_GIT);
-        //    FileRepository fileRepository = new FileRepository(gitDir);
-        //    Git git = new Git(fileRepository);
-        //    git.add().addFilepattern(".").call();
-        //    return git.commit().setMessage(message).setCommitter(comitterName, comitterEmail).call().name();
-        //}
-        //catch (IOException e)
-        //{
-        //    throw new RepositoryException("IOException during committing", e);
-        //}
-        //catch (GitAPIException e)
-        //{
-        //    throw new RepositoryException("GitAPIException during committing", e);
-        //}
+        try
+        {
+            final FileRepository repository = createLocalRepository(sourceDirectory, null);
+            try
+            {
+                if (!containsSomethingToCommit(repository))
+                {
+                    log.debug("Nothing to commit");
+                    return getCurrentRevision(sourceDirectory);
+                }
+                final PersonIdent identity = new PersonIdent(comitterName, comitterEmail);
+                return new Git(repository).commit()
+                        .setAll(true)
+                        .setMessage(message)
+                        .setAuthor(identity)
+                        .setCommitter(identity)
+                        .call()
+                        .name();
+            }
+            finally
+            {
+                repository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.commitFailed", sourceDirectory)) + e.getMessage(), e);
+        }
+        catch (GitAPIException e)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.commitFailed", sourceDirectory)) + e.getMessage(), e);
+        }
+        catch (JGitInternalException e)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.commitFailed", sourceDirectory)) + e.getMessage(), e);
+        }
     }
 
     private String doCheckout(@NotNull final FileRepository localRepository,
@@ -201,13 +257,164 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
     }
 
+    /**
+     * In-process equivalent of {@code git merge --no-commit}: fast forwards HEAD when possible, otherwise merges into the
+     * index and work tree and leaves MERGE_HEAD for {@link #commit(File, String, String, String)}. Conflicts fail the
+     * merge and leave the workspace at HEAD, without a merge in progress.
+     *
+     * @return true if modified files exist in the directory or current revision in the directory has changed
+     */
     @Override
     public boolean merge(@NotNull final File workspaceDir, @NotNull final String targetRevision,
-                         @NotNull String committerName, @NotNull String committerEmail)
+                         @NotNull String committerName, @NotNull String committerEmail) throws RepositoryException
+    {
+        try
+        {
+            final FileRepository repository = createLocalRepository(workspaceDir, null);
+            try
+            {
+                return merge(repository, targetRevision, new PersonIdent(committerName, committerEmail));
+            }
+            finally
+            {
+                repository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.mergeFailed", targetRevision)) + e.getMessage(), e);
+        }
+    }
+
+    private boolean merge(@NotNull final FileRepository repository, @NotNull final String targetRevision, @NotNull final PersonIdent identity)
+            throws IOException, RepositoryException
     {
-        throw new UnsupportedOperationException("JGit implementation does not support merging, please use native Git");
+        final ObjectId headId = repository.resolve(Constants.HEAD);
+        final ObjectId targetId = repository.resolve(targetRevision);
+        if (headId == null || targetId == null)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.mergeFailed", targetRevision))
+                                          + " Cannot resolve " + (headId == null ? Constants.HEAD : targetRevision));
+        }
+
+        final RevWalk revWalk = new RevWalk(repository);
+        try
+        {
+            final RevCommit head = revWalk.parseCommit(headId);
+            final RevCommit target = revWalk.parseCommit(targetId);
+            if (revWalk.isMergedInto(target, head))
+            {
+                log.debug(targetRevision + " is already merged");
+                return containsSomethingToCommit(repository);
+            }
+
+            if (repository.getRepositoryState() == RepositoryState.MERGING)
+            {
+                // merging the same revision again changes nothing
+                for (final ObjectId mergeHead : repository.readMergeHeads())
+                {
+                    revWalk.reset();
+                    if (revWalk.isMergedInto(target, revWalk.parseCommit(mergeHead)))
+                    {
+                        log.debug(targetRevision + " is already being merged");
+                        return true;
+                    }
+                }
+                throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.mergeFailed", targetRevision))
+                                              + " A merge is in progress in " + repository.getWorkTree());
+            }
+
+            revWalk.reset();
+            if (revWalk.isMergedInto(head, target))
+            {
+                fastForward(repository, head, target, targetRevision, identity);
+                return true;
+            }
+
+            final ResolveMerger merger = (ResolveMerger) MergeStrategy.RESOLVE.newMerger(repository);
+            merger.setCommitNames(new String[] {"BASE", Constants.HEAD, targetRevision});
+            merger.setWorkingTreeIterator(new FileTreeIterator(repository));
+            repository.writeMergeHeads(Collections.<ObjectId>singletonList(target));
+            repository.writeMergeCommitMsg("Merge " + targetRevision + "\n");
+            // the merger writes the result to the index and the work tree itself
+            if (!merger.merge(head, target))
+            {
+                final Collection<String> paths;
+                if (merger.getFailingPaths() != null)
+                {
+                    // nothing was touched
+                    paths = merger.getFailingPaths().keySet();
+                }
+                else
+                {
+                    // conflict markers and stages were written, leave the workspace as it was before the merge
+                    paths = merger.getUnmergedPaths();
+                    resetToHead(repository, head);
+                }
+                repository.writeMergeHeads(null);
+                repository.writeMergeCommitMsg(null);
+                throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.mergeConflict", targetRevision, paths)));
+            }
+            return true;
+        }
+        finally
+        {
+            revWalk.release();
+        }
     }
 
+    private static void resetToHead(@NotNull final FileRepository repository, @NotNull final RevCommit head) throws IOException
+    {
+        final DirCacheCheckout checkout = new DirCacheCheckout(repository, repository.lockDirCache(), head.getTree());
+        checkout.setFailOnConflict(false);
+        checkout.checkout();
+    }
+
+    private void fastForward(@NotNull final FileRepository repository, @NotNull final RevCommit head, @NotNull final RevCommit target,
+                             @NotNull final String targetRevision, @NotNull final PersonIdent identity) throws IOException, RepositoryException
+    {
+        final DirCacheCheckout checkout = new DirCacheCheckout(repository, head.getTree(), repository.lockDirCache(), target.getTree());
+        checkout.setFailOnConflict(true);
+        checkout.checkout();
+
+        final RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+        refUpdate.setNewObjectId(target);
+        refUpdate.setExpectedOldObjectId(head);
+        refUpdate.setRefLogIdent(identity);
+        refUpdate.setRefLogMessage("merge " + targetRevision + ": Fast-forward", false);
+        final RefUpdate.Result result = refUpdate.update();
+        if (result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NEW)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.mergeFailed", targetRevision))
+                                          + " Cannot move " + Constants.HEAD + ": " + result);
+        }
+        log.debug("Fast forwarded to " + targetRevision);
+    }
+
+    /**
+     * Same check as the native helper does: an uncommitted merge, or a tracked file differing from HEAD.
+     */
+    private static boolean containsSomethingToCommit(@NotNull final FileRepository repository) throws IOException
+    {
+        final RepositoryState state = repository.getRepositoryState();
+        if (state == RepositoryState.MERGING || state == RepositoryState.MERGING_RESOLVED)
+        {
+            log.debug("Has modified index");
+            return true;
+        }
+        final IndexDiff indexDiff = new IndexDiff(repository, Constants.HEAD, new FileTreeIterator(repository));
+        indexDiff.diff();
+        final boolean hasModifiedFiles = !indexDiff.getAdded().isEmpty()
+                                         || !indexDiff.getChanged().isEmpty()
+                                         || !indexDiff.getRemoved().isEmpty()
+                                         || !indexDiff.getMissing().isEmpty()
+                                         || !indexDiff.getModified().isEmpty();
+        if (hasModifiedFiles)
+        {
+            log.debug("Has modified files");
+        }
+        return hasModifiedFiles;
+    }
 
     /**
      * Pushes arbitrary revision (refspec?) back to the upstream repo.
@@ -232,9 +439,7 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
                                 .setSource(resolvedBranch)
                                 .setDestination(resolvedBranch);
 
-                        PushResult pushResult = transport.push(new BuildLoggerProgressMonitor(buildLogger), transport.findRemoteRefUpdatesFor(Arrays.asList(refSpec)));
-                        buildLogger.addBuildLogEntry("Git: " + pushResult.getMessages());
-
+                        push(transport, Arrays.asList(refSpec));
                         return null;
                     }
                 });
@@ -250,6 +455,76 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
     }
 
+    /**
+     * Pushes all the refspecs through one transport connection.
+     */
+    @NotNull
+    @Override
+    public List<GitPushResult> pushRefs(@NotNull final File sourceDirectory, @NotNull final List<String> refSpecs) throws RepositoryException
+    {
+        final List<RefSpec> parsedRefSpecs = Lists.newArrayListWithCapacity(refSpecs.size());
+        for (final String refSpec : refSpecs)
+        {
+            parsedRefSpecs.add(new RefSpec(refSpec));
+        }
+        try
+        {
+            final FileRepository localRepository = createLocalRepository(sourceDirectory, null);
+            try
+            {
+                return withTransport(localRepository, accessData, new WithTransportCallback<IOException, List<GitPushResult>>()
+                {
+                    @Override
+                    public List<GitPushResult> doWithTransport(@NotNull Transport transport) throws IOException
+                    {
+                        return push(transport, parsedRefSpecs);
+                    }
+                });
+            }
+            finally
+            {
+                localRepository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.pushFailed", refSpecs)) + e.getMessage(), e);
+        }
+    }
+
+    @NotNull
+    private List<GitPushResult> push(@NotNull final Transport transport, @NotNull final Collection<RefSpec> refSpecs) throws IOException
+    {
+        final Collection<RemoteRefUpdate> updates = transport.findRemoteRefUpdatesFor(refSpecs);
+        final PushResult pushResult = transport.push(new BuildLoggerProgressMonitor(buildLogger), updates);
+        buildLogger.addBuildLogEntry("Git: " + pushResult.getMessages());
+
+        // the updates passed in carry the outcome, and keep the refspec order
+        final List<GitPushResult> results = Lists.newArrayListWithCapacity(updates.size());
+        for (final RemoteRefUpdate update : updates)
+        {
+            final GitPushResult result = toPushResult(update);
+            buildLogger.addBuildLogEntry("Git: " + result);
+            results.add(result);
+        }
+        return results;
+    }
+
+    @NotNull
+    private static GitPushResult toPushResult(@NotNull final RemoteRefUpdate update)
+    {
+        switch (update.getStatus())
+        {
+            case OK:
+                return new GitPushResult(StringUtils.defaultString(update.getSrcRef()), update.getRemoteName(), GitPushResult.Status.OK, update.getMessage());
+            case UP_TO_DATE:
+                return new GitPushResult(StringUtils.defaultString(update.getSrcRef()), update.getRemoteName(), GitPushResult.Status.UP_TO_DATE, update.getMessage());
+            default:
+                final String message = update.getStatus() + (update.getMessage() != null ? ": " + update.getMessage() : "");
+                return new GitPushResult(StringUtils.defaultString(update.getSrcRef()), update.getRemoteName(), GitPushResult.Status.REJECTED, message);
+        }
+    }
+
     /*
     * returns revision found after checkout in sourceDirectory
     */
@@ -291,6 +566,11 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         final AtomicReference<String> refSpecDescription = new AtomicReference<String>("(unresolved) " + targetRevision);
         try
         {
+            final GitSharedObjectStore sharedObjectStore = useShallow ? null : GitSharedObjectStore.forDirectory(sourceDirectory, accessData);
+            if (sharedObjectStore != null)
+            {
+                sharedObjectStore.attach(sourceDirectory);
+            }
             final FileRepository localRepository = createLocalRepository(sourceDirectory, null);
             try
             {
@@ -338,6 +618,10 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
             {
                 localRepository.close();
             }
+            if (sharedObjectStore != null)
+            {
+                sharedObjectStore.absorb(sourceDirectory);
+            }
         }
         catch (Exception e)
         {
@@ -362,7 +646,7 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         FileRepository localRepository = null;
         try
         {
-            localRepository = new FileRepository(new File(sourceDirectory, Constants.DOT_GIT));
+            localRepository = JGitRepositoryManager.SHARED.open(gitDirectory);
             ObjectId objId = localRepository.resolve(revision);
             if (objId==null)
             {
@@ -404,11 +688,13 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
     {
         try
         {
-            return withFetchConnection(new FileRepository(""), accessData, new WithFetchConnectionCallback<RepositoryException, String>()
+            checkRemoteCircuit(accessData);
+            return withFetchConnection(getRemoteOnlyRepository(), accessData, new WithFetchConnectionCallback<RepositoryException, String>()
             {
                 @Override
                 public String doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws RepositoryException
                 {
+                    recordRemoteSuccess(accessData);
                     Ref headRef = resolveRefSpec(accessData.getVcsBranch().getName(), connection);
                     if (headRef == null)
                     {
@@ -428,6 +714,7 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
         catch (TransportException e)
         {
+            recordRemoteFailure(accessData, e);
             throw new RepositoryException(buildLogger.addErrorLogEntry(e.getMessage()), e);
         }
         catch (IOException e)
@@ -436,17 +723,63 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
     }
 
+    /**
+     * Lists the refs of the remote the way {@link GitCommandProcessor#getRemoteRefs(File, GitRepositoryAccessData)}
+     * does: HEAD first, then the other refs by name, peeled tags left out.
+     *
+     * @throws RepositoryException if the transport cannot be set up
+     * @throws NotSupportedException if JGit does not support the protocol
+     * @throws TransportException if the remote cannot be reached or refuses the connection
+     */
+    @NotNull
+    ImmutableMap<String, String> getRemoteRefs() throws RepositoryException, NotSupportedException, TransportException
+    {
+        return withFetchConnection(getRemoteOnlyRepository(), accessData, new WithFetchConnectionCallback<RepositoryException, ImmutableMap<String, String>>()
+        {
+            @Override
+            public ImmutableMap<String, String> doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection)
+            {
+                final Map<String, String> sortedRefs = new TreeMap<String, String>();
+                String head = null;
+                for (final Ref ref : connection.getRefs())
+                {
+                    // unborn symbolic refs are not listed by git either
+                    if (ref.getObjectId() == null)
+                    {
+                        continue;
+                    }
+                    if (Constants.HEAD.equals(ref.getName()))
+                    {
+                        head = ref.getObjectId().getName();
+                    }
+                    else
+                    {
+                        sortedRefs.put(ref.getName(), ref.getObjectId().getName());
+                    }
+                }
+                final ImmutableMap.Builder<String, String> refs = ImmutableMap.builder();
+                if (head != null)
+                {
+                    refs.put(Constants.HEAD, head);
+                }
+                return refs.putAll(sortedRefs).build();
+            }
+        });
+    }
+
     @Override
     @NotNull
     public List<VcsBranch> getOpenBranches(@NotNull final GitRepositoryAccessData repositoryData, final File workingDir) throws RepositoryException
     {
         try
         {
-            return withFetchConnection(new FileRepository(""), accessData, new WithFetchConnectionCallback<RepositoryException, List<VcsBranch>>()
+            checkRemoteCircuit(accessData);
+            return withFetchConnection(getRemoteOnlyRepository(), accessData, new WithFetchConnectionCallback<RepositoryException, List<VcsBranch>>()
             {
                 @Override
                 public List<VcsBranch> doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws RepositoryException
                 {
+                    recordRemoteSuccess(accessData);
                     List<VcsBranch> openBranches = Lists.newArrayList();
                     for (Ref ref : connection.getRefs())
                     {
@@ -465,6 +798,7 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
         catch (TransportException e)
         {
+            recordRemoteFailure(accessData, e);
             throw new RepositoryException(e.getMessage(), e);
         }
         catch (IOException e)
@@ -553,14 +887,30 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         return null;
     }
 
+    /**
+     * @return the local end of transports which only list the refs of the remote, shared as it never reads anything
+     */
+    @NotNull
+    private static synchronized FileRepository getRemoteOnlyRepository() throws IOException
+    {
+        if (remoteOnlyRepository == null)
+        {
+            remoteOnlyRepository = new FileRepository("");
+        }
+        return remoteOnlyRepository;
+    }
+
+    /**
+     * Opens the repository of the working directory, creating it if needed. Repositories are shared through
+     * {@link JGitRepositoryManager}, the caller has to close the repository returned.
+     */
     protected FileRepository createLocalRepository(File workingDirectory, @Nullable File cacheDirectory)
             throws IOException
     {
         File gitDirectory = new File(workingDirectory, Constants.DOT_GIT);
-        FileRepositoryBuilder builder = new FileRepositoryBuilder();
-        builder.setGitDir(gitDirectory);
         String headRef = null;
         File cacheGitDir = null;
+        File alternateObjectDirectory = null;
         if (cacheDirectory != null && cacheDirectory.exists())
         {
             FileRepositoryBuilder cacheRepoBuilder = new FileRepositoryBuilder().setWorkTree(cacheDirectory).setup();
@@ -568,36 +918,45 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
             File objectsCache = cacheRepoBuilder.getObjectDirectory();
             if (objectsCache != null && objectsCache.exists())
             {
-                builder.addAlternateObjectDirectory(objectsCache);
+                alternateObjectDirectory = objectsCache;
                 headRef = FileUtils.readFileToString(new File(cacheRepoBuilder.getGitDir(), Constants.HEAD));
             }
         }
-        FileRepository localRepository = builder.build();
 
         if (!gitDirectory.exists())
         {
             buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.creatingGitRepository", gitDirectory));
-            localRepository.create();
+            final FileRepository createdRepository = new FileRepository(gitDirectory);
+            try
+            {
+                createdRepository.create();
+            }
+            finally
+            {
+                createdRepository.close();
+            }
+            // an instance still shared from before the directory was deleted knows nothing of the new one
+            JGitRepositoryManager.SHARED.invalidate(gitDirectory);
         }
 
         // lets update alternatives here for a moment
-        File[] alternateObjectDirectories = builder.getAlternateObjectDirectories();
-        if (ArrayUtils.isNotEmpty(alternateObjectDirectories))
+        if (alternateObjectDirectory != null)
         {
-            List<String> alternatePaths = new ArrayList<String>(alternateObjectDirectories.length);
-            for (File alternateObjectDirectory : alternateObjectDirectories)
+            final File alternates = new File(new File(new File(gitDirectory, Constants.OBJECTS), "info"), "alternates");
+            final List<String> alternatePaths = Collections.singletonList(alternateObjectDirectory.getAbsolutePath());
+            if (!alternates.exists() || !alternatePaths.equals(FileUtils.readLines(alternates)))
             {
-                alternatePaths.add(alternateObjectDirectory.getAbsolutePath());
+                FileUtils.writeLines(alternates, alternatePaths, "\n");
+                // JGit reads the alternates once per repository instance
+                JGitRepositoryManager.SHARED.invalidate(gitDirectory);
             }
-            final File alternates = new File(new File(localRepository.getObjectsDirectory(), "info"), "alternates");
-            FileUtils.writeLines(alternates, alternatePaths, "\n");
         }
+        FileRepository localRepository = JGitRepositoryManager.SHARED.open(gitDirectory);
 
         if (cacheGitDir != null && cacheGitDir.isDirectory())
         {
             // copy tags and branches heads from the cache repository
-            FileUtils.copyDirectoryToDirectory(new File(cacheGitDir, Constants.R_TAGS), new File(localRepository.getDirectory(), Constants.R_REFS));
-            FileUtils.copyDirectoryToDirectory(new File(cacheGitDir, Constants.R_HEADS), new File(localRepository.getDirectory(), Constants.R_REFS));
+            copyRefsAsPackedRefs(cacheGitDir, localRepository.getDirectory());
 
             File shallow = new File(cacheGitDir, "shallow");
             if (shallow.exists())
@@ -614,6 +973,75 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         return localRepository;
     }
 
+    /**
+     * Writes branch heads and tags of the cache repository into a single packed-refs file of the local repository, so
+     * creating a workspace does not cost a file per ref. Loose refs of the local repository which would shadow the
+     * packed ones are removed, other packed refs are kept.
+     */
+    static void copyRefsAsPackedRefs(@NotNull final File cacheGitDir, @NotNull final File localGitDir) throws IOException
+    {
+        final Map<String, String> refs = new TreeMap<String, String>();
+        final File packedRefs = new File(localGitDir, Constants.PACKED_REFS);
+        if (packedRefs.exists())
+        {
+            for (final String line : (List<String>) FileUtils.readLines(packedRefs, CharEncoding.UTF_8))
+            {
+                if (line.length() > Constants.OBJECT_ID_STRING_LENGTH && !line.startsWith("#") && !line.startsWith("^"))
+                {
+                    refs.put(line.substring(Constants.OBJECT_ID_STRING_LENGTH + 1), line.substring(0, Constants.OBJECT_ID_STRING_LENGTH));
+                }
+            }
+        }
+
+        final FileRepository cacheRepository = JGitRepositoryManager.SHARED.open(cacheGitDir);
+        try
+        {
+            for (final String prefix : new String[] {Constants.R_HEADS, Constants.R_TAGS})
+            {
+                for (final Ref ref : cacheRepository.getRefDatabase().getRefs(prefix).values())
+                {
+                    if (!ref.isSymbolic() && ref.getObjectId() != null)
+                    {
+                        refs.put(ref.getName(), ref.getObjectId().getName());
+                    }
+                }
+            }
+        }
+        finally
+        {
+            cacheRepository.close();
+        }
+
+        for (final String prefix : new String[] {Constants.R_HEADS, Constants.R_TAGS})
+        {
+            final File looseRefs = new File(localGitDir, prefix);
+            if (looseRefs.isDirectory())
+            {
+                for (final File looseRef : (Collection<File>) FileUtils.listFiles(looseRefs, null, true))
+                {
+                    final String name = prefix + looseRefs.toURI().relativize(looseRef.toURI()).getPath();
+                    if (refs.containsKey(name))
+                    {
+                        FileUtils.forceDelete(looseRef);
+                    }
+                }
+            }
+        }
+
+        final StringBuilder content = new StringBuilder();
+        for (final Map.Entry<String, String> ref : refs.entrySet())
+        {
+            content.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        }
+        final File newPackedRefs = new File(localGitDir, Constants.PACKED_REFS + ".new");
+        FileUtils.writeStringToFile(newPackedRefs, content.toString(), CharEncoding.UTF_8);
+        FileUtils.deleteQuietly(packedRefs);
+        if (!newPackedRefs.renameTo(packedRefs))
+        {
+            throw new IOException("Cannot write " + packedRefs);
+        }
+    }
+
     @Override
     public BuildRepositoryChanges extractCommits(@NotNull final File directory, @Nullable final String previousRevision, @Nullable final String targetRevision)
             throws RepositoryException
@@ -623,32 +1051,49 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
 
         FileRepository localRepository = null;
         RevWalk revWalk = null;
-        TreeWalk treeWalk = null;
         boolean singleCommit = (previousRevision != null && previousRevision.equals(targetRevision));
 
         try
         {
             File gitDirectory = new File(directory, Constants.DOT_GIT);
-            localRepository = new FileRepository(gitDirectory);
+            localRepository = JGitRepositoryManager.SHARED.open(gitDirectory);
             revWalk = new RevWalk(localRepository);
 
+            final ObjectId targetId = targetRevision != null ? localRepository.resolve(targetRevision) : null;
+            final ObjectId previousId = previousRevision != null && !singleCommit ? localRepository.resolve(previousRevision) : null;
             if (targetRevision != null)
             {
-                revWalk.markStart(revWalk.parseCommit(localRepository.resolve(targetRevision)));
+                revWalk.markStart(revWalk.parseCommit(targetId));
             }
             if (previousRevision != null && !singleCommit)
             {
-                revWalk.markUninteresting(revWalk.parseCommit(localRepository.resolve(previousRevision)));
+                revWalk.markUninteresting(revWalk.parseCommit(previousId));
             }
 
-            treeWalk = new TreeWalk(localRepository);
-            treeWalk.setRecursive(true);
-
+            final String repositoryKey = CommitMetadataCache.getRepositoryKey(COMMIT_CACHE_KEY, accessData, directory);
+            final List<CommitImpl> commitsToCache = Lists.newArrayList();
+            final List<CommitImpl> diffedCommits = Lists.newArrayList();
+            final List<Callable<List<String>>> diffTasks = Lists.newArrayList();
             for (final RevCommit jgitCommit : revWalk)
             {
                 if (commits.size() >= CHANGESET_LIMIT)
                 {
-                    skippedCommits++;
+                    // the rest is only counted, in a walk that doesn't keep commit bodies
+                    revWalk.release();
+                    skippedCommits = countCommits(localRepository, targetId, previousId) - commits.size();
+                    break;
+                }
+
+                // file lists of shallow commits depend on the clone, they are never cached
+                final boolean shallow = localRepository.getShallows().contains(jgitCommit.getId());
+                final CommitImpl cachedCommit = shallow ? null : CommitMetadataCache.SHARED.get(repositoryKey, jgitCommit.getName(), true);
+                if (cachedCommit != null)
+                {
+                    commits.add(cachedCommit);
+                    if (singleCommit && jgitCommit.getParentCount() < 2)
+                    {
+                        break;
+                    }
                     continue;
                 }
 
@@ -658,33 +1103,52 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
                 commit.setDate(jgitCommit.getAuthorIdent().getWhen());
                 commit.setChangeSetId(jgitCommit.getName());
                 commits.add(commit);
+                if (!shallow)
+                {
+                    commitsToCache.add(commit);
+                }
                 if (jgitCommit.getParentCount() >= 2) //merge commit
                 {
                     continue;
                 }
 
-                if (localRepository.getShallows().contains(jgitCommit.getId()))
+                if (shallow)
                 {
                     continue;
                 }
 
-                treeWalk.reset();
-                int treePosition = jgitCommit.getParentCount() > 0 ? treeWalk.addTree(jgitCommit.getParent(0).getTree()) : treeWalk.addTree(new EmptyTreeIterator());
-                treeWalk.addTree(jgitCommit.getTree());
-
-                for (final DiffEntry entry : DiffEntry.scan(treeWalk))
-                {
-                    if (entry.getOldId().equals(entry.getNewId()))
-                    {
-                        continue;
-                    }
-                    commit.addFile(new CommitFileImpl(jgitCommit.getId().getName(), entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath()));
-                }
+                diffedCommits.add(commit);
+                diffTasks.add(new ChangedPathsCalculator(localRepository,
+                                                         jgitCommit.getParentCount() > 0 ? jgitCommit.getParent(0).getTree().copy() : null,
+                                                         jgitCommit.getTree().copy()));
                 if (singleCommit)
                 {
                     break;
                 }
             }
+            revWalk.release();
+
+            final List<Future<List<String>>> changedPaths = diffTasks.size() > 1 ? GitExecutors.getDiffExecutor().invokeAll(diffTasks) : runInline(diffTasks);
+            for (int i = 0; i < diffedCommits.size(); i++)
+            {
+                final CommitImpl commit = diffedCommits.get(i);
+                final CompactCommitFileList files = new CompactCommitFileList(commit.getChangeSetId());
+                for (final String path : getChangedPaths(changedPaths.get(i)))
+                {
+                    files.addPath(path);
+                }
+                commit.setFiles(files);
+            }
+            for (final CommitImpl commit : commitsToCache)
+            {
+                CommitMetadataCache.SHARED.put(repositoryKey, commit, true);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            String message = i18nResolver.getText("repository.git.messages.extractingChangesetsException", directory, previousRevision, targetRevision);
+            throw new RepositoryException(buildLogger.addErrorLogEntry(message + " " + e.getMessage()), e);
         }
         catch (IOException e)
         {
@@ -693,10 +1157,6 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
         finally
         {
-            if (treeWalk != null)
-            {
-                treeWalk.release();
-            }
             if (revWalk != null)
             {
                 revWalk.release();
@@ -711,6 +1171,60 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         return buildChanges;
     }
 
+    @NotNull
+    private static List<Future<List<String>>> runInline(@NotNull final List<Callable<List<String>>> tasks)
+    {
+        final List<Future<List<String>>> futures = Lists.newArrayList();
+        for (final Callable<List<String>> task : tasks)
+        {
+            final FutureTask<List<String>> future = new FutureTask<List<String>>(task);
+            future.run();
+            futures.add(future);
+        }
+        return futures;
+    }
+
+    @NotNull
+    private static List<String> getChangedPaths(@NotNull final Future<List<String>> future) throws IOException, InterruptedException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static int countCommits(@NotNull final FileRepository repository, @Nullable final ObjectId targetId, @Nullable final ObjectId previousId) throws IOException
+    {
+        final RevWalk countingWalk = new RevWalk(repository);
+        try
+        {
+            countingWalk.setRetainBody(false);
+            if (targetId != null)
+            {
+                countingWalk.markStart(countingWalk.parseCommit(targetId));
+            }
+            if (previousId != null)
+            {
+                countingWalk.markUninteresting(countingWalk.parseCommit(previousId));
+            }
+            int count = 0;
+            while (countingWalk.next() != null)
+            {
+                count++;
+            }
+            return count;
+        }
+        finally
+        {
+            countingWalk.release();
+        }
+    }
+
     @NotNull
     @Override
     public String getBranchForSha(@NotNull final File sourceDirectory, final String revision, final String configuredBranch) throws RepositoryException
@@ -745,28 +1259,12 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
             {
                 uri = uri.setUser(accessData.getUsername());
             }
-            // transport should be opened using factory method at least first time to properly initialize all transports
-            // for non http/https this is absolutely the same way as usual, for http/https as we use own modified transports
-            // we have to close just opened transport and use the own one
-            Transport transport = Transport.open(localRepository, uri);
-            if (TransportAllTrustingHttps.canHandle(uri))
-            {
-                transport.close();
-                transport = new TransportAllTrustingHttps(localRepository, uri);
-            }
-            else if ("http".equals(uri.getScheme()))
-            {
-                transport.close();
-                class TransportHttpHack extends TransportHttp
-                {
-                    TransportHttpHack(FileRepository localRepository, URIish uri) throws NotSupportedException
-                    {
-                        super(localRepository, uri);
-                    }
-                }
-                transport = new TransportHttpHack(localRepository, uri);
-            }
+            final GitTuningProfile tuningProfile = GitTuningProfile.withAgentDefaults(accessData.getTuningProfile());
+            Transport transport = createTransport(localRepository, uri, tuningProfile.getHttpPostBuffer());
             transport.setTimeout(DEFAULT_TRANSFER_TIMEOUT);
+            final PackConfig packConfig = new PackConfig(localRepository);
+            tuningProfile.applyTo(packConfig);
+            transport.setPackConfig(packConfig);
             if (transport instanceof SshTransport)
             {
                 final boolean useKey = accessData.getAuthenticationType() == GitAuthenticationType.SSH_KEYPAIR;
@@ -798,6 +1296,64 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
     }
 
+    /**
+     * @param httpPostBuffer read by the http transports from the config of the repository when they are created. The
+     * repository is shared, its config is only changed in memory for the creation of the transport and then restored.
+     */
+    @NotNull
+    private static Transport createTransport(@NotNull final FileRepository localRepository, @NotNull final URIish uri,
+                                             @Nullable final Long httpPostBuffer) throws IOException
+    {
+        final FileBasedConfig config = localRepository.getConfig();
+        synchronized (config)
+        {
+            final String previousPostBuffer = config.getString(HTTP_SECTION, null, POST_BUFFER_KEY);
+            if (httpPostBuffer != null)
+            {
+                config.setLong(HTTP_SECTION, null, POST_BUFFER_KEY, httpPostBuffer);
+            }
+            try
+            {
+                // transport should be opened using factory method at least first time to properly initialize all transports
+                // for non http/https this is absolutely the same way as usual, for http/https as we use own modified transports
+                // we have to close just opened transport and use the own one
+                Transport transport = Transport.open(localRepository, uri);
+                if (TransportAllTrustingHttps.canHandle(uri))
+                {
+                    transport.close();
+                    transport = new TransportAllTrustingHttps(localRepository, uri);
+                }
+                else if ("http".equals(uri.getScheme()))
+                {
+                    transport.close();
+                    class TransportHttpHack extends TransportHttp
+                    {
+                        TransportHttpHack(FileRepository localRepository, URIish uri) throws NotSupportedException
+                        {
+                            super(localRepository, uri);
+                        }
+                    }
+                    transport = new TransportHttpHack(localRepository, uri);
+                }
+                return transport;
+            }
+            finally
+            {
+                if (httpPostBuffer != null)
+                {
+                    if (previousPostBuffer != null)
+                    {
+                        config.setString(HTTP_SECTION, null, POST_BUFFER_KEY, previousPostBuffer);
+                    }
+                    else
+                    {
+                        config.unset(HTTP_SECTION, null, POST_BUFFER_KEY);
+                    }
+                }
+            }
+        }
+    }
+
     @NotNull
     @Override
     public CommitContext getCommit(final File directory, final String targetRevision) throws RepositoryException
@@ -808,17 +1364,25 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         try
         {
             File gitDirectory = new File(directory, Constants.DOT_GIT);
-            localRepository = new FileRepository(gitDirectory);
+            localRepository = JGitRepositoryManager.SHARED.open(gitDirectory);
             revWalk = new RevWalk(localRepository);
 
             if (targetRevision != null)
             {
-                RevCommit jgitCommit = revWalk.parseCommit(localRepository.resolve(targetRevision));
+                final ObjectId commitId = localRepository.resolve(targetRevision);
+                final String repositoryKey = CommitMetadataCache.getRepositoryKey(COMMIT_CACHE_KEY, accessData, directory);
+                final CommitImpl cachedCommit = commitId != null ? CommitMetadataCache.SHARED.get(repositoryKey, commitId.getName(), false) : null;
+                if (cachedCommit != null)
+                {
+                    return cachedCommit;
+                }
+                RevCommit jgitCommit = revWalk.parseCommit(commitId);
                 CommitImpl commit = new CommitImpl();
                 commit.setComment(jgitCommit.getFullMessage());
                 commit.setAuthor(getAuthor(jgitCommit));
                 commit.setDate(jgitCommit.getAuthorIdent().getWhen());
                 commit.setChangeSetId(jgitCommit.getName());
+                CommitMetadataCache.SHARED.put(repositoryKey, commit, false);
                 return commit;
             }
         }
@@ -907,4 +1471,64 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
     // -------------------------------------------------------------------------------------------------- Action Methods
     // -------------------------------------------------------------------------------------------------- Public Methods
     // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    /**
+     * Lists the paths a commit changed compared to its first parent. Each calculation reads through its own
+     * {@link TreeWalk}, and so its own object reader, so calculations can run concurrently on one repository.
+     */
+    private static class ChangedPathsCalculator implements Callable<List<String>>
+    {
+        private final FileRepository repository;
+        private final ObjectId parentTree;
+        private final ObjectId tree;
+
+        ChangedPathsCalculator(@NotNull final FileRepository repository, @Nullable final ObjectId parentTree, @NotNull final ObjectId tree)
+        {
+            this.repository = repository;
+            this.parentTree = parentTree;
+            this.tree = tree;
+        }
+
+        public List<String> call() throws IOException
+        {
+            final TreeWalk treeWalk = new TreeWalk(repository);
+            try
+            {
+                treeWalk.setRecursive(true);
+                if (parentTree != null)
+                {
+                    treeWalk.addTree(parentTree);
+                }
+                else
+                {
+                    treeWalk.addTree(new EmptyTreeIterator());
+                }
+                treeWalk.addTree(tree);
+
+                List<DiffEntry> entries = DiffEntry.scan(treeWalk);
+                if (DETECT_RENAMES)
+                {
+                    final RenameDetector renameDetector = new RenameDetector(repository);
+                    renameDetector.addAll(entries);
+                    entries = renameDetector.compute(treeWalk.getObjectReader(), NullProgressMonitor.INSTANCE);
+                }
+
+                final List<String> paths = Lists.newArrayListWithCapacity(entries.size());
+                for (final DiffEntry entry : entries)
+                {
+                    // mode changes only
+                    if (entry.getChangeType() == DiffEntry.ChangeType.MODIFY && entry.getOldId().equals(entry.getNewId()))
+                    {
+                        continue;
+                    }
+                    paths.add(entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath());
+                }
+                return paths;
+            }
+            finally
+            {
+                treeWalk.release();
+            }
+        }
+    }
 }
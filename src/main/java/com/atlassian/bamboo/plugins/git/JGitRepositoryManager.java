@@ -0,0 +1,174 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares open {@link FileRepository} instances between JGit operations on the same git directory, so that the pack
+ * files, their indexes and the refs read by one operation are still at hand for the next one instead of being opened
+ * and parsed again.
+ * <p/>
+ * Repositories returned by {@link #open(File)} are reference counted by JGit itself: callers close them exactly as they
+ * would close a repository they created, the manager keeps its own reference until the repository has not been opened
+ * for the idle time. A repository evicted while still in use is closed by the last caller closing it.
+ */
+final class JGitRepositoryManager
+{
+    private static final Logger log = Logger.getLogger(JGitRepositoryManager.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int IDLE_CLOSE_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.jgit.idleCloseSeconds", "GIT_JGIT_IDLE_CLOSE_SECONDS").getValue(300);
+
+    private static final String CONFIG_FILE = "config";
+
+    static final JGitRepositoryManager SHARED = new JGitRepositoryManager(IDLE_CLOSE_SECONDS, TimeUnit.SECONDS);
+
+    static
+    {
+        GitExecutors.addPeriodicTask(new Runnable()
+        {
+            public void run()
+            {
+                SHARED.closeIdle();
+            }
+        }, IDLE_CLOSE_SECONDS / 2);
+    }
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final Map<File, SharedRepository> repositories = new HashMap<File, SharedRepository>();
+    private final long idleMillis;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    JGitRepositoryManager(final long idleTime, @NotNull final TimeUnit unit)
+    {
+        this.idleMillis = unit.toMillis(idleTime);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @param gitDirectory the .git directory, expected to exist
+     * @return the shared repository, to be closed by the caller
+     */
+    @NotNull
+    FileRepository open(@NotNull final File gitDirectory) throws IOException
+    {
+        final File key = gitDirectory.getAbsoluteFile();
+        synchronized (repositories)
+        {
+            SharedRepository shared = repositories.get(key);
+            if (shared != null && shared.isStale())
+            {
+                // deleted or recreated, nothing of the old instance can be reused
+                repositories.remove(key);
+                shared.repository.close();
+                shared = null;
+            }
+            if (shared == null)
+            {
+                shared = new SharedRepository(new FileRepository(key), new File(key, CONFIG_FILE));
+                repositories.put(key, shared);
+                // the idle check stops with the thread pools of the plugin, and resumes with them
+                GitExecutors.startPeriodicTasks();
+            }
+            shared.repository.incrementOpen();
+            shared.lastOpened = System.currentTimeMillis();
+            return shared.repository;
+        }
+    }
+
+    /**
+     * Drops the reference of the manager to the repository, so that the next {@link #open(File)} reads it afresh. To be
+     * called after the repository was changed behind JGit's back in ways JGit does not notice on its own, e.g. packs
+     * moved or alternates added. Callers still using the old instance are not affected.
+     */
+    void invalidate(@NotNull final File gitDirectory)
+    {
+        final SharedRepository shared;
+        synchronized (repositories)
+        {
+            shared = repositories.remove(gitDirectory.getAbsoluteFile());
+        }
+        if (shared != null)
+        {
+            shared.repository.close();
+        }
+    }
+
+    /**
+     * Drops the references of the manager to repositories which have not been opened for the idle time.
+     *
+     * @return the number of repositories dropped
+     */
+    int closeIdle()
+    {
+        return closeIdle(idleMillis);
+    }
+
+    /**
+     * @param idleMillis 0 to drop the references to all repositories
+     * @return the number of repositories dropped
+     */
+    int closeIdle(final long idleMillis)
+    {
+        final long idleSince = System.currentTimeMillis() - idleMillis;
+        int closed = 0;
+        synchronized (repositories)
+        {
+            for (final Iterator<SharedRepository> iterator = repositories.values().iterator(); iterator.hasNext(); )
+            {
+                final SharedRepository shared = iterator.next();
+                if (shared.lastOpened <= idleSince)
+                {
+                    iterator.remove();
+                    shared.repository.close();
+                    closed++;
+                }
+            }
+        }
+        if (closed > 0 && log.isDebugEnabled())
+        {
+            log.debug("Closed " + closed + " idle git repositories");
+        }
+        return closed;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static class SharedRepository
+    {
+        /** the reference of the manager is the one JGit counts at creation */
+        final FileRepository repository;
+        final File configFile;
+        final long configModified;
+        long lastOpened;
+
+        SharedRepository(@NotNull final FileRepository repository, @NotNull final File configFile)
+        {
+            this.repository = repository;
+            this.configFile = configFile;
+            this.configModified = configFile.lastModified();
+        }
+
+        /**
+         * Refs and packs are rescanned by JGit when they change on disk, the config is not: a repository that was
+         * deleted or created again has a config file other than the one read.
+         */
+        boolean isStale()
+        {
+            return !configFile.isFile() || configFile.lastModified() != configModified;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.storage.file.WindowCache;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Configures JGit's window cache, the cache of pack file windows shared by all repositories of the process.
+ * <p/>
+ * JGit's defaults (10 MB of 8 kB windows read into the heap) are sized for desktop tools. The cache is instead sized to
+ * the host on first use: on 64 bit JVMs pack files are memory mapped in 1 MB windows, with up to an eighth of the
+ * physical memory mapped at a time, so objects read again by later builds come from the page cache. The agent defaults
+ * of {@link GitTuningProfile} replace these host defaults. The settings of repository profiles never shrink the cache:
+ * it grows to the largest limits asked for by any repository.
+ */
+final class JGitWindowCache
+{
+    private static final Logger log = Logger.getLogger(JGitWindowCache.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final long MB = 1024 * 1024;
+
+    private static final int MMAP_WINDOW_SIZE = (int) MB;
+    private static final long MIN_PACKED_GIT_LIMIT = 10 * MB;
+    private static final long MAX_PACKED_GIT_LIMIT = 4096 * MB;
+    private static final long MIN_DELTA_BASE_CACHE_LIMIT = 10 * MB;
+    private static final long MAX_DELTA_BASE_CACHE_LIMIT = 64 * MB;
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static WindowCacheConfig config;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private JGitWindowCache()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Configures the window cache for this host on first call, then reconfigures it if the profile asks for more than
+     * it currently has.
+     */
+    static synchronized void ensure(@NotNull final GitTuningProfile profile)
+    {
+        boolean changed = false;
+        if (config == null)
+        {
+            config = createDefaultConfig(Runtime.getRuntime().maxMemory(), getPhysicalMemory(), is64BitJvm());
+            applyAgentDefaults(config, GitTuningProfile.withAgentDefaults(null));
+            changed = true;
+        }
+        if (grow(config, profile) || changed)
+        {
+            log.info("Configuring JGit window cache: packedGitLimit=" + config.getPackedGitLimit()
+                     + ", packedGitWindowSize=" + config.getPackedGitWindowSize()
+                     + ", deltaBaseCacheLimit=" + config.getDeltaBaseCacheLimit() + ", packedGitMMAP=" + config.isPackedGitMMAP());
+            WindowCache.reconfigure(config);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * Raises the limits of the config to those of the profile, never lowers them.
+     *
+     * @return true if the config was changed
+     */
+    static boolean grow(@NotNull final WindowCacheConfig config, @NotNull final GitTuningProfile profile)
+    {
+        boolean changed = false;
+        final Long packedGitLimit = profile.getPackedGitLimit();
+        if (packedGitLimit != null && packedGitLimit > config.getPackedGitLimit())
+        {
+            config.setPackedGitLimit(packedGitLimit);
+            changed = true;
+        }
+        final Long deltaBaseCacheLimit = profile.getDeltaBaseCacheLimit();
+        if (deltaBaseCacheLimit != null && deltaBaseCacheLimit > config.getDeltaBaseCacheLimit())
+        {
+            config.setDeltaBaseCacheLimit((int) Math.min(Integer.MAX_VALUE, deltaBaseCacheLimit));
+            changed = true;
+        }
+        final Boolean packedGitMMAP = profile.getPackedGitMMAP();
+        if (packedGitMMAP != null && packedGitMMAP && !config.isPackedGitMMAP())
+        {
+            config.setPackedGitMMAP(true);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * @param physicalMemory 0 if unknown
+     */
+    @NotNull
+    static WindowCacheConfig createDefaultConfig(final long maxHeap, final long physicalMemory, final boolean is64BitJvm)
+    {
+        final WindowCacheConfig defaults = new WindowCacheConfig();
+        // a 32 bit JVM runs out of address space long before it runs out of memory, it keeps reading windows to the heap
+        if (is64BitJvm)
+        {
+            defaults.setPackedGitMMAP(true);
+            defaults.setPackedGitWindowSize(MMAP_WINDOW_SIZE);
+            // mapped windows live outside the heap, they are bounded by what the page cache can hold
+            final long basis = physicalMemory > 0 ? physicalMemory / 8 : maxHeap / 4;
+            defaults.setPackedGitLimit(clamp(basis, MIN_PACKED_GIT_LIMIT, MAX_PACKED_GIT_LIMIT));
+        }
+        else
+        {
+            defaults.setPackedGitLimit(clamp(maxHeap / 8, MIN_PACKED_GIT_LIMIT, MAX_PACKED_GIT_LIMIT));
+        }
+        // delta bases are always inflated on the heap
+        defaults.setDeltaBaseCacheLimit((int) clamp(maxHeap / 32, MIN_DELTA_BASE_CACHE_LIMIT, MAX_DELTA_BASE_CACHE_LIMIT));
+        return defaults;
+    }
+
+    private static void applyAgentDefaults(@NotNull final WindowCacheConfig config, @NotNull final GitTuningProfile agentDefaults)
+    {
+        if (agentDefaults.getPackedGitLimit() != null)
+        {
+            config.setPackedGitLimit(agentDefaults.getPackedGitLimit());
+        }
+        if (agentDefaults.getDeltaBaseCacheLimit() != null)
+        {
+            config.setDeltaBaseCacheLimit((int) Math.min(Integer.MAX_VALUE, agentDefaults.getDeltaBaseCacheLimit()));
+        }
+        if (agentDefaults.getPackedGitMMAP() != null)
+        {
+            config.setPackedGitMMAP(agentDefaults.getPackedGitMMAP());
+        }
+    }
+
+    private static long clamp(final long value, final long min, final long max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static boolean is64BitJvm()
+    {
+        final String dataModel = System.getProperty("sun.arch.data.model");
+        return dataModel != null ? "64".equals(dataModel) : System.getProperty("os.arch", "").contains("64");
+    }
+
+    /**
+     * @return 0 if the JVM does not tell
+     */
+    private static long getPhysicalMemory()
+    {
+        final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        try
+        {
+            // com.sun.management.OperatingSystemMXBean, not available on every JVM
+            final Method method = operatingSystem.getClass().getMethod("getTotalPhysicalMemorySize");
+            method.setAccessible(true);
+            final Object size = method.invoke(operatingSystem);
+            return size instanceof Long ? (Long) size : 0;
+        }
+        catch (Exception e)
+        {
+            return 0;
+        }
+    }
+}
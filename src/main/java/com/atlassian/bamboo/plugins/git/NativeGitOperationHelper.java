@@ -14,6 +14,7 @@ import com.atlassian.bamboo.util.CacheAwareness;
 import com.atlassian.bamboo.util.CallableResultCache;
 import com.atlassian.bamboo.util.PasswordMaskingUtils;
 import com.atlassian.bamboo.utils.Pair;
+import com.atlassian.bamboo.utils.SystemProperty;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChangesImpl;
 import com.atlassian.sal.api.message.I18nResolver;
@@ -21,12 +22,16 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -39,8 +44,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 public class NativeGitOperationHelper extends AbstractGitOperationHelper implements GitOperationHelper
@@ -48,9 +57,22 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     @SuppressWarnings("UnusedDeclaration")
     private static final Logger log = Logger.getLogger(NativeGitOperationHelper.class);
     // ------------------------------------------------------------------------------------------------------- Constants
+    static final int SUBMODULE_JOBS = new SystemProperty(false, "atlassian.bamboo.git.submodules.jobs", "GIT_SUBMODULE_JOBS").getValue(4);
+    /**
+     * List remote refs with JGit instead of forking git ls-remote (and the ssh wrapper and proxy) for every poll. Off by
+     * default: JGit ignores the git settings of the agent (credential helpers, http.proxy, http.sslCAInfo) and, like
+     * the JGit helper, does not verify https certificates.
+     */
+    static final boolean IN_PROCESS_REF_DISCOVERY = new SystemProperty(false, "atlassian.bamboo.git.inProcessRefDiscovery", "GIT_IN_PROCESS_REF_DISCOVERY").getValue(false);
+
     // ------------------------------------------------------------------------------------------------- Type Properties
     protected SshProxyService sshProxyService;
     GitCommandProcessor gitCommandProcessor;
+    private final GitRepositoryReader repositoryReader = new GitRepositoryReader();
+    /** created on first in-process ref discovery, it configures JGit's process wide window cache */
+    private JGitOperationHelper refDiscoveryHelper;
+
+    private static final String COMMIT_CACHE_KEY = "native";
 
     private final static CallableResultCache<ImmutableMap<String, String>> GET_REMOTE_REFS_CACHE =
             CallableResultCache.buildAlwaysInvalidating(
@@ -85,6 +107,7 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
                                                            accessData.getCommandTimeout(), accessData.isVerboseLogs());
         this.gitCommandProcessor.checkGitExistenceInSystem(repository.getWorkingDirectory());
         this.gitCommandProcessor.setSshCommand(repository.getSshCapability());
+        this.gitCommandProcessor.setConfigOverrides(GitTuningProfile.withAgentDefaults(accessData.getTuningProfile()).getGitConfigOverrides());
     }
 
     // ----------------------------------------------------------------------------------------------- Interface Methods
@@ -92,7 +115,7 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     @Override
     public void pushRevision(@NotNull final File sourceDirectory, @NotNull String revision) throws RepositoryException
     {
-        String possibleBranch = gitCommandProcessor.getPossibleBranchNameForCheckout(sourceDirectory, revision, accessData.getVcsBranch().getName());
+        String possibleBranch = getPossibleBranchNameForCheckout(sourceDirectory, revision);
         if (StringUtils.isBlank(possibleBranch))
         {
             throw new RepositoryException("Can't guess branch name for revision " + revision + " when trying to perform push.");
@@ -106,6 +129,22 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
         gitCommandProcessor.runCommand(commandBuilder, sourceDirectory);
     }
 
+    /**
+     * Pushes all the refspecs with a single {@code git push}.
+     */
+    @NotNull
+    @Override
+    public List<GitPushResult> pushRefs(@NotNull final File sourceDirectory, @NotNull final List<String> refSpecs) throws RepositoryException
+    {
+        final GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
+        final List<GitPushResult> results = gitCommandProcessor.runPushCommand(sourceDirectory, proxiedAccessData, refSpecs);
+        for (final GitPushResult result : results)
+        {
+            buildLogger.addBuildLogEntry("Git: " + result);
+        }
+        return results;
+    }
+
     @Override
     public String commit(@NotNull File sourceDirectory, @NotNull String message, @NotNull String comitterName, @NotNull String comitterEmail) throws RepositoryException
     {
@@ -235,14 +274,27 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     public boolean merge(@NotNull final File workspaceDir, @NotNull final String targetRevision,
                          @NotNull String committerName, @NotNull String committerEmail) throws RepositoryException
     {
+        final GitRepositoryReader.MergeAnalysis mergeAnalysis = analyseMergeInProcess(workspaceDir, targetRevision);
+        if (mergeAnalysis == GitRepositoryReader.MergeAnalysis.UP_TO_DATE)
+        {
+            log.debug(targetRevision + " is already merged, skipping merge");
+            return containsSomethingToCommit(workspaceDir);
+        }
+
         GitCommandBuilder commandBuilder =
                 gitCommandProcessor
                         .createCommandBuilder("merge", "--no-commit", targetRevision)
                         .env(identificationVariables(committerName, committerEmail));
 
-        String headRevisionBeforeMerge = getCurrentRevision(workspaceDir);
+        final String headRevisionBeforeMerge = mergeAnalysis == null ? getCurrentRevision(workspaceDir) : null;
         gitCommandProcessor.runMergeCommand(commandBuilder, workspaceDir);
 
+        if (mergeAnalysis != null)
+        {
+            // a fast forward moved HEAD, a successful real merge left MERGE_HEAD behind
+            log.debug("Merged " + targetRevision + ": " + mergeAnalysis);
+            return true;
+        }
         if (containsSomethingToCommit(workspaceDir))
         {
             return true;
@@ -253,8 +305,40 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
         return !headRevisionAfterMerge.equals(headRevisionBeforeMerge);
     }
 
+    @Nullable
+    private GitRepositoryReader.MergeAnalysis analyseMergeInProcess(@NotNull final File workspaceDir, @NotNull final String targetRevision)
+    {
+        try
+        {
+            return repositoryReader.analyseMerge(workspaceDir, targetRevision);
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot analyse merge of " + targetRevision + " in-process, falling back to git", e);
+            return null;
+        }
+    }
+
     private boolean containsSomethingToCommit(@NotNull File workspaceDir) throws RepositoryException
     {
+        try
+        {
+            if (repositoryReader.isMerging(workspaceDir))
+            {
+                log.debug("Has modified index");
+                return true;
+            }
+            if (!repositoryReader.hasTrackedChanges(workspaceDir))
+            {
+                return false;
+            }
+            // may be line ending noise, let git decide
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot read status in-process, falling back to git", e);
+        }
+
         //check for merge with no changes to files, but with changes to index
         final String mergeHead = getRevisionIfExists(workspaceDir, Constants.MERGE_HEAD);
         if (mergeHead!=null)
@@ -333,10 +417,12 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
             File lck = new File(sourceDirectory, "index.lock");
             FileUtils.deleteQuietly(lck);
 
-            gitCommandProcessor.runCheckoutCommand(sourceDirectory, targetRevision, accessData.getVcsBranch().getName());
+            // checking out the branch instead of the revision avoids detached HEAD
+            final String possibleBranch = getPossibleBranchNameForCheckout(sourceDirectory, targetRevision);
+            gitCommandProcessor.runCheckoutCommandForBranchOrRevision(sourceDirectory, StringUtils.isNotBlank(possibleBranch) ? possibleBranch : targetRevision);
             if (accessData.isUseSubmodules())
             {
-                gitCommandProcessor.runSubmoduleUpdateCommand(sourceDirectory);
+                updateSubmodules(cacheDirectory, sourceDirectory);
             }
             return targetRevision;
         }
@@ -346,12 +432,174 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
         }
     }
 
+    /**
+     * Updates the submodules of the checked out revision. When the superproject is cached, the caches of the top level
+     * submodules (one per url, next to the superproject cache) are brought up to date in parallel, then each submodule
+     * is cloned borrowing objects from its cache. The submodules themselves are updated one at a time, as concurrent
+     * {@code git submodule update} runs compete for the config and index locks of the superproject. A final recursive
+     * update takes care of nested submodules and of anything the first pass didn't manage.
+     */
+    @VisibleForTesting
+    void updateSubmodules(@Nullable final File cacheDirectory, @NotNull final File sourceDirectory) throws RepositoryException
+    {
+        if (cacheDirectory != null)
+        {
+            gitCommandProcessor.runSubmoduleInitCommand(sourceDirectory);
+            final Map<String, String> submoduleUrls = gitCommandProcessor.getSubmoduleUrls(sourceDirectory);
+            final Map<String, File> referenceRepositories = updateSubmoduleCaches(cacheDirectory, sourceDirectory, submoduleUrls);
+            for (final String path : submoduleUrls.keySet())
+            {
+                try
+                {
+                    gitCommandProcessor.runSubmoduleUpdateCommand(sourceDirectory, path, referenceRepositories.get(path));
+                }
+                catch (RepositoryException e)
+                {
+                    log.warn("Updating submodule " + path + " failed, it will be retried by the recursive update", e);
+                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.submoduleUpdateFailed", path, e.getMessage()));
+                }
+            }
+        }
+        gitCommandProcessor.runSubmoduleUpdateCommand(sourceDirectory);
+    }
+
+    /**
+     * Brings the caches of the submodules up to date on the pool shared by all checkouts.
+     *
+     * @return cache to borrow objects from by submodule path, submodules without an up to date cache are left out
+     */
+    @NotNull
+    private Map<String, File> updateSubmoduleCaches(@NotNull final File cacheDirectory, @NotNull final File sourceDirectory, @NotNull final Map<String, String> submoduleUrls)
+            throws RepositoryException
+    {
+        if (submoduleUrls.size() > 1)
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.updatingSubmodules", submoduleUrls.size(), Math.min(Math.max(1, SUBMODULE_JOBS), submoduleUrls.size())));
+        }
+        final Map<String, Future<File>> updates = Maps.newLinkedHashMap();
+        try
+        {
+            final ExecutorService executor = GitExecutors.getSubmoduleExecutor();
+            for (final Map.Entry<String, String> submodule : submoduleUrls.entrySet())
+            {
+                updates.put(submodule.getKey(), executor.submit(new Callable<File>()
+                {
+                    public File call() throws Exception
+                    {
+                        return updateSubmoduleCache(cacheDirectory, sourceDirectory, submodule.getKey(), submodule.getValue());
+                    }
+                }));
+            }
+
+            final Map<String, File> referenceRepositories = Maps.newHashMap();
+            for (final Map.Entry<String, Future<File>> update : updates.entrySet())
+            {
+                try
+                {
+                    final File referenceRepository = update.getValue().get();
+                    if (referenceRepository != null)
+                    {
+                        referenceRepositories.put(update.getKey(), referenceRepository);
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    log.warn("Could not update the cache of submodule " + update.getKey(), e.getCause());
+                }
+            }
+            return referenceRepositories;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while updating submodule caches", e);
+        }
+        finally
+        {
+            // when interrupted, don't leave fetches behind
+            for (final Future<File> update : updates.values())
+            {
+                update.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the cache for the submodule url contains the commit the superproject points to. Submodules hosted
+     * next to the superproject are fetched with its credentials, others with the ssh and credential setup of the agent.
+     *
+     * @return the cache directory, or null if it could not be brought up to date
+     */
+    @Nullable
+    private File updateSubmoduleCache(@NotNull final File cacheDirectory, @NotNull final File sourceDirectory, @NotNull final String path, @NotNull final String url)
+    {
+        final GitRepositoryAccessData.Builder submoduleAccessDataBuilder = GitRepositoryAccessData.builder(accessData).repositoryUrl(url);
+        if (!isSameHost(accessData.getRepositoryUrl(), url))
+        {
+            submoduleAccessDataBuilder.username(null).password(null).authenticationType(GitAuthenticationType.NONE);
+        }
+        final GitRepositoryAccessData submoduleAccessData = submoduleAccessDataBuilder.build();
+        final File submoduleCache = GitCacheDirectory.getSubmoduleCacheDirectory(cacheDirectory.getParentFile(), url);
+        try
+        {
+            return GitCacheDirectory.getCacheLock(submoduleCache).withLock(new Callable<File>()
+            {
+                public File call() throws Exception
+                {
+                    final String commit = repositoryReader.getSubmoduleCommit(sourceDirectory, path);
+                    if (commit != null && new File(submoduleCache, Constants.DOT_GIT).isDirectory() && repositoryReader.resolveCommit(submoduleCache, commit) != null)
+                    {
+                        return submoduleCache;
+                    }
+                    if (!new File(submoduleCache, Constants.DOT_GIT).isDirectory())
+                    {
+                        gitCommandProcessor.runInitCommand(submoduleCache);
+                    }
+                    final GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(submoduleAccessData);
+                    try
+                    {
+                        gitCommandProcessor.runFetchCommand(submoduleCache, proxiedAccessData, "+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*", false);
+                    }
+                    finally
+                    {
+                        closeProxy(proxiedAccessData);
+                    }
+                    return submoduleCache;
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            log.warn("Could not update submodule cache " + submoduleCache + " for " + url, e);
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.submoduleCacheFailed", path, url));
+            return null;
+        }
+    }
+
+    private static boolean isSameHost(@NotNull final String url, @NotNull final String otherUrl)
+    {
+        try
+        {
+            final String host = ScpAwareUri.create(url).getHost();
+            return host != null && host.equalsIgnoreCase(ScpAwareUri.create(otherUrl).getHost());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
     @Override
     public void fetch(@NotNull final File sourceDirectory, @NotNull String targetBranchOrRevision, final boolean useShallow) throws RepositoryException
     {
         final String[] refSpecDescription = {"(unresolved) " + targetBranchOrRevision};
         try
         {
+            final GitSharedObjectStore sharedObjectStore = useShallow ? null : GitSharedObjectStore.forDirectory(sourceDirectory, accessData);
+            if (sharedObjectStore != null)
+            {
+                sharedObjectStore.attach(sourceDirectory);
+            }
             createLocalRepository(sourceDirectory, null);
             final GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
 
@@ -384,6 +632,12 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
                                              + (useShallow ? " " + i18nResolver.getText("repository.git.messages.doingShallowFetch") : ""));
 
                 gitCommandProcessor.runFetchCommand(sourceDirectory, proxiedAccessData, "+"+resolvedRefSpec+":"+resolvedRefSpec, useShallow);
+                // git may have repacked (gc --auto) under JGit repositories open on the directory
+                JGitRepositoryManager.SHARED.invalidate(new File(sourceDirectory, Constants.DOT_GIT));
+                if (sharedObjectStore != null)
+                {
+                    sharedObjectStore.absorb(sourceDirectory);
+                }
             }
             finally
             {
@@ -451,12 +705,28 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
             @Override
             public ImmutableMap<String, String> call() throws Exception
             {
+                checkRemoteCircuit(accessData);
+
+                final ImmutableMap<String, String> inProcessRefs = getRemoteRefsInProcess(accessData);
+                if (inProcessRefs != null)
+                {
+                    recordRemoteSuccess(accessData);
+                    return inProcessRefs;
+                }
+
                 final boolean createNewProxySession = proxiedAccessData == null;
                 final GitRepositoryAccessData accessDataToUse = createNewProxySession ? adjustRepositoryAccess(accessData) : proxiedAccessData;
 
                 try
                 {
-                    return gitCommandProcessor.getRemoteRefs(workingDir, accessDataToUse);
+                    final ImmutableMap<String, String> remoteRefs = gitCommandProcessor.getRemoteRefs(workingDir, accessDataToUse);
+                    recordRemoteSuccess(accessData);
+                    return remoteRefs;
+                }
+                catch (RepositoryException e)
+                {
+                    recordRemoteFailure(accessData, e);
+                    throw e;
                 }
                 finally
                 {
@@ -476,10 +746,76 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
         return callResult;
     }
 
+    /**
+     * @return refs of the remote as listed by JGit, or null if they have to be listed with git: when the transport
+     * depends on the ssh setup of the agent (ssh without credentials in the repository), JGit does not support the
+     * protocol or cannot set up the transport
+     * @throws RepositoryException if the remote failed, git would not do better
+     */
+    @Nullable
+    private ImmutableMap<String, String> getRemoteRefsInProcess(@NotNull final GitRepositoryAccessData accessData) throws RepositoryException
+    {
+        if (!IN_PROCESS_REF_DISCOVERY)
+        {
+            return null;
+        }
+        final GitAuthenticationType authenticationType = accessData.getAuthenticationType();
+        if (UriUtils.requiresSshTransport(accessData.getRepositoryUrl())
+            && authenticationType != GitAuthenticationType.SSH_KEYPAIR && authenticationType != GitAuthenticationType.PASSWORD)
+        {
+            return null;
+        }
+        try
+        {
+            return getRefDiscoveryHelper(accessData).getRemoteRefs();
+        }
+        catch (NotSupportedException e)
+        {
+            log.debug("JGit does not support the protocol of " + accessData.getRepositoryUrl() + ", falling back to git", e);
+            return null;
+        }
+        catch (TransportException e)
+        {
+            recordRemoteFailure(accessData, e);
+            throw new RepositoryException(e.getMessage(), e);
+        }
+        catch (RepositoryException e)
+        {
+            log.debug("Cannot set up the transport to " + accessData.getRepositoryUrl() + " in-process, falling back to git", e);
+            return null;
+        }
+    }
+
+    @NotNull
+    private synchronized JGitOperationHelper getRefDiscoveryHelper(@NotNull final GitRepositoryAccessData accessData)
+    {
+        if (accessData != this.accessData)
+        {
+            return new JGitOperationHelper(accessData, buildLogger, i18nResolver);
+        }
+        if (refDiscoveryHelper == null)
+        {
+            refDiscoveryHelper = new JGitOperationHelper(accessData, buildLogger, i18nResolver);
+        }
+        return refDiscoveryHelper;
+    }
+
     @NotNull
     @Override
     public String getBranchForSha(@NotNull File sourceDirectory, String revision, String configuredBranch) throws RepositoryException
     {
+        try
+        {
+            final String branch = repositoryReader.getBranchForSha(sourceDirectory, revision, configuredBranch);
+            if (StringUtils.isNotEmpty(branch))
+            {
+                return branch;
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot find branch for " + revision + " in-process, falling back to git", e);
+        }
         return gitCommandProcessor.getBranchForSha(sourceDirectory, revision, configuredBranch);
     }
 
@@ -487,12 +823,21 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     @Override
     public String getCurrentRevision(@NotNull final File sourceDirectory) throws RepositoryException
     {
-        return gitCommandProcessor.getRevisionHash(sourceDirectory, Constants.HEAD);
+        final String revision = resolveCommitInProcess(sourceDirectory, Constants.HEAD);
+        return revision != null ? revision : gitCommandProcessor.getRevisionHash(sourceDirectory, Constants.HEAD);
     }
 
     @Override
     public String getRevisionIfExists(@NotNull final File sourceDirectory, @NotNull final String revision)
     {
+        try
+        {
+            return repositoryReader.resolveCommit(sourceDirectory, revision);
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot resolve " + revision + " in-process, falling back to git", e);
+        }
         try
         {
             return gitCommandProcessor.getRevisionHash(sourceDirectory, revision);
@@ -521,22 +866,98 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     @Override
     public boolean checkRevisionExistsInCacheRepository(@NotNull final File repositoryDirectory, @NotNull final String targetRevision) throws RepositoryException
     {
+        final String revision = resolveCommitInProcess(repositoryDirectory, targetRevision);
+        if (revision != null)
+        {
+            return targetRevision.equals(revision);
+        }
+        // let git report the missing revision
         return targetRevision.equals(gitCommandProcessor.getRevisionHash(repositoryDirectory, targetRevision));
     }
 
+    /**
+     * @return commit id the revision resolves to, or null if it does not resolve or the query can't be answered in-process
+     */
+    @Nullable
+    private String resolveCommitInProcess(@NotNull final File directory, @NotNull final String revision)
+    {
+        try
+        {
+            return repositoryReader.resolveCommit(directory, revision);
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot resolve " + revision + " in-process, falling back to git", e);
+            return null;
+        }
+    }
+
+    @NotNull
+    private String getPossibleBranchNameForCheckout(@NotNull final File sourceDirectory, @NotNull final String revision) throws RepositoryException
+    {
+        final String configuredBranchName = accessData.getVcsBranch().getName();
+        try
+        {
+            return repositoryReader.getPossibleBranchNameForCheckout(sourceDirectory, revision, configuredBranchName);
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot look up branches in-process, falling back to git", e);
+            return gitCommandProcessor.getPossibleBranchNameForCheckout(sourceDirectory, revision, configuredBranchName);
+        }
+    }
+
     @Override
     @NotNull
     public CommitContext getCommit(final File directory, final String targetRevision) throws RepositoryException
     {
-        return gitCommandProcessor.extractCommit(directory, targetRevision);
+        final String repositoryKey = CommitMetadataCache.getRepositoryKey(COMMIT_CACHE_KEY, accessData, directory);
+        final CommitContext cachedCommit = ObjectId.isId(targetRevision) ? CommitMetadataCache.SHARED.get(repositoryKey, targetRevision, false) : null;
+        if (cachedCommit != null)
+        {
+            return cachedCommit;
+        }
+        final CommitContext commit = gitCommandProcessor.extractCommit(directory, targetRevision);
+        CommitMetadataCache.SHARED.put(repositoryKey, commit, false);
+        return commit;
     }
 
     @Override
     public BuildRepositoryChanges extractCommits(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision) throws RepositoryException
     {
-        Pair<List<CommitContext>, Integer> result = gitCommandProcessor.runLogCommand(cacheDirectory, lastVcsRevisionKey, targetRevision, getShallows(cacheDirectory), CHANGESET_LIMIT);
-        BuildRepositoryChanges buildChanges = new BuildRepositoryChangesImpl(targetRevision, result.getFirst());
-        buildChanges.setSkippedCommitsCount(result.getSecond());
+        final String repositoryKey = CommitMetadataCache.getRepositoryKey(COMMIT_CACHE_KEY, accessData, cacheDirectory);
+        final Set<String> shallows = getShallows(cacheDirectory);
+
+        // listing the range is cheap compared to reading it, when another plan has read these commits already
+        final Pair<List<String>, Integer> revisions = gitCommandProcessor.getRevisions(cacheDirectory, lastVcsRevisionKey, targetRevision, CHANGESET_LIMIT);
+        final List<CommitContext> cachedCommits = Lists.newArrayList();
+        for (final String revision : revisions.getFirst())
+        {
+            final CommitContext cachedCommit = shallows.contains(revision) ? null : CommitMetadataCache.SHARED.get(repositoryKey, revision, true);
+            if (cachedCommit == null)
+            {
+                break;
+            }
+            cachedCommits.add(cachedCommit);
+        }
+        if (cachedCommits.size() == revisions.getFirst().size())
+        {
+            final BuildRepositoryChanges buildChanges = new BuildRepositoryChangesImpl(targetRevision, cachedCommits);
+            buildChanges.setSkippedCommitsCount(revisions.getSecond() - cachedCommits.size());
+            return buildChanges;
+        }
+
+        // the range has been counted already
+        final List<CommitContext> commits = gitCommandProcessor.runLogCommand(cacheDirectory, lastVcsRevisionKey, targetRevision, shallows, CHANGESET_LIMIT, false).getFirst();
+        for (final CommitContext commit : commits)
+        {
+            if (!shallows.contains(commit.getChangeSetId()))
+            {
+                CommitMetadataCache.SHARED.put(repositoryKey, commit, true);
+            }
+        }
+        BuildRepositoryChanges buildChanges = new BuildRepositoryChangesImpl(targetRevision, commits);
+        buildChanges.setSkippedCommitsCount(Math.max(0, revisions.getSecond() - commits.size()));
         return buildChanges;
     }
 
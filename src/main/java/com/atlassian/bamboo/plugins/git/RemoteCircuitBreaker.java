@@ -0,0 +1,294 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of remotes (url and credentials) that keep failing, so that callers can fail fast instead of waiting
+ * for the transfer timeout on every call.
+ * <p/>
+ * After a number of consecutive failures the circuit for a remote opens and {@link #allowRequest(String, String)}
+ * returns false for the cool-down period. After that a single probe call is let through (half-open state): its success
+ * closes the circuit, its failure opens it for another cool-down period.
+ */
+public class RemoteCircuitBreaker
+{
+    private static final Logger log = Logger.getLogger(RemoteCircuitBreaker.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int FAILURE_THRESHOLD = new SystemProperty(false, "atlassian.bamboo.git.circuitBreaker.failures", "GIT_CIRCUIT_BREAKER_FAILURES").getValue(3);
+    static final int COOL_DOWN_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.circuitBreaker.coolDown", "GIT_CIRCUIT_BREAKER_COOL_DOWN").getValue(5 * 60);
+
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final ConcurrentMap<String, Circuit> circuits = Maps.newConcurrentMap();
+    private final Ticker ticker;
+    private final int failureThreshold;
+    private final long coolDownNanos;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public RemoteCircuitBreaker(@NotNull final Ticker ticker, final int failureThreshold, final long coolDown, @NotNull final TimeUnit unit)
+    {
+        this.ticker = ticker;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.coolDownNanos = unit.toNanos(coolDown);
+    }
+
+    public static RemoteCircuitBreaker createDefault()
+    {
+        return new RemoteCircuitBreaker(Ticker.systemTicker(), FAILURE_THRESHOLD, COOL_DOWN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @param key identifies the remote and the credentials used to access it
+     * @param url url of the remote, used for logging and statistics
+     * @return false if the circuit is open and the call should not be attempted
+     */
+    public boolean allowRequest(@NotNull final String key, @NotNull final String url)
+    {
+        final Circuit circuit = circuits.get(key);
+        if (circuit == null)
+        {
+            // never failed
+            return true;
+        }
+        synchronized (circuit)
+        {
+            switch (circuit.state)
+            {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (ticker.read() >= circuit.retryAtNanos)
+                    {
+                        log.info("Probing " + url + " after " + circuit.consecutiveFailures + " consecutive failures");
+                        circuit.state = State.HALF_OPEN;
+                        circuit.retryAtNanos = ticker.read() + coolDownNanos;
+                        return true;
+                    }
+                    break;
+                case HALF_OPEN:
+                    // the probe should have finished by now, if it hasn't reported back let another call try
+                    if (ticker.read() >= circuit.retryAtNanos)
+                    {
+                        circuit.retryAtNanos = ticker.read() + coolDownNanos;
+                        return true;
+                    }
+                    break;
+            }
+            circuit.rejectedCalls++;
+            return false;
+        }
+    }
+
+    public void recordSuccess(@NotNull final String key)
+    {
+        final Circuit circuit = circuits.get(key);
+        if (circuit == null)
+        {
+            return;
+        }
+        synchronized (circuit)
+        {
+            if (circuit.state != State.CLOSED)
+            {
+                log.info("Remote " + circuit.url + " is reachable again, closing circuit");
+            }
+            circuit.state = State.CLOSED;
+            circuit.consecutiveFailures = 0;
+        }
+    }
+
+    public void recordFailure(@NotNull final String key, @NotNull final String url, @Nullable final Throwable cause)
+    {
+        final Circuit circuit = getCircuit(key, url);
+        synchronized (circuit)
+        {
+            circuit.consecutiveFailures++;
+            circuit.totalFailures++;
+            circuit.lastError = cause != null ? cause.getMessage() : null;
+            if (circuit.state == State.HALF_OPEN || circuit.state == State.CLOSED && circuit.consecutiveFailures >= failureThreshold)
+            {
+                log.warn("Remote " + url + " failed " + circuit.consecutiveFailures + " times in a row, failing fast for "
+                         + TimeUnit.NANOSECONDS.toSeconds(coolDownNanos) + "s. Last error: " + circuit.lastError);
+                circuit.state = State.OPEN;
+                circuit.retryAtNanos = ticker.read() + coolDownNanos;
+            }
+        }
+    }
+
+    @Nullable
+    public CircuitStats getStats(@NotNull final String key)
+    {
+        final Circuit circuit = circuits.get(key);
+        return circuit != null ? createStats(circuit) : null;
+    }
+
+    /**
+     * @return statistics of every remote which has failed at least once
+     */
+    @NotNull
+    public List<CircuitStats> getAllStats()
+    {
+        final ImmutableList.Builder<CircuitStats> builder = ImmutableList.builder();
+        for (final Circuit circuit : circuits.values())
+        {
+            builder.add(createStats(circuit));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return statistics of the remotes which calls currently fail fast for
+     */
+    @NotNull
+    public List<CircuitStats> getOpenStats()
+    {
+        final ImmutableList.Builder<CircuitStats> builder = ImmutableList.builder();
+        for (final CircuitStats stats : getAllStats())
+        {
+            if (stats.getState() != State.CLOSED)
+            {
+                builder.add(stats);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Logs the remotes which calls currently fail fast for, so that they show up in the logs also while no call is
+     * rejected.
+     */
+    public void logOpenCircuits()
+    {
+        final List<CircuitStats> openStats = getOpenStats();
+        if (!openStats.isEmpty())
+        {
+            log.warn("Failing fast on " + openStats.size() + " git remote(s): " + openStats);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private Circuit getCircuit(final String key, final String url)
+    {
+        final Circuit circuit = circuits.get(key);
+        if (circuit != null)
+        {
+            return circuit;
+        }
+        final Circuit newCircuit = new Circuit(url);
+        final Circuit existing = circuits.putIfAbsent(key, newCircuit);
+        return existing != null ? existing : newCircuit;
+    }
+
+    private CircuitStats createStats(final Circuit circuit)
+    {
+        synchronized (circuit)
+        {
+            final long retryInNanos = circuit.state == State.CLOSED ? 0 : Math.max(0, circuit.retryAtNanos - ticker.read());
+            return new CircuitStats(circuit.url, circuit.state, circuit.consecutiveFailures, circuit.totalFailures,
+                                    circuit.rejectedCalls, circuit.lastError, TimeUnit.NANOSECONDS.toSeconds(retryInNanos));
+        }
+    }
+
+    private static final class Circuit
+    {
+        private final String url;
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long totalFailures;
+        private long rejectedCalls;
+        private long retryAtNanos;
+        private String lastError;
+
+        private Circuit(final String url)
+        {
+            this.url = url;
+        }
+    }
+
+    public static final class CircuitStats
+    {
+        private final String url;
+        private final State state;
+        private final int consecutiveFailures;
+        private final long totalFailures;
+        private final long rejectedCalls;
+        private final String lastError;
+        private final long secondsToRetry;
+
+        CircuitStats(final String url, final State state, final int consecutiveFailures, final long totalFailures,
+                     final long rejectedCalls, final String lastError, final long secondsToRetry)
+        {
+            this.url = url;
+            this.state = state;
+            this.consecutiveFailures = consecutiveFailures;
+            this.totalFailures = totalFailures;
+            this.rejectedCalls = rejectedCalls;
+            this.lastError = lastError;
+            this.secondsToRetry = secondsToRetry;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        public State getState()
+        {
+            return state;
+        }
+
+        public int getConsecutiveFailures()
+        {
+            return consecutiveFailures;
+        }
+
+        public long getTotalFailures()
+        {
+            return totalFailures;
+        }
+
+        public long getRejectedCalls()
+        {
+            return rejectedCalls;
+        }
+
+        @Nullable
+        public String getLastError()
+        {
+            return lastError;
+        }
+
+        public long getSecondsToRetry()
+        {
+            return secondsToRetry;
+        }
+
+        @Override
+        public String toString()
+        {
+            return url + ": " + state + ", consecutive failures: " + consecutiveFailures + ", total failures: " + totalFailures
+                   + ", rejected calls: " + rejectedCalls + ", retry in: " + secondsToRetry + "s";
+        }
+    }
+}
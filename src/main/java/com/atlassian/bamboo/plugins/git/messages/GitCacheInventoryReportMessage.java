@@ -0,0 +1,29 @@
+package com.atlassian.bamboo.plugins.git.messages;
+
+import com.atlassian.bamboo.plugins.git.GitCacheHandler;
+import com.atlassian.bamboo.plugins.git.GitCacheInventory;
+import com.atlassian.bamboo.v2.build.agent.messages.AbstractBambooAgentMessage;
+
+/**
+ * Message sent by an agent to the server, carrying the git caches the agent holds.
+ */
+public class GitCacheInventoryReportMessage extends AbstractBambooAgentMessage
+{
+    private final long agentId;
+    private final String agentName;
+    private final GitCacheInventory inventory;
+
+    public GitCacheInventoryReportMessage(final long agentId, final String agentName, final GitCacheInventory inventory)
+    {
+        this.agentId = agentId;
+        this.agentName = agentName;
+        this.inventory = inventory;
+    }
+
+    public Object deliver()
+    {
+        // published as agent capabilities by GitCacheAffinity
+        GitCacheHandler.CACHE_INVENTORY.record(agentId, agentName, inventory);
+        return null;
+    }
+}
@@ -0,0 +1,41 @@
+package com.atlassian.bamboo.plugins.git.messages;
+
+import com.atlassian.bamboo.build.fileserver.BuildDirectoryManager;
+import com.atlassian.bamboo.plugins.git.GitCacheDirectory;
+import com.atlassian.bamboo.plugins.git.GitCacheInventory;
+import com.atlassian.bamboo.plugins.git.GitCacheTrash;
+import com.atlassian.bamboo.v2.build.agent.messages.AbstractBambooAgentMessage;
+import com.atlassian.bamboo.v2.build.agent.messages.RemoteBambooMessage;
+import com.atlassian.bamboo.v2.build.agent.messages.sender.BambooAgentMessageSender;
+import com.atlassian.spring.container.ContainerManager;
+
+import java.io.File;
+
+/**
+ * Message asking an agent to report the git caches it holds, answered with a {@link GitCacheInventoryReportMessage}.
+ */
+public class ReportGitCacheInventoryOnAgentMessage extends AbstractBambooAgentMessage
+        implements RemoteBambooMessage
+{
+    private final long agentId;
+    private final String agentName;
+
+    public ReportGitCacheInventoryOnAgentMessage(final long agentId, final String agentName)
+    {
+        this.agentId = agentId;
+        this.agentName = agentName;
+    }
+
+    public Object deliver()
+    {
+        final BuildDirectoryManager buildDirectoryManager = (BuildDirectoryManager) ContainerManager.getComponent("buildDirectoryManager");
+        final File cacheRoot = GitCacheDirectory.getCacheDirectoryRoot(buildDirectoryManager.getBaseBuildWorkingDirectory());
+        // directories left in the trash by a restart are only reported once their deletion is running
+        GitCacheTrash.DEFAULT.emptyTrash(cacheRoot);
+        final GitCacheInventory inventory = GitCacheInventory.collect(cacheRoot);
+
+        final BambooAgentMessageSender messageSender = (BambooAgentMessageSender) ContainerManager.getComponent("bambooAgentMessageSender");
+        messageSender.send(new GitCacheInventoryReportMessage(agentId, agentName, inventory));
+        return null;
+    }
+}
@@ -12,3 +12,4 @@
 [@s.textfield labelKey='repository.git.commandTimeout' name='repository.git.commandTimeout' /]
 [@s.checkbox labelKey='repository.git.verbose.logs' name='repository.git.verbose.logs' /]
 [@s.checkbox labelKey='repository.git.fetch.whole.repository' name='repository.git.fetch.whole.repository' /]
+[@s.textarea labelKey='repository.git.tuning' name='repository.git.tuning' rows='4' cssClass='long-field' /]
@@ -25,6 +25,7 @@
 [@ww.label labelKey='repository.git.useSubmodules' value=repository.useSubmodules?string hideOnNull=true /]
 [@ww.label labelKey='repository.git.commandTimeout' value=repository.commandTimeout! hideOnNull=true /]
 [@ww.label labelKey='repository.git.verbose.logs' value=repository.verboseLogs?string hideOnNull=true /]
+[@ww.label labelKey='repository.git.tuning' value=repository.tuningProfile! hideOnNull=true /]
 [@ww.label labelKey='repository.git.cacheDirectory' value=repository.cacheDirectory/]
 
 [#if plan?? && fn.hasGlobalAdminPermission() && repository.cacheDirectory?? && repository.cacheDirectory.exists()]
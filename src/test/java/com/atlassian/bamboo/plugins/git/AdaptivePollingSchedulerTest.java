@@ -0,0 +1,95 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.plugins.git.testutils.FakeTicker;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdaptivePollingSchedulerTest
+{
+    private static final String KEY = "http://some.url\0master";
+
+    private FakeTicker ticker;
+    private AdaptivePollingScheduler scheduler;
+
+    @BeforeMethod
+    public void setUp() throws Exception
+    {
+        ticker = new FakeTicker();
+        scheduler = new AdaptivePollingScheduler(ticker, 1, 60, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testUnknownLocationIsAlwaysPolled() throws Exception
+    {
+        Assert.assertTrue(scheduler.isPollDue(KEY, "a"));
+        Assert.assertTrue(scheduler.isPollDue(KEY, null));
+    }
+
+    @Test
+    public void testBacksOffUpToMaxStaleness() throws Exception
+    {
+        scheduler.recordPoll(KEY, "a");
+        Assert.assertEquals(scheduler.getPollingInterval(KEY, TimeUnit.MINUTES), 1);
+
+        long expected = 1;
+        for (int i = 0; i < 10; i++)
+        {
+            ticker.advance(expected, TimeUnit.MINUTES);
+            Assert.assertTrue(scheduler.isPollDue(KEY, "a"));
+            scheduler.recordPoll(KEY, "a");
+            expected = Math.min(60, expected * 2);
+            Assert.assertEquals(scheduler.getPollingInterval(KEY, TimeUnit.MINUTES), expected);
+        }
+
+        ticker.advance(59, TimeUnit.MINUTES);
+        Assert.assertFalse(scheduler.isPollDue(KEY, "a"));
+        ticker.advance(1, TimeUnit.MINUTES);
+        Assert.assertTrue(scheduler.isPollDue(KEY, "a"));
+    }
+
+    @Test
+    public void testChangeSnapsBackToMinimumInterval() throws Exception
+    {
+        scheduler.recordPoll(KEY, "a");
+        for (int i = 0; i < 5; i++)
+        {
+            ticker.advance(60, TimeUnit.MINUTES);
+            scheduler.recordPoll(KEY, "a");
+        }
+        Assert.assertTrue(scheduler.getPollingInterval(KEY, TimeUnit.MINUTES) > 1);
+
+        scheduler.recordPoll(KEY, "b");
+        Assert.assertEquals(scheduler.getPollingInterval(KEY, TimeUnit.MINUTES), 1);
+    }
+
+    @Test
+    public void testFrequentlyChangingRepositoryStaysFast() throws Exception
+    {
+        scheduler.recordPoll(KEY, "r0");
+        for (int i = 1; i <= 5; i++)
+        {
+            ticker.advance(20, TimeUnit.MINUTES);
+            scheduler.recordPoll(KEY, "r" + i);
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            ticker.advance(scheduler.getPollingInterval(KEY, TimeUnit.MINUTES), TimeUnit.MINUTES);
+            scheduler.recordPoll(KEY, "r5");
+        }
+        Assert.assertEquals(scheduler.getPollingInterval(KEY, TimeUnit.MINUTES), 5);
+    }
+
+    @Test
+    public void testCallerBehindIsAlwaysPolled() throws Exception
+    {
+        scheduler.recordPoll(KEY, "a");
+        ticker.advance(10, TimeUnit.SECONDS);
+        scheduler.recordPoll(KEY, "b");
+
+        Assert.assertFalse(scheduler.isPollDue(KEY, "b"));
+        Assert.assertTrue(scheduler.isPollDue(KEY, "a"));
+    }
+}
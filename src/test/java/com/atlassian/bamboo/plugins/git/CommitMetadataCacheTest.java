@@ -0,0 +1,83 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.author.AuthorImpl;
+import com.atlassian.bamboo.commit.CommitContext;
+import com.atlassian.bamboo.commit.CommitFileImpl;
+import com.atlassian.bamboo.commit.CommitImpl;
+import org.apache.commons.lang.StringUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Date;
+
+public class CommitMetadataCacheTest
+{
+    private static final String REPOSITORY = "native\0ssh://example.com/repository.git";
+
+    @Test
+    public void testCachedCommitsAreCopies() throws Exception
+    {
+        final CommitMetadataCache cache = new CommitMetadataCache(1024 * 1024);
+        cache.put(REPOSITORY, commit("a", "message", "file1", "file2"), true);
+
+        final CommitContext cached = cache.get(REPOSITORY, "a", true);
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(cached.getComment(), "message");
+        Assert.assertEquals(cached.getAuthor().getName(), "Author <author@example.com>");
+        Assert.assertEquals(cached.getDate(), new Date(1000));
+        Assert.assertEquals(cached.getFiles().size(), 2);
+        Assert.assertEquals(cached.getFiles().get(1).getName(), "file2");
+        Assert.assertNotSame(cache.get(REPOSITORY, "a", true), cached);
+
+        Assert.assertTrue(cache.get(REPOSITORY, "a", false).getFiles().isEmpty());
+        Assert.assertNull(cache.get("jgit\0ssh://example.com/repository.git", "a", true));
+    }
+
+    @Test
+    public void testCommitsWithoutFilesDontAnswerForFiles() throws Exception
+    {
+        final CommitMetadataCache cache = new CommitMetadataCache(1024 * 1024);
+        cache.put(REPOSITORY, commit("a", "message"), false);
+        Assert.assertNotNull(cache.get(REPOSITORY, "a", false));
+        Assert.assertNull(cache.get(REPOSITORY, "a", true));
+
+        cache.put(REPOSITORY, commit("a", "message", "file"), true);
+        cache.put(REPOSITORY, commit("a", "message"), false);
+        Assert.assertEquals(cache.get(REPOSITORY, "a", true).getFiles().size(), 1);
+        Assert.assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCommitsAreEvictedByWeight() throws Exception
+    {
+        final CommitMetadataCache cache = new CommitMetadataCache(6000);
+        final String largeMessage = StringUtils.repeat("x", 1000);
+        cache.put(REPOSITORY, commit("a", largeMessage), true);
+        cache.put(REPOSITORY, commit("b", largeMessage), true);
+        Assert.assertNotNull(cache.get(REPOSITORY, "a", true));
+        cache.put(REPOSITORY, commit("c", largeMessage), true);
+
+        Assert.assertNotNull(cache.get(REPOSITORY, "a", true));
+        Assert.assertNull(cache.get(REPOSITORY, "b", true));
+        Assert.assertNotNull(cache.get(REPOSITORY, "c", true));
+        Assert.assertTrue(cache.getWeight() <= 6000);
+
+        cache.put(REPOSITORY, commit("huge", StringUtils.repeat("x", 5000)), true);
+        Assert.assertNull(cache.get(REPOSITORY, "huge", true));
+        Assert.assertEquals(cache.size(), 2);
+    }
+
+    private static CommitImpl commit(final String sha, final String message, final String... files)
+    {
+        final CommitImpl commit = new CommitImpl();
+        commit.setChangeSetId(sha);
+        commit.setComment(message);
+        commit.setAuthor(new AuthorImpl("Author <author@example.com>", null, "author@example.com"));
+        commit.setDate(new Date(1000));
+        for (final String file : files)
+        {
+            commit.addFile(new CommitFileImpl(sha, file));
+        }
+        return commit;
+    }
+}
@@ -0,0 +1,86 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.commit.CommitFile;
+import com.atlassian.bamboo.commit.CommitFileImpl;
+import org.apache.commons.lang.SerializationUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompactCommitFileListTest
+{
+    private static final String REVISION = "0123456789012345678901234567890123456789";
+
+    @Test
+    public void testPathsAreReadBack() throws Exception
+    {
+        final List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 3 * CompactCommitFileList.RESTART_INTERVAL + 5; i++)
+        {
+            paths.add("src/main/java/com/atlassian/bamboo/plugins/git/File" + i + ".java");
+        }
+        paths.add("src/main/resources/za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144.properties");
+        paths.add("src/main/resources/za\u017c\u00f3\u0142\u0107.properties");
+        paths.add("a");
+        paths.add("");
+
+        final CompactCommitFileList files = new CompactCommitFileList(REVISION);
+        for (final String path : paths)
+        {
+            files.addPath(path);
+        }
+
+        Assert.assertEquals(files.size(), paths.size());
+        for (int i = 0; i < paths.size(); i++)
+        {
+            Assert.assertEquals(files.getPath(i), paths.get(i));
+            Assert.assertEquals(files.get(i).getName(), paths.get(i));
+            Assert.assertEquals(files.get(i).getRevision(), REVISION);
+        }
+        Assert.assertEquals(files.trimmedCopy().size(), paths.size());
+        Assert.assertEquals(files.trimmedCopy().getPath(paths.size() - 3), "src/main/resources/za\u017c\u00f3\u0142\u0107.properties");
+    }
+
+    @Test
+    public void testFilesAreStoredCompactly() throws Exception
+    {
+        final CompactCommitFileList files = new CompactCommitFileList(REVISION);
+        long naiveWeight = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            final String path = "src/main/java/com/atlassian/bamboo/plugins/git/File" + i + ".java";
+            files.addPath(path);
+            naiveWeight += 2 * (path.length() + REVISION.length());
+        }
+        Assert.assertTrue(files.trimmedCopy().getWeight() * 5 < naiveWeight, files.trimmedCopy().getWeight() + " vs " + naiveWeight);
+    }
+
+    @Test
+    public void testCopiesAndSerializedListsCanBeAppendedTo() throws Exception
+    {
+        final CompactCommitFileList files = new CompactCommitFileList(REVISION);
+        files.add(new CommitFileImpl(REVISION, "dir/first"));
+
+        final CompactCommitFileList copy = files.trimmedCopy();
+        copy.addPath("dir/second");
+        Assert.assertEquals(files.size(), 1);
+        Assert.assertEquals(copy.getPath(1), "dir/second");
+
+        final CompactCommitFileList deserialized = (CompactCommitFileList) SerializationUtils.clone(copy);
+        deserialized.addPath("dir/third");
+        Assert.assertEquals(deserialized.getPath(2), "dir/third");
+
+        final CompactCommitFileList empty = new CompactCommitFileList(REVISION).trimmedCopy();
+        empty.addPath("file");
+        Assert.assertEquals(empty.getPath(0), "file");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testFilesOfOtherCommitsAreRejected() throws Exception
+    {
+        final List<CommitFile> files = new CompactCommitFileList(REVISION);
+        files.add(new CommitFileImpl("other", "file"));
+    }
+}
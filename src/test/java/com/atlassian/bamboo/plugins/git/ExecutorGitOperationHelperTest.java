@@ -0,0 +1,92 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ExecutorGitOperationHelperTest
+{
+    private ListeningExecutorService executor;
+    private GitOperationHelper helper;
+    private AsyncGitOperationHelper asyncHelper;
+
+    @BeforeMethod
+    public void setUp() throws Exception
+    {
+        executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+        helper = Mockito.mock(GitOperationHelper.class);
+        asyncHelper = new ExecutorGitOperationHelper(helper, executor);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testIndependentOperationsOverlap() throws Exception
+    {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final File directory = new File("workspace");
+        Mockito.when(helper.obtainLatestRevision()).thenAnswer(new AwaitingAnswer(bothStarted, "latest"));
+        Mockito.when(helper.getRevisionIfExists(directory, "HEAD")).thenAnswer(new AwaitingAnswer(bothStarted, "previous"));
+
+        final ListenableFuture<String> latest = asyncHelper.obtainLatestRevision();
+        final ListenableFuture<String> previous = asyncHelper.getRevisionIfExists(directory, "HEAD");
+
+        Assert.assertEquals(latest.get(5, TimeUnit.SECONDS), "latest");
+        Assert.assertEquals(previous.get(5, TimeUnit.SECONDS), "previous");
+    }
+
+    @Test
+    public void testFailureIsPropagated() throws Exception
+    {
+        final RepositoryException exception = new RepositoryException("fetch failed");
+        Mockito.doThrow(exception).when(helper).fetch(Mockito.any(File.class), Mockito.anyString(), Mockito.anyBoolean());
+
+        try
+        {
+            asyncHelper.fetch(new File("cache"), "master", false).get();
+            Assert.fail("Fetch should have failed");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertSame(e.getCause(), exception);
+        }
+    }
+
+    private static class AwaitingAnswer implements Answer<String>
+    {
+        private final CountDownLatch latch;
+        private final String result;
+
+        AwaitingAnswer(final CountDownLatch latch, final String result)
+        {
+            this.latch = latch;
+            this.result = result;
+        }
+
+        public String answer(final InvocationOnMock invocation) throws Throwable
+        {
+            latch.countDown();
+            // would time out if the operations ran one after the other
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS), "Operations did not overlap");
+            return result;
+        }
+    }
+}
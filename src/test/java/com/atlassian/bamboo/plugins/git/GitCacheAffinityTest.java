@@ -0,0 +1,114 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.buildqueue.manager.AgentManager;
+import com.atlassian.bamboo.plugins.git.testutils.FakeTicker;
+import com.atlassian.bamboo.v2.build.agent.BuildAgentImpl;
+import com.atlassian.bamboo.v2.build.agent.RemoteAgentDefinitionImpl;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilityImpl;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySet;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySetImpl;
+import com.atlassian.bamboo.v2.build.agent.capability.CapabilitySetManager;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class GitCacheAffinityTest
+{
+    private static final String OTHER_CAPABILITY = "system.builder.ant.Ant";
+
+    private CapabilitySet capabilitySet;
+    private AgentManager agentManager;
+    private CapabilitySetManager capabilitySetManager;
+    private GitCacheInventoryStore inventoryStore;
+    private GitCacheAffinity cacheAffinity;
+
+    @BeforeMethod
+    public void setUpAgent() throws Exception
+    {
+        capabilitySet = new CapabilitySetImpl();
+        capabilitySet.addCapability(new CapabilityImpl(OTHER_CAPABILITY, "/opt/ant"));
+
+        final RemoteAgentDefinitionImpl definition = new RemoteAgentDefinitionImpl();
+        definition.setCapabilitySet(capabilitySet);
+        final BuildAgentImpl buildAgent = new BuildAgentImpl(null, null);
+        buildAgent.setDefinition(definition);
+        agentManager = Mockito.mock(AgentManager.class);
+        Mockito.when(agentManager.getAgent(1L)).thenReturn(buildAgent);
+        capabilitySetManager = Mockito.mock(CapabilitySetManager.class);
+
+        inventoryStore = new GitCacheInventoryStore(new FakeTicker(), 1, TimeUnit.HOURS);
+        cacheAffinity = new GitCacheAffinity(agentManager, capabilitySetManager, inventoryStore);
+    }
+
+    @Test
+    public void testCacheCapabilitiesFollowInventory() throws Exception
+    {
+        capabilitySet.addCapability(new CapabilityImpl(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "gone", "1"));
+
+        final GitCacheInventory inventory = inventory(entry("a", 5000));
+        cacheAffinity.publish(1L, inventory);
+
+        Assert.assertNotNull(capabilitySet.getCapability(OTHER_CAPABILITY));
+        Assert.assertNull(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "gone"));
+        Assert.assertEquals(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "a").getValue(), "5");
+        Mockito.verify(capabilitySetManager).saveCapabilitySet(capabilitySet);
+
+        Mockito.reset(capabilitySetManager);
+        cacheAffinity.publish(1L, inventory);
+        Mockito.verifyZeroInteractions(capabilitySetManager);
+    }
+
+    @Test
+    public void testFetchedAndDeletedCachesUpdateCapabilities() throws Exception
+    {
+        cacheAffinity.publish(1L, inventory(entry("a", 5000), entry("b", 7000)));
+
+        cacheAffinity.publish(1L, inventory(entry("a", 9000), entry("b", 7000)));
+        Assert.assertEquals(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "a").getValue(), "9");
+
+        cacheAffinity.publish(1L, inventory());
+        Assert.assertNull(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "a"));
+        Assert.assertNull(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "b"));
+        Assert.assertNotNull(capabilitySet.getCapability(OTHER_CAPABILITY));
+        Mockito.verify(capabilitySetManager, Mockito.times(3)).saveCapabilitySet(capabilitySet);
+    }
+
+    @Test
+    public void testUnknownAgentIsIgnored() throws Exception
+    {
+        cacheAffinity.publish(2L, inventory(entry("a", 5000)));
+
+        Mockito.verifyZeroInteractions(capabilitySetManager);
+    }
+
+    @Test
+    public void testRecordedInventoriesArePublishedWhileEnabled() throws Exception
+    {
+        inventoryStore.record(1L, "agent1", inventory(entry("a", 5000)));
+        Assert.assertNull(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "a"));
+
+        cacheAffinity.afterPropertiesSet();
+        inventoryStore.record(1L, "agent1", inventory(entry("a", 5000)));
+        Assert.assertEquals(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "a").getValue(), "5");
+
+        cacheAffinity.destroy();
+        inventoryStore.record(1L, "agent1", inventory());
+        Assert.assertNotNull(capabilitySet.getCapability(GitCacheAffinity.CACHE_CAPABILITY_PREFIX + "a"));
+        Mockito.verify(capabilitySetManager).saveCapabilitySet(capabilitySet);
+    }
+
+    private static GitCacheInventory inventory(final GitCacheInventory.Entry... entries)
+    {
+        return new GitCacheInventory(ImmutableList.copyOf(entries), 0);
+    }
+
+    private static GitCacheInventory.Entry entry(final String sha, final long lastFetch)
+    {
+        return new GitCacheInventory.Entry(sha, 10, lastFetch, ImmutableMap.<String, String>of());
+    }
+}
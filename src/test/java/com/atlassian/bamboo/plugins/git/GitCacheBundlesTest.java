@@ -0,0 +1,68 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class GitCacheBundlesTest extends GitAbstractTest
+{
+    private static final String CACHE_NAME = "1234567890123456789012345678901234567890";
+
+    @Test
+    public void testCacheIsSeededFromBundle() throws Exception
+    {
+        final File serverCache = new File(createTempDirectory(), CACHE_NAME);
+        final GitTestRepository repository = new GitTestRepository(serverCache);
+        final RevCommit commit;
+        try
+        {
+            repository.commitFileContents("first");
+            commit = repository.commitFileContents("second");
+            repository.git.tag().setName("release").setObjectId(commit).call();
+        }
+        finally
+        {
+            repository.close();
+        }
+
+        final GitCacheBundles cacheBundles = new GitCacheBundles(createTempDirectory(), 1, TimeUnit.HOURS);
+        Assert.assertTrue(cacheBundles.writeBundle(serverCache));
+        Assert.assertTrue(cacheBundles.getBundleFile(serverCache).isFile());
+        Assert.assertFalse(cacheBundles.writeBundle(serverCache), "A fresh bundle should not be rewritten");
+
+        final File agentCache = new File(createTempDirectory(), CACHE_NAME);
+        Assert.assertTrue(cacheBundles.seedCache(agentCache));
+        Assert.assertFalse(cacheBundles.seedCache(agentCache), "An existing cache should not be seeded");
+
+        final FileRepository seeded = new FileRepository(new File(agentCache, Constants.DOT_GIT));
+        try
+        {
+            Assert.assertEquals(seeded.resolve(Constants.R_HEADS + Constants.MASTER), commit);
+            Assert.assertEquals(seeded.resolve(Constants.R_TAGS + "release"), commit);
+            Assert.assertTrue(seeded.hasObject(commit.getTree()));
+        }
+        finally
+        {
+            seeded.close();
+        }
+    }
+
+    @Test
+    public void testMissingOrBrokenBundleLeavesNoCache() throws Exception
+    {
+        final GitCacheBundles cacheBundles = new GitCacheBundles(createTempDirectory(), 1, TimeUnit.HOURS);
+        final File agentCache = new File(createTempDirectory(), CACHE_NAME);
+
+        Assert.assertFalse(cacheBundles.seedCache(agentCache));
+
+        FileUtils.writeStringToFile(cacheBundles.getBundleFile(agentCache), "not a bundle");
+        Assert.assertFalse(cacheBundles.seedCache(agentCache));
+        Assert.assertFalse(agentCache.exists());
+    }
+}
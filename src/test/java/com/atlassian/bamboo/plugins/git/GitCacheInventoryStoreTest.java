@@ -0,0 +1,104 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.plugins.git.testutils.FakeTicker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class GitCacheInventoryStoreTest extends GitAbstractTest
+{
+    private FakeTicker ticker;
+    private GitCacheInventoryStore store;
+
+    @BeforeMethod
+    public void setUpStore()
+    {
+        ticker = new FakeTicker();
+        store = new GitCacheInventoryStore(ticker, 1, TimeUnit.HOURS);
+    }
+
+    @Test
+    public void testReportedInventoryIsUsedUntilExpired() throws Exception
+    {
+        store.record(1, "agent1", inventory(entry("a", 10, 100)));
+        store.record(2, "agent2", inventory(entry("a", 20, 200), entry("b", 5, 50)));
+
+        Assert.assertNotNull(store.getInventory(1));
+        Assert.assertNull(store.getInventory(3));
+        Assert.assertEquals(store.getHolders("a").keySet(), ImmutableSet.of("agent1", "agent2"));
+        Assert.assertEquals(store.getHolders("a").get("agent2").getLastFetch(), 200);
+        Assert.assertEquals(store.getHolders("b").keySet(), Collections.singleton("agent2"));
+
+        ticker.advance(2, TimeUnit.HOURS);
+        Assert.assertNull(store.getInventory(1));
+        Assert.assertTrue(store.getHolders("a").isEmpty());
+    }
+
+    @Test
+    public void testInventoryIsCollectedFromCacheRoot() throws Exception
+    {
+        final File cacheRoot = GitCacheDirectory.getCacheDirectoryRoot(createTempDirectory());
+        final File cache = new File(cacheRoot, "1234567890123456789012345678901234567890");
+        final GitTestRepository repository = new GitTestRepository(cache);
+        final String head;
+        try
+        {
+            head = repository.commitFileContents("content").getName();
+        }
+        finally
+        {
+            repository.close();
+        }
+        new File(cacheRoot, GitSharedObjectStore.SHARED_OBJECTS_DIRECTORY).mkdirs();
+
+        final GitCacheInventory inventory = GitCacheInventory.collect(cacheRoot);
+        Assert.assertEquals(inventory.getEntries().size(), 1);
+        final GitCacheInventory.Entry entry = inventory.getEntries().get(0);
+        Assert.assertEquals(entry.getSha(), cache.getName());
+        Assert.assertTrue(entry.getSizeInBytes() > 0);
+        Assert.assertEquals(entry.getHeads(), ImmutableMap.of("master", head));
+    }
+
+    @Test
+    public void testCacheIsMeasuredAgainOnlyAfterFetch() throws Exception
+    {
+        final File cacheRoot = GitCacheDirectory.getCacheDirectoryRoot(createTempDirectory());
+        final File cache = new File(cacheRoot, "1234567890123456789012345678901234567890");
+        final GitTestRepository repository = new GitTestRepository(cache);
+        try
+        {
+            repository.commitFileContents("content");
+        }
+        finally
+        {
+            repository.close();
+        }
+
+        final long size = GitCacheInventory.collect(cacheRoot).getEntries().get(0).getSizeInBytes();
+        FileUtils.writeStringToFile(new File(cache, "untracked.txt"), "not fetched");
+        Assert.assertEquals(GitCacheInventory.collect(cacheRoot).getEntries().get(0).getSizeInBytes(), size);
+
+        final File fetchHead = new File(cache, ".git/FETCH_HEAD");
+        FileUtils.writeStringToFile(fetchHead, "");
+        fetchHead.setLastModified(System.currentTimeMillis() + 10000);
+        Assert.assertTrue(GitCacheInventory.collect(cacheRoot).getEntries().get(0).getSizeInBytes() > size);
+    }
+
+    private static GitCacheInventory inventory(final GitCacheInventory.Entry... entries)
+    {
+        return new GitCacheInventory(ImmutableList.copyOf(entries), 0);
+    }
+
+    private static GitCacheInventory.Entry entry(final String sha, final long size, final long lastFetch)
+    {
+        return new GitCacheInventory.Entry(sha, size, lastFetch, Collections.<String, String>emptyMap());
+    }
+}
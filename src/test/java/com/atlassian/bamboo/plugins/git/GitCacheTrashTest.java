@@ -0,0 +1,128 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+public class GitCacheTrashTest extends GitAbstractTest
+{
+    @Test
+    public void testTrashedDirectoryIsFreedAndDeleted() throws Exception
+    {
+        final File cacheRoot = GitCacheDirectory.getCacheDirectoryRoot(createTempDirectory());
+        final File cache = new File(cacheRoot, "1234567890123456789012345678901234567890");
+        FileUtils.writeStringToFile(new File(cache, ".git/config"), "[core]");
+        final File leftover = new File(GitCacheTrash.getTrashRoot(cacheRoot), "left-by-restart");
+        FileUtils.writeStringToFile(new File(leftover, "file"), "content");
+        Assert.assertEquals(GitCacheTrash.DEFAULT.getPendingDeletions(cacheRoot), 0, "Directories left by a restart are not being deleted yet");
+
+        final GitCacheTrash trash = new GitCacheTrash(MoreExecutors.sameThreadExecutor());
+        trash.moveToTrash(cache).get();
+
+        Assert.assertFalse(cache.exists());
+        Assert.assertFalse(leftover.exists(), "Directories left in the trash should be deleted too");
+        Assert.assertEquals(trash.getPendingDeletions(cacheRoot), 0);
+        Assert.assertTrue(cacheRoot.isDirectory());
+    }
+
+    @Test
+    public void testPendingDeletionsAreCountedUntilDone() throws Exception
+    {
+        final File cacheRoot = GitCacheDirectory.getCacheDirectoryRoot(createTempDirectory());
+        final File otherCacheRoot = GitCacheDirectory.getCacheDirectoryRoot(createTempDirectory());
+        final File cache = new File(cacheRoot, "1234567890123456789012345678901234567890");
+        FileUtils.writeStringToFile(new File(cache, ".git/config"), "[core]");
+
+        final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        try
+        {
+            final CountDownLatch release = new CountDownLatch(1);
+            executor.submit(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    release.await();
+                    return null;
+                }
+            });
+            final GitCacheTrash trash = new GitCacheTrash(executor);
+            final ListenableFuture<?> deletion = trash.moveToTrash(cache);
+            Assert.assertEquals(trash.getPendingDeletions(cacheRoot), 1);
+            Assert.assertEquals(trash.getPendingDeletions(otherCacheRoot), 0);
+
+            release.countDown();
+            deletion.get();
+            Assert.assertEquals(trash.getPendingDeletions(cacheRoot), 0);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDeletionsDroppedByStoppedPoolAreRetried() throws Exception
+    {
+        final File cacheRoot = GitCacheDirectory.getCacheDirectoryRoot(createTempDirectory());
+        final File cache = new File(cacheRoot, "1234567890123456789012345678901234567890");
+        FileUtils.writeStringToFile(new File(cache, ".git/config"), "[core]");
+
+        final ListeningExecutorService stoppedExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        stoppedExecutor.shutdownNow();
+        final GitCacheTrash trash = new GitCacheTrash(stoppedExecutor);
+        final ListenableFuture<?> rejected = trash.moveToTrash(cache);
+        Assert.assertFalse(cache.exists(), "The cache should be freed even if its files can't be deleted yet");
+        try
+        {
+            rejected.get();
+            Assert.fail("Deletion should have been rejected");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals(trash.getPendingDeletions(cacheRoot), 0);
+
+        final GitCacheTrash workingTrash = new GitCacheTrash(MoreExecutors.sameThreadExecutor());
+        workingTrash.emptyTrash(cacheRoot);
+        Assert.assertEquals(GitCacheTrash.getTrashRoot(cacheRoot).list().length, 0);
+    }
+
+    @Test
+    public void testClearingForgetsDroppedDeletions() throws Exception
+    {
+        final File cacheRoot = GitCacheDirectory.getCacheDirectoryRoot(createTempDirectory());
+        final File leftover = new File(GitCacheTrash.getTrashRoot(cacheRoot), "dropped-by-shutdown");
+        FileUtils.writeStringToFile(new File(leftover, "file"), "content");
+
+        final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit(new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                release.await();
+                return null;
+            }
+        });
+        final GitCacheTrash trash = new GitCacheTrash(executor);
+        trash.emptyTrash(cacheRoot);
+        Assert.assertEquals(trash.getPendingDeletions(cacheRoot), 1);
+
+        // the queued deletion is dropped
+        executor.shutdownNow();
+        trash.clearPending();
+        Assert.assertEquals(trash.getPendingDeletions(cacheRoot), 0);
+        Assert.assertTrue(leftover.exists());
+    }
+}
@@ -0,0 +1,108 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.build.logger.NullBuildLogger;
+import com.atlassian.bamboo.commit.CommitContext;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that commits read through git cat-file are the same as the ones parsed from git log.
+ */
+public class GitCatFileProcessTest extends GitAbstractTest
+{
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private GitCommandProcessor gitCommandProcessor;
+    private GitTestRepository repository;
+    private File directory;
+
+    @BeforeClass
+    public void setUpRepository() throws Exception
+    {
+        gitCommandProcessor = new GitCommandProcessor("git", new NullBuildLogger(), null, 1, false);
+        directory = createTempDirectory();
+        repository = new GitTestRepository(directory);
+    }
+
+    @AfterClass
+    public void closeRepository() throws Exception
+    {
+        repository.close();
+    }
+
+    @DataProvider
+    Object[][] messages()
+    {
+        return new Object[][] {
+                {"subject only"},
+                {"subject with newline\n"},
+                {"subject\n\nbody\n"},
+                {"subject\n\nbody without newline"},
+                {"long\nsubject  \nparagraph\n\n\nbody\n\nsecond paragraph\n\n"},
+                {"\n\n  leading blank lines\n"},
+                {"zażółć gęślą jaźń\n\nбоди\n"},
+        };
+    }
+
+    @Test(dataProvider = "messages")
+    public void testCommitMatchesGitLog(final String message) throws Exception
+    {
+        final RevCommit revCommit = repository.commitFileContents(message);
+        final String revision = revCommit.getName();
+
+        final CommitContext fromCatFile = gitCommandProcessor.extractCommit(directory, revision);
+        final CommitContext fromLog = gitCommandProcessor.runLogCommand(directory, revision, revision, Collections.<String>emptySet(), 1).getFirst().get(0);
+
+        Assert.assertEquals(fromCatFile.getChangeSetId(), fromLog.getChangeSetId());
+        Assert.assertEquals(fromCatFile.getComment(), fromLog.getComment());
+        Assert.assertEquals(fromCatFile.getAuthor().getName(), fromLog.getAuthor().getName());
+        Assert.assertEquals(fromCatFile.getDate(), fromLog.getDate());
+    }
+
+    @Test
+    public void testRevisionHash() throws Exception
+    {
+        final String revision = repository.commitFileContents("hash").getName();
+        Assert.assertEquals(gitCommandProcessor.getRevisionHash(directory, revision), revision);
+    }
+
+    @Test
+    public void testProcessIsRestartedAfterIdleShutdown() throws Exception
+    {
+        final String revision = repository.commitFileContents("restart").getName();
+        Assert.assertNotNull(GitCatFileProcess.query("git", directory, revision, TIMEOUT_MILLIS));
+        GitCatFileProcess.shutdownIdle(0);
+        final GitCatFileProcess.ObjectData objectData = GitCatFileProcess.query("git", directory, revision, TIMEOUT_MILLIS);
+        Assert.assertNotNull(objectData);
+        Assert.assertEquals(objectData.getType(), "commit");
+        Assert.assertNull(GitCatFileProcess.query("git", directory, "0000000000000000000000000000000000000000", TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void testHangingProcessIsKilledAfterTimeout() throws Exception
+    {
+        if (SystemUtils.IS_OS_WINDOWS)
+        {
+            return;
+        }
+        // answers git config, never answers git cat-file
+        final File hangingGit = new File(createTempDirectory(), "git");
+        FileUtils.writeStringToFile(hangingGit, "#!/bin/sh\n[ \"$1\" = config ] && exit 1\nexec sleep 600\n");
+        Assert.assertTrue(hangingGit.setExecutable(true));
+
+        final String revision = repository.commitFileContents("hanging").getName();
+        final long start = System.currentTimeMillis();
+        Assert.assertNull(GitCatFileProcess.query(hangingGit.getAbsolutePath(), directory, revision, 500));
+        Assert.assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(30), "Query was not bounded by the timeout");
+    }
+}
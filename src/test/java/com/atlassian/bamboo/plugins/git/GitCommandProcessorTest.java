@@ -1,7 +1,10 @@
 package com.atlassian.bamboo.plugins.git;
 
 import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.commit.CommitContext;
 import com.atlassian.bamboo.repository.RepositoryException;
+import com.atlassian.bamboo.utils.Pair;
+import com.atlassian.testtools.ZipResourceDirectory;
 import com.google.common.collect.Lists;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.RandomStringUtils;
@@ -11,11 +14,13 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 public class GitCommandProcessorTest
@@ -55,6 +60,31 @@ public class GitCommandProcessorTest
         assertFalse(result.containsKey(OLD_TAG));
     }
 
+    @Test
+    public void testParsingPushOutput()
+    {
+        final List<GitPushResult> results = GitCommandProcessor.parsePushOutput(Lists.newArrayList(
+                "To /tmp/remote.git",
+                "*\trefs/heads/feature:refs/heads/feature\t[new branch]",
+                "=\trefs/heads/master:refs/heads/master\t[up to date]",
+                "+\trefs/heads/forced:refs/heads/forced\t24f5ada...057c74d (forced update)",
+                "-\t:refs/heads/removed\t[deleted]",
+                "!\trefs/heads/stale:refs/heads/stale\t[rejected] (non-fast-forward)",
+                "error: failed to push some refs to '/tmp/remote.git'",
+                "Done"));
+
+        assertEquals(results.size(), 5);
+        assertEquals(results.get(0).getRemoteRef(), "refs/heads/feature");
+        assertEquals(results.get(0).getStatus(), GitPushResult.Status.OK);
+        assertEquals(results.get(1).getStatus(), GitPushResult.Status.UP_TO_DATE);
+        assertEquals(results.get(2).getStatus(), GitPushResult.Status.OK);
+        assertEquals(results.get(3).getLocalRef(), "");
+        assertEquals(results.get(3).getRemoteRef(), "refs/heads/removed");
+        assertEquals(results.get(4).getStatus(), GitPushResult.Status.REJECTED);
+        assertEquals(results.get(4).getMessage(), "[rejected] (non-fast-forward)");
+        assertFalse(results.get(4).isSuccessful());
+    }
+
     @Test
     public void properlyCachesGitExistence() throws RepositoryException, IOException
     {
@@ -121,6 +151,59 @@ public class GitCommandProcessorTest
         mockGit.delete();
     }
 
+    @Test
+    public void testSubmoduleUrlsAreKeyedByPath() throws Exception
+    {
+        final File directory = File.createTempFile("submodules", null);
+        directory.delete();
+        try
+        {
+            final GitCommandProcessor git = new GitCommandProcessor("git", Mockito.mock(BuildLogger.class), null, 1, false);
+            git.runInitCommand(directory);
+            assertTrue(git.getSubmoduleUrls(directory).isEmpty());
+
+            FileUtils.writeStringToFile(new File(directory, ".gitmodules"),
+                                        "[submodule \"libA\"]\n\tpath = libs/a\n\turl = ../a.git\n" +
+                                        "[submodule \"libB\"]\n\tpath = libs/b with space\n\turl = ../b.git\n" +
+                                        "[submodule \"notInitialised\"]\n\tpath = libs/c\n\turl = ../c.git\n");
+            git.runCommand(git.createCommandBuilder("config", "submodule.libA.url", "https://example.com/a.git"), directory);
+            git.runCommand(git.createCommandBuilder("config", "submodule.libB.url", "https://example.com/b.git"), directory);
+
+            final Map<String, String> urls = git.getSubmoduleUrls(directory);
+            assertEquals(urls.size(), 2);
+            assertEquals(urls.get("libs/a"), "https://example.com/a.git");
+            assertEquals(urls.get("libs/b with space"), "https://example.com/b.git");
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    @Test
+    public void testLogCommandCountsCommitsPastLimit() throws Exception
+    {
+        final File directory = File.createTempFile("changes", null);
+        directory.delete();
+        try
+        {
+            ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", directory);
+            final GitCommandProcessor git = new GitCommandProcessor("git", Mockito.mock(BuildLogger.class), null, 1, false);
+
+            final Pair<List<CommitContext>, Integer> limited = git.runLogCommand(directory, "1fea1bc1ff3a0a2a2ad5b15dc088323b906e81d7", "HEAD", Collections.<String>emptySet(), 100);
+            assertEquals(limited.getFirst().size(), 100);
+            assertEquals(limited.getSecond().intValue(), 49);
+
+            final Pair<List<CommitContext>, Integer> unlimited = git.runLogCommand(directory, "1fea1bc1ff3a0a2a2ad5b15dc088323b906e81d7", "HEAD", Collections.<String>emptySet(), 200);
+            assertEquals(unlimited.getFirst().size(), 149);
+            assertEquals(unlimited.getSecond().intValue(), 0);
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
     private void assertRunCount(final File output, final int i) throws IOException
     {
         assertEquals(FileUtils.readLines(output).size(), i);
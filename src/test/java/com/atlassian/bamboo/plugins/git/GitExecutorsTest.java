@@ -0,0 +1,50 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class GitExecutorsTest
+{
+    @Test
+    public void testPoolsAreShutDownAndCreatedAnew() throws Exception
+    {
+        final ExecutorService diffExecutor = GitExecutors.getDiffExecutor();
+        Assert.assertSame(GitExecutors.getDiffExecutor(), diffExecutor);
+
+        new GitExecutors().destroy();
+        Assert.assertTrue(diffExecutor.isShutdown());
+
+        final ExecutorService newDiffExecutor = GitExecutors.getDiffExecutor();
+        Assert.assertNotSame(newDiffExecutor, diffExecutor);
+        Assert.assertEquals(newDiffExecutor.submit(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return "done";
+            }
+        }).get(), "done");
+    }
+
+    @Test
+    public void testPeriodicTasksSurviveShutdown() throws Exception
+    {
+        final CountDownLatch runs = new CountDownLatch(2);
+        GitExecutors.addPeriodicTask(new Runnable()
+        {
+            public void run()
+            {
+                runs.countDown();
+            }
+        }, 1);
+        GitExecutors.startPeriodicTasks();
+        GitExecutors.shutdown();
+
+        GitExecutors.startPeriodicTasks();
+        Assert.assertTrue(runs.await(10, TimeUnit.SECONDS), "Periodic task was not scheduled again");
+    }
+}
@@ -92,6 +92,25 @@ public class GitMavenPomAccessorTest extends GitAbstractTest
         }
     }
 
+    @Test
+    public void testOnlyPomIsWritten() throws Exception
+    {
+        GitRepository repository = createGitRepository(AgentType.LOCAL);
+        GitRepositoryTest.setRepositoryProperties(repository, repoWithPoms.getAbsolutePath(), Collections.singletonMap("repository.git.maven.path", "relative/path"));
+
+        final File destDir = createTempDirectory();
+        try
+        {
+            repository.getMavenPomAccessor().checkoutMavenPom(destDir);
+            Assert.assertEquals(new File(destDir, "relative/path").list(), new String[]{"pom.xml"});
+            Assert.assertFalse(new File(destDir, "pom.xml").exists());
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(destDir);
+        }
+    }
+
     @DataProvider(parallel = true)
     Object[][] pomWrongPaths()
     {
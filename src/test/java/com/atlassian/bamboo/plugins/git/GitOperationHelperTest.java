@@ -9,7 +9,14 @@ import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.testtools.ZipResourceDirectory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RepositoryState;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.Transport;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -18,10 +25,17 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
@@ -332,6 +346,337 @@ public class GitOperationHelperTest extends GitAbstractTest
         }
     }
 
+    @Test
+    public void testJGitMerges() throws Exception
+    {
+        final File directory = createTempDirectory();
+        final GitTestRepository repository = new GitTestRepository(directory);
+        try
+        {
+            repository.commitFileContents("base");
+            repository.git.branchCreate().setName("side").call();
+            final RevCommit onMaster = commitNewFile(repository, "master.txt");
+            repository.git.checkout().setName("side").call();
+
+            final JGitOperationHelper helper = createJGitOperationHelper(createAccessData(directory, "side"));
+
+            assertTrue(helper.merge(directory, "master", COMITTER_NAME, COMITTER_EMAIL), "Fast forward");
+            assertEquals(helper.getCurrentRevision(directory), onMaster.name());
+            assertTrue(new File(directory, "master.txt").isFile());
+            assertFalse(helper.merge(directory, "master", COMITTER_NAME, COMITTER_EMAIL), "Already merged");
+            assertEquals(helper.commit(directory, "nothing", COMITTER_NAME, COMITTER_EMAIL), onMaster.name());
+
+            repository.git.checkout().setName("master").call();
+            final RevCommit secondOnMaster = commitNewFile(repository, "master2.txt");
+            repository.git.checkout().setName("side").call();
+            final RevCommit onSide = commitNewFile(repository, "side.txt");
+
+            assertTrue(helper.merge(directory, "master", COMITTER_NAME, COMITTER_EMAIL), "Merge");
+            assertEquals(helper.getCurrentRevision(directory), onSide.name(), "Merge should not be committed");
+            assertTrue(new File(directory, "master2.txt").isFile());
+            assertTrue(helper.merge(directory, "master", COMITTER_NAME, COMITTER_EMAIL), "Merge into a workspace with the merge in progress");
+
+            final String merge = helper.commit(directory, "merge", COMITTER_NAME, COMITTER_EMAIL);
+            final RevWalk revWalk = new RevWalk(repository.srcRepo);
+            try
+            {
+                final RevCommit mergeCommit = revWalk.parseCommit(ObjectId.fromString(merge));
+                assertEquals(mergeCommit.getParents(), new RevCommit[] {onSide, secondOnMaster});
+                assertEquals(mergeCommit.getCommitterIdent().getName(), COMITTER_NAME);
+            }
+            finally
+            {
+                revWalk.release();
+            }
+            assertFalse(helper.merge(directory, "master", COMITTER_NAME, COMITTER_EMAIL));
+
+            repository.git.checkout().setName("master").call();
+            repository.commitFileContents("conflict on master");
+            repository.git.checkout().setName("side").call();
+            final RevCommit conflictOnSide = repository.commitFileContents("conflict on side");
+            try
+            {
+                helper.merge(directory, "master", COMITTER_NAME, COMITTER_EMAIL);
+                fail("A conflicting merge was succesful");
+            }
+            catch (RepositoryException e)
+            {
+            }
+            assertEquals(helper.getCurrentRevision(directory), conflictOnSide.name());
+            assertEquals(repository.srcRepo.getRepositoryState(), RepositoryState.SAFE, "Merge left in progress");
+            assertNull(repository.srcRepo.readMergeHeads());
+            assertNull(repository.srcRepo.readMergeCommitMsg());
+            assertFalse(repository.srcRepo.readDirCache().hasUnmergedPaths(), "Conflict left in the index");
+            assertTrue(repository.git.status().call().isClean(), "Workspace differs from HEAD");
+            assertEquals(FileUtils.readFileToString(repository.textFile), "conflict on side");
+        }
+        finally
+        {
+            repository.close();
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    @Test
+    public void testPushingRefsWithJGit() throws Exception
+    {
+        checkPushingRefs(false);
+    }
+
+    @Test
+    public void testPushingRefsWithNativeGit() throws Exception
+    {
+        checkPushingRefs(true);
+    }
+
+    @Test
+    public void testInProcessRemoteRefsMatchLsRemote() throws Exception
+    {
+        final GitTestRepository source = new GitTestRepository(createTempDirectory());
+        try
+        {
+            final RevCommit first = source.commitFileContents("first");
+            source.git.branchCreate().setName("feature").call();
+            source.git.tag().setName("annotated").setMessage("annotated tag").setObjectId(first).call();
+            source.commitFileContents("second");
+
+            final GitRepositoryAccessData accessData = createAccessData(source.srcDir.getAbsolutePath());
+            final NativeGitOperationHelper nativeHelper = createNativeGitOperationHelper(accessData);
+            final Map<String, String> lsRemoteRefs = nativeHelper.gitCommandProcessor.getRemoteRefs(source.srcDir, accessData);
+            final Map<String, String> inProcessRefs = createJGitOperationHelper(accessData).getRemoteRefs();
+
+            assertEquals(new ArrayList<Map.Entry<String, String>>(inProcessRefs.entrySet()),
+                         new ArrayList<Map.Entry<String, String>>(lsRemoteRefs.entrySet()));
+            assertEquals(inProcessRefs.get("refs/tags/annotated"), source.srcRepo.resolve("refs/tags/annotated").getName(), "Tags should not be peeled");
+            assertEquals(inProcessRefs.keySet().iterator().next(), Constants.HEAD);
+            assertEquals(nativeHelper.obtainLatestRevision(), source.srcRepo.resolve("refs/heads/master").getName());
+        }
+        finally
+        {
+            source.close();
+        }
+    }
+
+    @Test
+    public void testCopyingCacheRefsAsPackedRefs() throws Exception
+    {
+        final GitTestRepository cache = new GitTestRepository(createTempDirectory());
+        final File workspaceGitDir = new File(createTempDirectory(), Constants.DOT_GIT);
+        final FileRepository workspace = new FileRepository(workspaceGitDir);
+        try
+        {
+            final RevCommit first = cache.commitFileContents("first");
+            cache.git.branchCreate().setName("packed").call();
+            cache.git.tag().setName("packedTag").setObjectId(first).call();
+            cache.git.tag().setName("packedAnnotated").setMessage("annotated").setObjectId(first).call();
+            createNativeGitOperationHelper(createAccessData(cache.srcDir.getAbsolutePath())).gitCommandProcessor
+                    .runCommand(new GitCommandBuilder("pack-refs", "--all"), cache.srcDir);
+            assertFalse(new File(cache.srcRepo.getDirectory(), "refs/heads/packed").exists());
+
+            final RevCommit second = cache.commitFileContents("second");
+            cache.git.branchCreate().setName("loose").call();
+            cache.git.tag().setName("looseTag").setObjectId(second).call();
+
+            workspace.create();
+            FileUtils.writeStringToFile(new File(workspaceGitDir, "refs/heads/packed"), second.name() + "\n");
+            FileUtils.writeStringToFile(new File(workspaceGitDir, "refs/heads/local"), first.name() + "\n");
+            FileUtils.writeStringToFile(new File(workspaceGitDir, Constants.PACKED_REFS),
+                                        "# pack-refs with: peeled \n" + first.name() + " refs/remotes/origin/old\n");
+
+            JGitOperationHelper.copyRefsAsPackedRefs(cache.srcRepo.getDirectory(), workspaceGitDir);
+
+            assertFalse(new File(workspaceGitDir, "refs/heads/packed").exists(), "Loose refs shadowing the cache should be removed");
+            assertTrue(new File(workspaceGitDir, "refs/heads/local").exists());
+            assertFalse(new File(workspaceGitDir, Constants.PACKED_REFS + ".new").exists());
+            assertWorkspaceRefs(cache, workspaceGitDir, "refs/heads/master", "refs/heads/packed", "refs/heads/loose",
+                                "refs/tags/packedTag", "refs/tags/packedAnnotated", "refs/tags/looseTag");
+            assertWorkspaceRef(workspaceGitDir, "refs/heads/local", first);
+            assertWorkspaceRef(workspaceGitDir, "refs/remotes/origin/old", first);
+
+            // provisioning the same workspace again picks up the moved heads and replaces the packed-refs file
+            final RevCommit third = cache.commitFileContents("third");
+            cache.git.tag().setName("newTag").setObjectId(third).call();
+
+            JGitOperationHelper.copyRefsAsPackedRefs(cache.srcRepo.getDirectory(), workspaceGitDir);
+
+            assertFalse(new File(workspaceGitDir, Constants.PACKED_REFS + ".new").exists());
+            assertWorkspaceRefs(cache, workspaceGitDir, "refs/heads/master", "refs/heads/packed", "refs/heads/loose",
+                                "refs/tags/packedTag", "refs/tags/packedAnnotated", "refs/tags/looseTag", "refs/tags/newTag");
+            assertWorkspaceRef(workspaceGitDir, "refs/heads/master", third);
+            assertWorkspaceRef(workspaceGitDir, "refs/heads/local", first);
+            assertWorkspaceRef(workspaceGitDir, "refs/remotes/origin/old", first);
+        }
+        finally
+        {
+            workspace.close();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testLocalCloneSharesCacheObjects() throws Exception
+    {
+        final GitTestRepository cache = new GitTestRepository(createTempDirectory());
+        try
+        {
+            final RevCommit first = cache.commitFileContents("first");
+            cache.git.tag().setName("annotated").setMessage("annotated").setObjectId(first).call();
+            cache.git.branchCreate().setName("feature").call();
+            final RevCommit second = cache.commitFileContents("second");
+
+            final File workspace = createTempDirectory();
+            createNativeGitOperationHelper(createAccessData(cache.srcDir.getAbsolutePath())).gitCommandProcessor
+                    .runLocalCloneCommand(workspace, cache.srcDir);
+
+            final File workspaceGitDir = new File(workspace, Constants.DOT_GIT);
+            final File alternates = new File(workspaceGitDir, "objects/info/alternates");
+            assertTrue(alternates.exists(), "Objects should be borrowed from the cache");
+            assertEquals(new File(FileUtils.readFileToString(alternates).trim()).getCanonicalFile(),
+                         new File(cache.srcRepo.getDirectory(), Constants.OBJECTS).getCanonicalFile());
+            assertFalse(cache.getTextFile(workspace).exists(), "Nothing should be checked out");
+
+            assertWorkspaceRef(workspaceGitDir, "refs/remotes/origin/master", second);
+            assertWorkspaceRef(workspaceGitDir, "refs/remotes/origin/feature", first);
+            assertWorkspaceRef(workspaceGitDir, "refs/tags/annotated", cache.srcRepo.resolve("refs/tags/annotated"));
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+
+    private static void assertWorkspaceRefs(final GitTestRepository cache, final File workspaceGitDir, final String... refNames) throws IOException
+    {
+        for (final String refName : refNames)
+        {
+            assertWorkspaceRef(workspaceGitDir, refName, cache.srcRepo.resolve(refName));
+        }
+    }
+
+    private static void assertWorkspaceRef(final File workspaceGitDir, final String refName, final ObjectId expected) throws IOException
+    {
+        final FileRepository workspace = new FileRepository(workspaceGitDir);
+        try
+        {
+            final Ref ref = workspace.getRef(refName);
+            assertTrue(ref != null, refName + " should exist in the workspace");
+            assertEquals(ref.getObjectId(), expected, refName);
+        }
+        finally
+        {
+            workspace.close();
+        }
+    }
+
+    private void checkPushingRefs(final boolean nativeGit) throws Exception
+    {
+        final File remoteDirectory = createTempDirectory();
+        final FileRepository remote = new FileRepository(remoteDirectory);
+        remote.create(true);
+        final GitTestRepository other = new GitTestRepository(createTempDirectory());
+        final GitTestRepository source = new GitTestRepository(createTempDirectory());
+        try
+        {
+            other.commitFileContents("other");
+            other.git.push().setRemote(remoteDirectory.getAbsolutePath()).setRefSpecs(new RefSpec("refs/heads/master:refs/heads/other")).call();
+
+            final RevCommit commit = source.commitFileContents("source");
+            source.git.branchCreate().setName("feature").call();
+            source.git.tag().setName("release").setObjectId(commit).call();
+
+            final GitRepositoryAccessData accessData = createAccessData(remoteDirectory.getAbsolutePath());
+            final GitOperationHelper helper = nativeGit ? createNativeGitOperationHelper(accessData) : createJGitOperationHelper(accessData);
+            final List<String> refSpecs = Arrays.asList("refs/heads/master:refs/heads/master",
+                                                        "refs/heads/feature:refs/heads/feature",
+                                                        "refs/tags/release:refs/tags/release",
+                                                        "refs/heads/master:refs/heads/other");
+
+            final List<GitPushResult> results = helper.pushRefs(source.srcDir, refSpecs);
+            assertEquals(results.size(), 4, results.toString());
+            final Map<String, GitPushResult.Status> statuses = getStatuses(results);
+            assertEquals(statuses.get("refs/heads/master"), GitPushResult.Status.OK);
+            assertEquals(statuses.get("refs/heads/feature"), GitPushResult.Status.OK);
+            assertEquals(statuses.get("refs/tags/release"), GitPushResult.Status.OK);
+            assertEquals(statuses.get("refs/heads/other"), GitPushResult.Status.REJECTED, "Not a fast forward");
+            assertEquals(remote.resolve("refs/heads/feature"), commit);
+            assertEquals(remote.resolve("refs/tags/release"), commit);
+
+            final Map<String, GitPushResult.Status> secondStatuses = getStatuses(helper.pushRefs(source.srcDir, refSpecs.subList(0, 2)));
+            assertEquals(secondStatuses.get("refs/heads/master"), GitPushResult.Status.UP_TO_DATE);
+            assertEquals(secondStatuses.get("refs/heads/feature"), GitPushResult.Status.UP_TO_DATE);
+        }
+        finally
+        {
+            other.close();
+            source.close();
+            remote.close();
+        }
+    }
+
+    private static Map<String, GitPushResult.Status> getStatuses(final List<GitPushResult> results)
+    {
+        final Map<String, GitPushResult.Status> statuses = new HashMap<String, GitPushResult.Status>();
+        for (final GitPushResult result : results)
+        {
+            statuses.put(result.getRemoteRef(), result.getStatus());
+        }
+        return statuses;
+    }
+
+    private static RevCommit commitNewFile(final GitTestRepository repository, final String name) throws Exception
+    {
+        FileUtils.writeStringToFile(new File(repository.srcDir, name), name);
+        repository.git.add().addFilepattern(name).call();
+        return repository.git.commit().setMessage(name).setCommitter("testUser", "testUser@testDomain").call();
+    }
+
+    @Test
+    public void testChangedFilesMatchBetweenImplementations() throws Exception
+    {
+        final File directory = createTempDirectory();
+        final GitTestRepository repository = new GitTestRepository(directory);
+        final String first;
+        try
+        {
+            first = repository.commitFileContents("first").getName();
+            for (int i = 0; i < 5; i++)
+            {
+                FileUtils.writeStringToFile(new File(directory, "dir" + i + "/added.txt"), "content " + i);
+                repository.commitFileContents("change " + i);
+            }
+            FileUtils.moveFile(new File(directory, "dir0/added.txt"), new File(directory, "dir0/moved.txt"));
+            repository.git.add().addFilepattern(".").call();
+            repository.git.rm().addFilepattern("dir0/added.txt").call();
+            repository.git.commit().setMessage("move").setCommitter("testUser", "testUser@testDomain").call();
+        }
+        finally
+        {
+            repository.close();
+        }
+
+        final BuildRepositoryChanges jgitChanges = createJGitOperationHelper(null).extractCommits(directory, first, "HEAD");
+        final BuildRepositoryChanges nativeChanges = createNativeGitOperationHelper(null).extractCommits(directory, first, "HEAD");
+
+        assertEquals(jgitChanges.getChanges().size(), 6);
+        assertEquals(nativeChanges.getChanges().size(), 6);
+        for (int i = 0; i < 6; i++)
+        {
+            assertEquals(getFileNames(jgitChanges.getChanges().get(i)), getFileNames(nativeChanges.getChanges().get(i)));
+        }
+        assertEquals(getFileNames(jgitChanges.getChanges().get(0)), new TreeSet<String>(Arrays.asList("dir0/added.txt", "dir0/moved.txt")));
+        assertEquals(getFileNames(jgitChanges.getChanges().get(5)), new TreeSet<String>(Arrays.asList("dir0/added.txt", "file.txt")));
+    }
+
+    private static Set<String> getFileNames(final CommitContext commit)
+    {
+        final Set<String> fileNames = new TreeSet<String>();
+        for (final CommitFile file : commit.getFiles())
+        {
+            fileNames.add(file.getName());
+        }
+        return fileNames;
+    }
+
     @Test
     public void testChangesetLimit() throws Exception
     {
@@ -0,0 +1,190 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.build.logger.NullBuildLogger;
+import com.atlassian.bamboo.repository.RepositoryException;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+/**
+ * Checks that in-process answers are the same as native git ones.
+ */
+public class GitRepositoryReaderTest extends GitAbstractTest
+{
+    private final GitRepositoryReader reader = new GitRepositoryReader();
+    private GitCommandProcessor gitCommandProcessor;
+    private GitTestRepository repository;
+    private File directory;
+    private RevCommit first;
+    private RevCommit second;
+    private RevCommit third;
+
+    @BeforeClass
+    public void setUpRepository() throws Exception
+    {
+        gitCommandProcessor = new GitCommandProcessor("git", new NullBuildLogger(), null, 1, false);
+
+        directory = createTempDirectory();
+        repository = new GitTestRepository(directory);
+        first = repository.commitFileContents("first");
+        second = repository.commitFileContents("second");
+        repository.git.tag().setName("annotated").setMessage("annotated tag").setObjectId(first).call();
+        repository.git.branchCreate().setName("feature").setStartPoint(first).call();
+        third = repository.commitFileContents("third");
+
+        final RefUpdate remoteUpdate = repository.srcRepo.updateRef(Constants.R_REMOTES + "origin/remoteOnly");
+        remoteUpdate.setNewObjectId(second);
+        remoteUpdate.forceUpdate();
+    }
+
+    @AfterClass
+    public void closeRepository() throws Exception
+    {
+        repository.close();
+    }
+
+    @DataProvider
+    Object[][] revisions()
+    {
+        return new Object[][] {
+                {Constants.HEAD},
+                {"master"},
+                {"feature"},
+                {"annotated"},
+                {"refs/tags/annotated"},
+                {"origin/remoteOnly"},
+                {"HEAD~1"},
+        };
+    }
+
+    @Test(dataProvider = "revisions")
+    public void testResolvingCommits(final String revision) throws Exception
+    {
+        Assert.assertEquals(reader.resolveCommit(directory, revision), gitCommandProcessor.getRevisionHash(directory, revision));
+    }
+
+    @Test
+    public void testResolvingMissingRevision() throws Exception
+    {
+        Assert.assertNull(reader.resolveCommit(directory, Constants.MERGE_HEAD));
+        Assert.assertNull(reader.resolveCommit(directory, "noSuchBranch"));
+        try
+        {
+            gitCommandProcessor.getRevisionHash(directory, "noSuchBranch");
+            Assert.fail("git should fail as well");
+        }
+        catch (RepositoryException e)
+        {
+            // expected
+        }
+    }
+
+    @DataProvider
+    Object[][] possibleBranches()
+    {
+        return new Object[][] {
+                {"master", "third"},
+                {"master", "first"},
+                {"feature", "first"},
+                {"feature", "second"},
+                {"remoteOnly", "second"},
+                {"remoteOnly", "third"},
+                {"", "third"},
+        };
+    }
+
+    @Test(dataProvider = "possibleBranches")
+    public void testPossibleBranchNameForCheckout(final String branch, final String commit) throws Exception
+    {
+        final String revision = getCommit(commit).getName();
+        Assert.assertEquals(reader.getPossibleBranchNameForCheckout(directory, revision, branch),
+                            gitCommandProcessor.getPossibleBranchNameForCheckout(directory, revision, branch));
+    }
+
+    @DataProvider
+    Object[][] branchesForSha()
+    {
+        return new Object[][] {
+                {"first", "feature"},
+                {"first", "master"},
+                {"first", "other"},
+                {"second", "master"},
+                {"second", "other"},
+                {"third", "feature"},
+        };
+    }
+
+    @Test(dataProvider = "branchesForSha")
+    public void testBranchForSha(final String commit, final String configuredBranch) throws Exception
+    {
+        final String revision = getCommit(commit).getName();
+        Assert.assertEquals(reader.getBranchForSha(directory, revision, configuredBranch),
+                            gitCommandProcessor.getBranchForSha(directory, revision, configuredBranch));
+    }
+
+    @Test
+    public void testMergeAnalysis() throws Exception
+    {
+        final File mergeDirectory = createTempDirectory();
+        final GitTestRepository mergeRepository = new GitTestRepository(mergeDirectory);
+        try
+        {
+            mergeRepository.commitFileContents("base");
+            mergeRepository.git.branchCreate().setName("side").call();
+            mergeRepository.commitFileContents("master");
+
+            Assert.assertEquals(reader.analyseMerge(mergeDirectory, "side"), GitRepositoryReader.MergeAnalysis.UP_TO_DATE);
+            Assert.assertEquals(reader.analyseMerge(mergeDirectory, "master"), GitRepositoryReader.MergeAnalysis.UP_TO_DATE);
+            Assert.assertNull(reader.analyseMerge(mergeDirectory, "noSuchBranch"));
+
+            mergeRepository.git.checkout().setName("side").call();
+            Assert.assertEquals(reader.analyseMerge(mergeDirectory, "master"), GitRepositoryReader.MergeAnalysis.FAST_FORWARD);
+
+            mergeRepository.commitFileContents("side");
+            Assert.assertEquals(reader.analyseMerge(mergeDirectory, "master"), GitRepositoryReader.MergeAnalysis.MERGE);
+        }
+        finally
+        {
+            mergeRepository.close();
+        }
+    }
+
+    @Test
+    public void testTrackedChangesAndMergeState() throws Exception
+    {
+        final File statusDirectory = createTempDirectory();
+        final GitTestRepository statusRepository = new GitTestRepository(statusDirectory);
+        try
+        {
+            final RevCommit commit = statusRepository.commitFileContents("committed");
+            FileUtils.writeStringToFile(new File(statusDirectory, "untracked.txt"), "untracked");
+            Assert.assertFalse(reader.hasTrackedChanges(statusDirectory));
+            Assert.assertTrue(gitCommandProcessor.runStatusCommand(statusDirectory).isEmpty());
+
+            FileUtils.writeStringToFile(statusRepository.textFile, "modified");
+            Assert.assertTrue(reader.hasTrackedChanges(statusDirectory));
+            Assert.assertFalse(gitCommandProcessor.runStatusCommand(statusDirectory).isEmpty());
+
+            Assert.assertFalse(reader.isMerging(statusDirectory));
+            FileUtils.writeStringToFile(new File(statusRepository.srcRepo.getDirectory(), Constants.MERGE_HEAD), commit.getName() + "\n");
+            Assert.assertTrue(reader.isMerging(statusDirectory));
+        }
+        finally
+        {
+            statusRepository.close();
+        }
+    }
+
+    private RevCommit getCommit(final String name)
+    {
+        return "first".equals(name) ? first : "second".equals(name) ? second : third;
+    }
+}
@@ -11,9 +11,13 @@ import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.bamboo.v2.build.agent.remote.RemoteBuildDirectoryManager;
 import com.atlassian.testtools.ZipResourceDirectory;
+import com.google.common.collect.Lists;
 import edu.emory.mathcs.backport.java.util.Collections;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Constants;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
@@ -21,17 +25,35 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.atlassian.bamboo.testutils.spring.SpringTestHelper.mockSpringComponent;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 public class GitRepositoryTest extends GitAbstractTest
 {
+    private static final String REVISION = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+
     @BeforeClass
     public void setUpBranchIntegrationHelper() throws Exception
     {
@@ -378,4 +400,139 @@ public class GitRepositoryTest extends GitAbstractTest
         }
         assertTrue(invalidRepositoryException, "Expected git repository to throw InvalidRepositoryException when trying to get last commit on non existent branch");
     }
+
+    @Test
+    public void testCommitInCacheIsReadWithoutCacheLock() throws Exception
+    {
+        final GitRepository gitRepository = createGitRepository(AgentType.LOCAL);
+        final File cacheDirectory = createTempDirectory();
+        final CommitContext commit = mock(CommitContext.class);
+        final GitOperationHelper helper = mock(GitOperationHelper.class);
+        when(helper.getCommit(cacheDirectory, REVISION)).thenReturn(commit);
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            executor.submit(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    return GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
+                    {
+                        public Void call() throws Exception
+                        {
+                            locked.countDown();
+                            release.await();
+                            return null;
+                        }
+                    });
+                }
+            });
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+            final Future<CommitContext> read = executor.submit(new Callable<CommitContext>()
+            {
+                public CommitContext call() throws Exception
+                {
+                    return gitRepository.readCommitFromCache(helper, cacheDirectory, REVISION);
+                }
+            });
+            assertSame(read.get(10, TimeUnit.SECONDS), commit);
+            verify(helper, never()).fetch(any(File.class), anyString(), anyBoolean());
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCommitFetchedWhileWaitingForCacheLockIsNotFetchedAgain() throws Exception
+    {
+        final GitRepository gitRepository = createGitRepository(AgentType.LOCAL);
+        final File cacheDirectory = createCacheDirectory();
+        final CommitContext commit = mock(CommitContext.class);
+        final GitOperationHelper helper = mock(GitOperationHelper.class);
+        when(helper.getCommit(cacheDirectory, REVISION)).thenThrow(new RepositoryException("not in cache")).thenReturn(commit);
+        // fetched by someone else since the lock-free read
+        when(helper.checkRevisionExistsInCacheRepository(cacheDirectory, REVISION)).thenReturn(true);
+
+        assertSame(gitRepository.readCommitFromCache(helper, cacheDirectory, REVISION), commit);
+        verify(helper, never()).fetch(any(File.class), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testRacingMissesFetchOnce() throws Exception
+    {
+        final GitRepository gitRepository = createGitRepository(AgentType.LOCAL);
+        final File cacheDirectory = createCacheDirectory();
+        final CommitContext commit = mock(CommitContext.class);
+        final GitOperationHelper helper = mock(GitOperationHelper.class);
+
+        final AtomicBoolean fetched = new AtomicBoolean();
+        final CyclicBarrier bothMissed = new CyclicBarrier(2);
+        when(helper.getCommit(cacheDirectory, REVISION)).thenAnswer(new Answer<CommitContext>()
+        {
+            public CommitContext answer(final InvocationOnMock invocation) throws Throwable
+            {
+                if (fetched.get())
+                {
+                    return commit;
+                }
+                bothMissed.await(10, TimeUnit.SECONDS);
+                throw new RepositoryException("not in cache");
+            }
+        });
+        when(helper.checkRevisionExistsInCacheRepository(cacheDirectory, REVISION)).thenAnswer(new Answer<Boolean>()
+        {
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable
+            {
+                return fetched.get();
+            }
+        });
+        doAnswer(new Answer<Void>()
+        {
+            public Void answer(final InvocationOnMock invocation) throws Throwable
+            {
+                fetched.set(true);
+                return null;
+            }
+        }).when(helper).fetch(cacheDirectory, REVISION, false);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            final List<Future<CommitContext>> reads = Lists.newArrayList();
+            for (int i = 0; i < 2; i++)
+            {
+                reads.add(executor.submit(new Callable<CommitContext>()
+                {
+                    public CommitContext call() throws Exception
+                    {
+                        return gitRepository.readCommitFromCache(helper, cacheDirectory, REVISION);
+                    }
+                }));
+            }
+            for (final Future<CommitContext> read : reads)
+            {
+                assertSame(read.get(10, TimeUnit.SECONDS), commit);
+            }
+            verify(helper, times(1)).fetch(cacheDirectory, REVISION, false);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private File createCacheDirectory() throws Exception
+    {
+        final File cacheDirectory = createTempDirectory();
+        // the recheck under the lock only looks into existing caches
+        FileUtils.forceMkdir(new File(cacheDirectory, Constants.DOT_GIT));
+        return cacheDirectory;
+    }
 }
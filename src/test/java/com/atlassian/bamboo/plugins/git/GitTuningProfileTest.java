@@ -0,0 +1,65 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.collect.ImmutableMap;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+public class GitTuningProfileTest
+{
+    @Test
+    public void testParsing()
+    {
+        final GitTuningProfile profile = GitTuningProfile.parse("core.compression = 1\n\nPack.Threads=4\r\npack.windowMemory=64m;http.postBuffer=512k\ncore.packedGitMMAP=true");
+
+        Assert.assertEquals(profile.getCompressionLevel(), Integer.valueOf(1));
+        Assert.assertEquals(profile.getPackThreads(), Integer.valueOf(4));
+        Assert.assertEquals(profile.getPackWindowMemory(), Long.valueOf(64L * 1024 * 1024));
+        Assert.assertEquals(profile.getHttpPostBuffer(), Long.valueOf(512L * 1024));
+        Assert.assertEquals(profile.getPackedGitMMAP(), Boolean.TRUE);
+        Assert.assertNull(profile.getDeltaBaseCacheLimit());
+        Assert.assertNull(profile.getPackedGitLimit());
+
+        Assert.assertEquals(GitTuningProfile.parse(profile.toString()), profile, "The canonical form should parse back");
+        Assert.assertSame(GitTuningProfile.parse(" \n "), GitTuningProfile.EMPTY);
+        Assert.assertSame(GitTuningProfile.parse(null), GitTuningProfile.EMPTY);
+    }
+
+    @Test
+    public void testInvalidSettingsAreRejected()
+    {
+        for (final String text : Arrays.asList("core.compression=10", "core.compression=fast", "pack.threads=-1",
+                                               "http.postBuffer=1x", "http.postBuffer=0", "core.packedGitMMAP=yes",
+                                               "core.autocrlf=true", "pack.threads"))
+        {
+            try
+            {
+                GitTuningProfile.parse(text);
+                Assert.fail(text + " should be rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testConfigOverridesLeaveOutJGitOnlySettings()
+    {
+        final GitTuningProfile profile = GitTuningProfile.parse("core.packedGitMMAP=true\ncore.compression=0\npack.threads=2");
+
+        Assert.assertEquals(profile.getGitConfigOverrides(), ImmutableMap.of("core.compression", "0", "pack.threads", "2"));
+    }
+
+    @Test
+    public void testConfigOverridesPrecedeTheCommand()
+    {
+        final GitCommandBuilder commandBuilder = new GitCommandBuilder("fetch", "origin")
+                .executable("git")
+                .config(ImmutableMap.of("core.compression", "0"));
+
+        Assert.assertEquals(commandBuilder.build(), Arrays.asList("git", "-c", "core.compression=0", "fetch", "origin"));
+    }
+}
@@ -0,0 +1,127 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class JGitRepositoryManagerTest extends GitAbstractTest
+{
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testRepositoriesAreSharedUntilIdle() throws Exception
+    {
+        final File directory = createTempDirectory();
+        final GitTestRepository testRepository = new GitTestRepository(directory);
+        final RevCommit commit = testRepository.commitFileContents("shared");
+        testRepository.close();
+
+        final JGitRepositoryManager manager = new JGitRepositoryManager(1, TimeUnit.HOURS);
+        final File gitDirectory = new File(directory, Constants.DOT_GIT);
+        final FileRepository first = manager.open(gitDirectory);
+        first.close();
+        final FileRepository second = manager.open(gitDirectory);
+        try
+        {
+            Assert.assertSame(second, first);
+            Assert.assertEquals(second.resolve(Constants.HEAD), commit, "A repository closed by a caller should stay usable");
+            Assert.assertEquals(manager.closeIdle(), 0);
+        }
+        finally
+        {
+            second.close();
+        }
+
+        final JGitRepositoryManager idleManager = new JGitRepositoryManager(0, TimeUnit.MILLISECONDS);
+        final FileRepository inUse = idleManager.open(gitDirectory);
+        try
+        {
+            Assert.assertEquals(idleManager.closeIdle(), 1);
+            Assert.assertEquals(inUse.resolve(Constants.HEAD), commit, "An evicted repository should stay usable until its callers close it");
+            final FileRepository reopened = idleManager.open(gitDirectory);
+            Assert.assertNotSame(reopened, inUse);
+            reopened.close();
+        }
+        finally
+        {
+            inUse.close();
+        }
+    }
+
+    @Test
+    public void testDeletedRepositoryIsNotReused() throws Exception
+    {
+        final File directory = createTempDirectory();
+        new GitTestRepository(directory).close();
+
+        final JGitRepositoryManager manager = new JGitRepositoryManager(1, TimeUnit.HOURS);
+        final File gitDirectory = new File(directory, Constants.DOT_GIT);
+        final FileRepository deleted = manager.open(gitDirectory);
+        deleted.close();
+
+        FileUtils.deleteDirectory(directory);
+        final GitTestRepository recreated = new GitTestRepository(directory);
+        final RevCommit commit = recreated.commitFileContents("recreated");
+        recreated.close();
+        // the file system may not tell the two configs apart within the same second
+        final File config = new File(gitDirectory, "config");
+        Assert.assertTrue(config.setLastModified(config.lastModified() - TimeUnit.MINUTES.toMillis(1)));
+
+        final FileRepository repository = manager.open(gitDirectory);
+        try
+        {
+            Assert.assertNotSame(repository, deleted);
+            Assert.assertEquals(repository.resolve(Constants.HEAD), commit);
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testInvalidatedRepositoryIsReadAgain() throws Exception
+    {
+        final File directory = createTempDirectory();
+        new GitTestRepository(directory).close();
+
+        final JGitRepositoryManager manager = new JGitRepositoryManager(1, TimeUnit.HOURS);
+        final File gitDirectory = new File(directory, Constants.DOT_GIT);
+        final FileRepository invalidated = manager.open(gitDirectory);
+        try
+        {
+            manager.invalidate(gitDirectory);
+            Assert.assertEquals(manager.closeIdle(), 0, "An invalidated repository should no longer be held");
+
+            final FileRepository repository = manager.open(gitDirectory);
+            Assert.assertNotSame(repository, invalidated);
+            repository.close();
+            Assert.assertNotNull(invalidated.getRefDatabase().getRefs(Constants.R_HEADS), "The invalidated instance should stay usable");
+        }
+        finally
+        {
+            invalidated.close();
+        }
+    }
+
+    @Test
+    public void testWindowCacheIsSizedToTheHost()
+    {
+        final WindowCacheConfig mapped = JGitWindowCache.createDefaultConfig(1024 * MB, 16384 * MB, true);
+        Assert.assertTrue(mapped.isPackedGitMMAP());
+        Assert.assertEquals(mapped.getPackedGitLimit(), 2048 * MB);
+        Assert.assertEquals(mapped.getDeltaBaseCacheLimit(), 32 * MB);
+
+        final WindowCacheConfig unmapped = JGitWindowCache.createDefaultConfig(256 * MB, 0, false);
+        Assert.assertFalse(unmapped.isPackedGitMMAP());
+        Assert.assertEquals(unmapped.getPackedGitLimit(), 32 * MB);
+        Assert.assertEquals(unmapped.getDeltaBaseCacheLimit(), 10 * MB);
+    }
+}
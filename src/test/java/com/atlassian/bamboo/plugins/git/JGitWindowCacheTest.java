@@ -0,0 +1,79 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class JGitWindowCacheTest
+{
+    private static final long MB = 1024 * 1024;
+    private static final long GB = 1024 * MB;
+
+    @Test
+    public void test64BitJvmMapsAnEighthOfPhysicalMemory() throws Exception
+    {
+        final WindowCacheConfig config = JGitWindowCache.createDefaultConfig(GB, 16 * GB, true);
+
+        Assert.assertTrue(config.isPackedGitMMAP());
+        Assert.assertEquals(config.getPackedGitWindowSize(), MB);
+        Assert.assertEquals(config.getPackedGitLimit(), 2 * GB);
+        Assert.assertEquals(config.getDeltaBaseCacheLimit(), 32 * MB);
+    }
+
+    @Test
+    public void test64BitJvmCapsMappedMemory() throws Exception
+    {
+        final WindowCacheConfig config = JGitWindowCache.createDefaultConfig(8 * GB, 256 * GB, true);
+
+        Assert.assertEquals(config.getPackedGitLimit(), 4 * GB);
+        Assert.assertEquals(config.getDeltaBaseCacheLimit(), 64 * MB);
+    }
+
+    @Test
+    public void test64BitJvmWithUnknownPhysicalMemoryFallsBackToHeap() throws Exception
+    {
+        final WindowCacheConfig config = JGitWindowCache.createDefaultConfig(GB, 0, true);
+
+        Assert.assertTrue(config.isPackedGitMMAP());
+        Assert.assertEquals(config.getPackedGitLimit(), 256 * MB);
+    }
+
+    @Test
+    public void test32BitJvmReadsWindowsToHeap() throws Exception
+    {
+        final WindowCacheConfig jgitDefaults = new WindowCacheConfig();
+        final WindowCacheConfig config = JGitWindowCache.createDefaultConfig(GB, 16 * GB, false);
+
+        Assert.assertFalse(config.isPackedGitMMAP());
+        Assert.assertEquals(config.getPackedGitWindowSize(), jgitDefaults.getPackedGitWindowSize());
+        Assert.assertEquals(config.getPackedGitLimit(), 128 * MB);
+    }
+
+    @Test
+    public void testSmallHeapGetsMinimumLimits() throws Exception
+    {
+        final WindowCacheConfig config = JGitWindowCache.createDefaultConfig(64 * MB, 0, false);
+
+        Assert.assertEquals(config.getPackedGitLimit(), 10 * MB);
+        Assert.assertEquals(config.getDeltaBaseCacheLimit(), 10 * MB);
+    }
+
+    @Test
+    public void testProfilesNeverShrinkTheCache() throws Exception
+    {
+        final WindowCacheConfig config = JGitWindowCache.createDefaultConfig(GB, 0, false);
+
+        Assert.assertFalse(JGitWindowCache.grow(config, GitTuningProfile.parse("core.packedGitLimit=50m\ncore.deltaBaseCacheLimit=1m\ncore.packedGitMMAP=false")));
+        Assert.assertEquals(config.getPackedGitLimit(), 128 * MB);
+        Assert.assertEquals(config.getDeltaBaseCacheLimit(), 32 * MB);
+        Assert.assertFalse(config.isPackedGitMMAP());
+
+        Assert.assertTrue(JGitWindowCache.grow(config, GitTuningProfile.parse("core.packedGitLimit=512m\ncore.packedGitMMAP=true")));
+        Assert.assertEquals(config.getPackedGitLimit(), 512 * MB);
+        Assert.assertEquals(config.getDeltaBaseCacheLimit(), 32 * MB);
+        Assert.assertTrue(config.isPackedGitMMAP());
+
+        Assert.assertFalse(JGitWindowCache.grow(config, GitTuningProfile.EMPTY));
+        Assert.assertEquals(config.getPackedGitLimit(), 512 * MB);
+    }
+}
@@ -5,11 +5,32 @@ import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.ssh.SshProxyService;
 import com.atlassian.sal.api.message.I18nResolver;
 import org.apache.commons.lang.SystemUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileRepository;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class NativeGitOperationHelperTest
@@ -29,6 +50,157 @@ public class NativeGitOperationHelperTest
         assertThat(gitRepositoryAccessData.getRepositoryUrl(), equalTo(localRepositoryUrl));
     }
 
+    @Test
+    public void updatesSubmoduleCachesInParallelAndSubmodulesOneAtATime() throws Exception
+    {
+        final File cacheRoot = createTempDirectory();
+        final File sourceDirectory = createSourceDirectory();
+        final Map<String, String> submoduleUrls = createSubmoduleUrls();
+        final GitCommandProcessor gitCommandProcessor = mockGitCommandProcessor(sourceDirectory, submoduleUrls);
+
+        // every fetch waits for the others: the caches are only updated if all of them run at the same time
+        final CountDownLatch fetching = new CountDownLatch(submoduleUrls.size());
+        doAnswer(new Answer<Void>()
+        {
+            public Void answer(final InvocationOnMock invocation) throws Throwable
+            {
+                fetching.countDown();
+                if (!fetching.await(10, TimeUnit.SECONDS))
+                {
+                    throw new RepositoryException("Submodule caches are not updated in parallel");
+                }
+                return null;
+            }
+        }).when(gitCommandProcessor).runFetchCommand(any(File.class), any(GitRepositoryAccessData.class), anyString(), anyBoolean());
+        final Map<String, File> referenceRepositories = recordSubmoduleUpdates(gitCommandProcessor);
+
+        final NativeGitOperationHelper helper = newNativeGitOperationHelper(createAccessData(GitAuthenticationType.NONE, "https://example.com/super.git"));
+        helper.gitCommandProcessor = gitCommandProcessor;
+        helper.updateSubmodules(new File(cacheRoot, "super"), sourceDirectory);
+
+        assertThat(referenceRepositories.keySet(), equalTo(submoduleUrls.keySet()));
+        for (final Map.Entry<String, String> submodule : submoduleUrls.entrySet())
+        {
+            assertThat(referenceRepositories.get(submodule.getKey()), equalTo(GitCacheDirectory.getSubmoduleCacheDirectory(cacheRoot, submodule.getValue())));
+        }
+        verify(gitCommandProcessor).runSubmoduleUpdateCommand(sourceDirectory);
+    }
+
+    @Test
+    public void submodulesFallBackWhenTheirCacheOrUpdateFails() throws Exception
+    {
+        final File cacheRoot = createTempDirectory();
+        final File sourceDirectory = createSourceDirectory();
+        final Map<String, String> submoduleUrls = createSubmoduleUrls();
+        final GitCommandProcessor gitCommandProcessor = mockGitCommandProcessor(sourceDirectory, submoduleUrls);
+
+        final File failingCache = GitCacheDirectory.getSubmoduleCacheDirectory(cacheRoot, "https://example.com/b.git");
+        doThrow(new RepositoryException("unreachable")).when(gitCommandProcessor)
+                .runFetchCommand(eq(failingCache), any(GitRepositoryAccessData.class), anyString(), anyBoolean());
+        final Map<String, File> referenceRepositories = recordSubmoduleUpdates(gitCommandProcessor);
+        doThrow(new RepositoryException("could not lock config file")).when(gitCommandProcessor)
+                .runSubmoduleUpdateCommand(eq(sourceDirectory), eq("libs/a"), any(File.class));
+
+        final BuildLogger buildLogger = mock(BuildLogger.class);
+        final NativeGitOperationHelper helper = newNativeGitOperationHelper(createAccessData(GitAuthenticationType.NONE, "https://example.com/super.git"), buildLogger);
+        helper.gitCommandProcessor = gitCommandProcessor;
+        helper.updateSubmodules(new File(cacheRoot, "super"), sourceDirectory);
+
+        // b is cloned without a cache, c is updated although a failed before it, the recursive update retries a
+        assertThat(referenceRepositories.containsKey("libs/b"), equalTo(true));
+        assertThat(referenceRepositories.get("libs/b"), equalTo(null));
+        assertThat(referenceRepositories.get("libs/c"), equalTo(GitCacheDirectory.getSubmoduleCacheDirectory(cacheRoot, "https://example.com/c.git")));
+        verify(gitCommandProcessor).runSubmoduleUpdateCommand(sourceDirectory);
+        verify(buildLogger).addBuildLogEntry("repository.git.messages.submoduleCacheFailed");
+        verify(buildLogger).addBuildLogEntry("repository.git.messages.submoduleUpdateFailed");
+    }
+
+    @Test
+    public void submodulesOfUncachedRepositoriesAreUpdatedRecursively() throws Exception
+    {
+        final File sourceDirectory = createSourceDirectory();
+        final GitCommandProcessor gitCommandProcessor = mockGitCommandProcessor(sourceDirectory, createSubmoduleUrls());
+
+        final NativeGitOperationHelper helper = newNativeGitOperationHelper(createAccessData(GitAuthenticationType.NONE, "https://example.com/super.git"));
+        helper.gitCommandProcessor = gitCommandProcessor;
+        helper.updateSubmodules(null, sourceDirectory);
+
+        verify(gitCommandProcessor).runSubmoduleUpdateCommand(sourceDirectory);
+        verify(gitCommandProcessor, never()).runSubmoduleUpdateCommand(any(File.class), anyString(), any(File.class));
+        verify(gitCommandProcessor, never()).runFetchCommand(any(File.class), any(GitRepositoryAccessData.class), anyString(), anyBoolean());
+    }
+
+    private static File createTempDirectory() throws IOException
+    {
+        final File directory = File.createTempFile("submodules", null);
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static File createSourceDirectory() throws IOException
+    {
+        final File sourceDirectory = createTempDirectory();
+        final FileRepository repository = new FileRepository(new File(sourceDirectory, Constants.DOT_GIT));
+        try
+        {
+            repository.create();
+        }
+        finally
+        {
+            repository.close();
+        }
+        return sourceDirectory;
+    }
+
+    private static Map<String, String> createSubmoduleUrls()
+    {
+        final Map<String, String> submoduleUrls = new LinkedHashMap<String, String>();
+        submoduleUrls.put("libs/a", "https://example.com/a.git");
+        submoduleUrls.put("libs/b", "https://example.com/b.git");
+        submoduleUrls.put("libs/c", "https://example.com/c.git");
+        return submoduleUrls;
+    }
+
+    private static GitCommandProcessor mockGitCommandProcessor(final File sourceDirectory, final Map<String, String> submoduleUrls) throws RepositoryException
+    {
+        final GitCommandProcessor gitCommandProcessor = mock(GitCommandProcessor.class);
+        when(gitCommandProcessor.getSubmoduleUrls(sourceDirectory)).thenReturn(submoduleUrls);
+        return gitCommandProcessor;
+    }
+
+    /**
+     * @return reference repository by updated submodule path, filled as submodules are updated; fails the update if
+     * submodules are updated concurrently
+     */
+    private static Map<String, File> recordSubmoduleUpdates(final GitCommandProcessor gitCommandProcessor) throws RepositoryException
+    {
+        final Map<String, File> referenceRepositories = Collections.synchronizedMap(new LinkedHashMap<String, File>());
+        final AtomicInteger running = new AtomicInteger();
+        doAnswer(new Answer<Void>()
+        {
+            public Void answer(final InvocationOnMock invocation) throws Throwable
+            {
+                if (running.incrementAndGet() > 1)
+                {
+                    throw new AssertionError("Submodules are updated concurrently");
+                }
+                try
+                {
+                    Thread.sleep(10);
+                    referenceRepositories.put((String) invocation.getArguments()[1], (File) invocation.getArguments()[2]);
+                    return null;
+                }
+                finally
+                {
+                    running.decrementAndGet();
+                }
+            }
+        }).when(gitCommandProcessor).runSubmoduleUpdateCommand(any(File.class), anyString(), any(File.class));
+        return referenceRepositories;
+    }
+
     private GitRepositoryAccessData createAccessData(final GitAuthenticationType gitAuthenticationType, final String repositoryUrl)
     {
         return GitRepositoryAccessData.builder()
@@ -38,6 +210,11 @@ public class NativeGitOperationHelperTest
     }
 
     private NativeGitOperationHelper newNativeGitOperationHelper(final GitRepositoryAccessData gitRepositoryAccessData) throws RepositoryException
+    {
+        return newNativeGitOperationHelper(gitRepositoryAccessData, mock(BuildLogger.class));
+    }
+
+    private NativeGitOperationHelper newNativeGitOperationHelper(final GitRepositoryAccessData gitRepositoryAccessData, final BuildLogger buildLogger) throws RepositoryException
     {
         final GitRepository gitRepository = mock(GitRepository.class);
         when(gitRepository.getGitCapability()).thenReturn("/usr/bin/git");
@@ -47,7 +224,14 @@ public class NativeGitOperationHelperTest
                 gitRepository,
                 gitRepositoryAccessData,
                 mock(SshProxyService.class),
-                mock(BuildLogger.class),
-                mock(I18nResolver.class));
+                buildLogger,
+                mock(I18nResolver.class, new Answer<Object>()
+                {
+                    // messages are logged as their keys
+                    public Object answer(final InvocationOnMock invocation) throws Throwable
+                    {
+                        return invocation.getArguments()[0];
+                    }
+                }));
     }
 }
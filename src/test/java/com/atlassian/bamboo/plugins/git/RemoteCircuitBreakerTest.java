@@ -0,0 +1,115 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.plugins.git.testutils.FakeTicker;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class RemoteCircuitBreakerTest
+{
+    private static final String KEY = "key";
+    private static final String URL = "http://some.url";
+
+    private FakeTicker ticker;
+    private RemoteCircuitBreaker breaker;
+
+    @BeforeMethod
+    public void setUp() throws Exception
+    {
+        ticker = new FakeTicker();
+        breaker = new RemoteCircuitBreaker(ticker, 3, 5, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws Exception
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            Assert.assertTrue(breaker.allowRequest(KEY, URL));
+            breaker.recordFailure(KEY, URL, new IOException("down"));
+        }
+        Assert.assertTrue(breaker.allowRequest(KEY, URL));
+        breaker.recordFailure(KEY, URL, new IOException("still down"));
+
+        Assert.assertFalse(breaker.allowRequest(KEY, URL));
+        final RemoteCircuitBreaker.CircuitStats stats = breaker.getStats(KEY);
+        Assert.assertNotNull(stats);
+        Assert.assertEquals(stats.getState(), RemoteCircuitBreaker.State.OPEN);
+        Assert.assertEquals(stats.getConsecutiveFailures(), 3);
+        Assert.assertEquals(stats.getRejectedCalls(), 1);
+        Assert.assertEquals(stats.getLastError(), "still down");
+        Assert.assertEquals(stats.getSecondsToRetry(), 300);
+    }
+
+    @Test
+    public void testSuccessResetsFailureCount() throws Exception
+    {
+        breaker.recordFailure(KEY, URL, null);
+        breaker.recordFailure(KEY, URL, null);
+        breaker.recordSuccess(KEY);
+        breaker.recordFailure(KEY, URL, null);
+
+        Assert.assertTrue(breaker.allowRequest(KEY, URL));
+        Assert.assertEquals(breaker.getStats(KEY).getState(), RemoteCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception
+    {
+        openCircuit();
+
+        ticker.advance(5, TimeUnit.MINUTES);
+        Assert.assertTrue(breaker.allowRequest(KEY, URL));
+        Assert.assertEquals(breaker.getStats(KEY).getState(), RemoteCircuitBreaker.State.HALF_OPEN);
+        Assert.assertFalse(breaker.allowRequest(KEY, URL), "only a single probe should be let through");
+
+        breaker.recordFailure(KEY, URL, null);
+        Assert.assertEquals(breaker.getStats(KEY).getState(), RemoteCircuitBreaker.State.OPEN);
+        Assert.assertFalse(breaker.allowRequest(KEY, URL));
+
+        ticker.advance(5, TimeUnit.MINUTES);
+        Assert.assertTrue(breaker.allowRequest(KEY, URL));
+        breaker.recordSuccess(KEY);
+        Assert.assertEquals(breaker.getStats(KEY).getState(), RemoteCircuitBreaker.State.CLOSED);
+        Assert.assertTrue(breaker.allowRequest(KEY, URL));
+    }
+
+    @Test
+    public void testRemotesAreIndependent() throws Exception
+    {
+        openCircuit();
+
+        Assert.assertTrue(breaker.allowRequest("other", URL));
+        Assert.assertNull(breaker.getStats("other"));
+        Assert.assertEquals(breaker.getAllStats().size(), 1);
+    }
+
+    @Test
+    public void testOpenCircuitsAreReported() throws Exception
+    {
+        breaker.recordFailure("other", URL, null);
+        Assert.assertTrue(breaker.getOpenStats().isEmpty());
+
+        openCircuit();
+        Assert.assertEquals(breaker.getAllStats().size(), 2);
+        Assert.assertEquals(breaker.getOpenStats().size(), 1);
+        Assert.assertEquals(breaker.getOpenStats().get(0).getState(), RemoteCircuitBreaker.State.OPEN);
+
+        ticker.advance(5, TimeUnit.MINUTES);
+        Assert.assertTrue(breaker.allowRequest(KEY, URL));
+        breaker.recordSuccess(KEY);
+        Assert.assertTrue(breaker.getOpenStats().isEmpty());
+    }
+
+    private void openCircuit()
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            breaker.recordFailure(KEY, URL, null);
+        }
+        Assert.assertFalse(breaker.allowRequest(KEY, URL));
+    }
+}
@@ -0,0 +1,21 @@
+package com.atlassian.bamboo.plugins.git.testutils;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+public class FakeTicker extends Ticker
+{
+    private long nanos;
+
+    @Override
+    public synchronized long read()
+    {
+        return nanos;
+    }
+
+    public synchronized void advance(final long duration, final TimeUnit unit)
+    {
+        nanos += unit.toNanos(duration);
+    }
+}